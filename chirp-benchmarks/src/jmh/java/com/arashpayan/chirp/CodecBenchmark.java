@@ -0,0 +1,219 @@
+package com.arashpayan.chirp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning datagrams into messages and back, which happens for every packet the transport
+ * receives or sends.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SENDER_ID = "0123456789abcdef0123456789abcdef";
+
+    private MessageDecoder mDecoder;
+    private CompactMessageDecoder mCompactDecoder;
+    private InetAddress mSource;
+    private ByteBuffer mPublish;
+    private ByteBuffer mCompactPublish;
+    private ByteBuffer mShortPublish;
+    private ByteBuffer mBatch;
+    private ByteBuffer mQuery;
+    private ByteBuffer mOut;
+    private Message mMessage;
+    private Map<String, Object> mPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        mDecoder = new MessageDecoder();
+        mCompactDecoder = new CompactMessageDecoder();
+        mSource = InetAddress.getByName("192.168.1.20");
+        mOut = ByteBuffer.allocate(Chirp.MAX_PAYLOAD_BYTES * 2);
+
+        mPayload = new HashMap<>();
+        mPayload.put("port", 1337);
+        mPayload.put("serial_number", "thx1138");
+        mPayload.put("name", "Living room lamp");
+        byte[] payloadBytes = Chirp.sGson.toJson(mPayload).getBytes(UTF8);
+
+        mMessage = new Message();
+        mMessage.type = Message.MESSAGE_TYPE_PUBLISH;
+        mMessage.setSenderId(SENDER_ID);
+        mMessage.serviceName = "com.example.lamp";
+        mMessage.ttl = 60;
+        mMessage.seq = 1234;
+        mMessage.hasSeq = true;
+        mMessage.payload = mPayload;
+        mMessage.payloadBytes = payloadBytes;
+        mMessage.payloadLength = payloadBytes.length;
+        mMessage.payloadDigest = Message.digest(payloadBytes, payloadBytes.length);
+        mMessage.hasPayloadDigest = true;
+
+        mPublish = encode(mMessage);
+        mMessage.compact = true;
+        mCompactPublish = encode(mMessage);
+        mMessage.compact = false;
+
+        mShortPublish = ascii("{\"type\":\"publish\",\"sender_id\":\"" + SENDER_ID + "\"," +
+                "\"service_name\":\"com.example.lamp\",\"ttl\":60,\"seq\":1234," +
+                "\"payload_digest\":\"0123456789abcdef\"}");
+        mQuery = ascii("{\"type\":\"new_listener\",\"sender_id\":\"" + SENDER_ID + "\"," +
+                "\"service_name\":\"*\",\"compact\":true,\"digests\":true," +
+                "\"service_names\":[\"com.example.lamp\",\"com.example.thermostat\"]}");
+        StringBuilder batch = new StringBuilder("{\"type\":\"publish_batch\",\"sender_id\":\"" +
+                SENDER_ID + "\",\"seq\":1234,\"services\":[");
+        for (int i=0; i<8; i++) {
+            if (i > 0) {
+                batch.append(',');
+            }
+            batch.append("{\"sender_id\":\"0123456789abcdef012345678900000").append(i)
+                    .append("\",\"service_name\":\"com.example.lamp\",\"ttl\":60,")
+                    .append("\"payload_digest\":\"0123456789abcdef\"}");
+        }
+        batch.append("]}");
+        mBatch = ascii(batch.toString());
+
+        // the benchmarks expect every datagram to decode
+        for (ByteBuffer buf : new ByteBuffer[]{mPublish, mShortPublish, mBatch, mQuery}) {
+            Message msg = mDecoder.decode(buf, mSource);
+            if (msg == null) {
+                throw new IllegalStateException("decoding failed: " + mDecoder.getLastError());
+            }
+            recycle(msg);
+        }
+        Message msg = mCompactDecoder.decode(mCompactPublish, mSource);
+        if (msg == null) {
+            throw new IllegalStateException("decoding failed: " + mCompactDecoder.getLastError());
+        }
+        recycle(msg);
+    }
+
+    private static ByteBuffer encode(Message msg) {
+        ByteBuffer buf = ByteBuffer.allocate(Chirp.MAX_PAYLOAD_BYTES * 2);
+        MessageEncoder.encode(msg, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF8));
+    }
+
+    private static void recycle(Message msg) {
+        while (msg != null) {
+            Message next = msg.batchNext;
+            msg.recycle();
+            msg = next;
+        }
+    }
+
+    /**
+     * Reads the sender id the way the browser does, then hands the message back to the pool.
+     */
+    private static void consume(Message msg, Blackhole bh) {
+        while (msg != null) {
+            Message next = msg.batchNext;
+            bh.consume(msg.getSenderId());
+            msg.recycle();
+            msg = next;
+        }
+    }
+
+    @Benchmark
+    public void decodePublish(Blackhole bh) {
+        consume(mDecoder.decode(mPublish, mSource), bh);
+    }
+
+    @Benchmark
+    public void decodeShortPublish(Blackhole bh) {
+        consume(mDecoder.decode(mShortPublish, mSource), bh);
+    }
+
+    @Benchmark
+    public void decodeCompactPublish(Blackhole bh) {
+        consume(mCompactDecoder.decode(mCompactPublish, mSource), bh);
+    }
+
+    @Benchmark
+    public void decodeBatch(Blackhole bh) {
+        consume(mDecoder.decode(mBatch, mSource), bh);
+    }
+
+    @Benchmark
+    public void decodeQuery(Blackhole bh) {
+        consume(mDecoder.decode(mQuery, mSource), bh);
+    }
+
+    /**
+     * An app reading a new service's payload as a map, which decodes all of it.
+     */
+    @Benchmark
+    public Map<String, Object> decodePayload() {
+        Message msg = mDecoder.decode(mPublish, mSource);
+        Map<String, Object> payload = msg.getPayload();
+        msg.recycle();
+        return payload;
+    }
+
+    /**
+     * An app reading a single value out of a new service's payload.
+     */
+    @Benchmark
+    public int readPayloadValue() {
+        Message msg = mDecoder.decode(mPublish, mSource);
+        Payload payload = new Payload(Arrays.copyOf(msg.payloadBytes, msg.payloadLength));
+        msg.recycle();
+        return payload.getInt("port", 0);
+    }
+
+    @Benchmark
+    public ByteBuffer encodePublish() {
+        mOut.clear();
+        MessageEncoder.encode(mMessage, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCompactPublish() {
+        mOut.clear();
+        mMessage.compact = true;
+        MessageEncoder.encode(mMessage, mOut);
+        mMessage.compact = false;
+        return mOut;
+    }
+
+    /**
+     * The way messages were encoded before <code>MessageEncoder</code>, kept as a baseline.
+     */
+    @Benchmark
+    public byte[] encodePublishWithGson() {
+        return Chirp.sGson.toJson(mMessage.toMap()).getBytes(UTF8);
+    }
+
+    /**
+     * A publisher serializes its payload once, when it's set.
+     */
+    @Benchmark
+    public byte[] encodePayload() {
+        return Chirp.sGson.toJson(mPayload).getBytes(UTF8);
+    }
+
+}
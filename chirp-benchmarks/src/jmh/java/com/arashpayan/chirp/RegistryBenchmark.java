@@ -0,0 +1,88 @@
+package com.arashpayan.chirp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The browser's bookkeeping for the services it knows about, with registries from a handful of
+ * services up to a very busy network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+
+    private static final String SERVICE_NAME = "com.example.lamp";
+    // long enough that nothing in the registry expires during a run
+    private static final int REGISTRY_TTL = 3600;
+    private static final int CHURN_TTL = 10;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int registrySize;
+
+    private ChirpBrowser mBrowser;
+    private Message[] mAnnouncements;
+    private int mNext;
+    private Message mNewcomer;
+
+    @Setup
+    public void setup() throws Exception {
+        mBrowser = new ChirpBrowser(SERVICE_NAME);
+        mAnnouncements = new Message[registrySize];
+        for (int i=0; i<registrySize; i++) {
+            mAnnouncements[i] = announcement(i, REGISTRY_TTL);
+            mBrowser.handlePublish(mAnnouncements[i], Chirp.now());
+        }
+        mNewcomer = announcement(registrySize, CHURN_TTL);
+    }
+
+    private static Message announcement(int i, int ttl) throws Exception {
+        Message msg = new Message();
+        msg.type = Message.MESSAGE_TYPE_PUBLISH;
+        msg.setSenderId(String.format("%032x", i));
+        msg.serviceName = SERVICE_NAME;
+        msg.ttl = ttl;
+        msg.setAddress(InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}));
+        return msg;
+    }
+
+    /**
+     * A known service announcing itself again, which is most of what a browser sees.
+     */
+    @Benchmark
+    public void refreshKnownService() {
+        Message msg = mAnnouncements[mNext];
+        mNext = (mNext + 1) % mAnnouncements.length;
+        // a freshly decoded message doesn't have its sender id as a string yet
+        msg.senderId = null;
+        mBrowser.handlePublish(msg, Chirp.now());
+    }
+
+    /**
+     * The check that runs after every batch of received messages, when nothing has expired.
+     */
+    @Benchmark
+    public void expireNothingDue() {
+        mBrowser.expireAddresses(Chirp.now());
+    }
+
+    /**
+     * A service joining the registry and later expiring out of it.
+     */
+    @Benchmark
+    public void discoverThenExpire() {
+        mNewcomer.senderId = null;
+        mBrowser.handlePublish(mNewcomer, Chirp.now());
+        mBrowser.expireAddresses(Chirp.now() + CHURN_TTL * 1000L + 1);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.arashpayan.chirp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking names and ids, which publishers and browsers do for everything they're handed, and
+ * generating ids.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ValidationBenchmark {
+
+    // fields rather than constants, so the JIT can't fold the checks away
+    private String mServiceName = "com.example.living-room.lamp";
+    private String mInvalidServiceName = "com.example.living room lamp";
+    private String mSenderId = "0123456789abcdef0123456789abcdef";
+
+    @Benchmark
+    public boolean isValidServiceName() {
+        return Chirp.isValidServiceName(mServiceName);
+    }
+
+    @Benchmark
+    public boolean isValidServiceNameRejected() {
+        return Chirp.isValidServiceName(mInvalidServiceName);
+    }
+
+    @Benchmark
+    public boolean isValidSenderId() {
+        return Chirp.isValidSenderId(mSenderId);
+    }
+
+    @Benchmark
+    public String getRandomId() {
+        return Chirp.getRandomId();
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.arashpayan.chirp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Backs the deprecated overloads that take an <code>android.app.Application</code> or an
+ * <code>android.os.Handler</code>, which browsers and publishers had before the protocol moved
+ * into chirp-core. The core can't refer to Android classes, so the overloads take an
+ * <code>Object</code>, and this finds the matching method on the Android library's
+ * <code>AndroidPlatform</code> when they're called.
+ */
+final class AndroidCompat {
+
+    private static final String PLATFORM_CLASS = "com.arashpayan.chirp.AndroidPlatform";
+
+    private AndroidCompat() {
+    }
+
+    /**
+     * @return <code>AndroidPlatform.get(app)</code>
+     */
+    @Nonnull
+    static ChirpPlatform platformFor(@Nonnull Object app) {
+        return (ChirpPlatform) invoke("get", app);
+    }
+
+    /**
+     * @return <code>AndroidPlatform.dispatcherFor(handler)</code>
+     */
+    @Nonnull
+    static CallbackDispatcher dispatcherFor(@Nonnull Object handler) {
+        return (CallbackDispatcher) invoke("dispatcherFor", handler);
+    }
+
+    private static Object invoke(String name, Object arg) {
+        Class<?> platform;
+        try {
+            platform = Class.forName(PLATFORM_CLASS);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Only available with the Chirp Android library", e);
+        }
+        for (Method m : platform.getMethods()) {
+            Class<?>[] params = m.getParameterTypes();
+            if (!m.getName().equals(name) || !Modifier.isStatic(m.getModifiers()) ||
+                    params.length != 1 || !params[0].isInstance(arg)) {
+                continue;
+            }
+            try {
+                return m.invoke(null, arg);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        throw new IllegalArgumentException("AndroidPlatform." + name + "() doesn't take a " + arg.getClass().getName());
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.arashpayan.chirp;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Runs callbacks to listeners on a thread of the application's choosing, like the UI thread.
+ * On Android, this is usually backed by a <code>Handler</code>.
+ */
+public interface CallbackDispatcher {
+
+    /**
+     * Runs <code>r</code> as soon as possible.
+     */
+    void post(@Nonnull Runnable r);
+
+    /**
+     * Runs <code>r</code> once <code>delayMs</code> milliseconds have elapsed.
+     */
+    void postDelayed(@Nonnull Runnable r, long delayMs);
+
+    /**
+     * Removes any pending posts of <code>r</code>.
+     */
+    void cancel(@Nonnull Runnable r);
+
+}
@@ -0,0 +1,242 @@
+package com.arashpayan.chirp;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logi;
+
+/**
+ * Start here to use this library.
+ */
+public class Chirp {
+
+    /**
+     * The maximum size of a payload when serialized into JSON. Chirp uses gson for serializing
+     * payloads into JSON.
+     */
+    public static final int MAX_PAYLOAD_BYTES = 32 * 1024;
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+    protected static final char[] sHexArray = "0123456789abcdef".toCharArray();
+    protected static final Gson sGson = new GsonBuilder().
+            setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).
+            create();
+    public static boolean Debug = false;
+
+    private Chirp() {
+    }
+
+    /**
+     * Convenience method for creating a <code>ChirpBrowser</code>.
+     * @param serviceName the name of the service to browse/listen for. Pass in "*" if you want
+     *                    to listen for all services on the network
+     * @return a <code>ChirpBrowser.Builder</code>
+     */
+    public static ChirpBrowser.Builder browseFor(@Nonnull String serviceName) {
+        return new ChirpBrowser.Builder(serviceName);
+    }
+
+    /**
+     * Convenience method for creating a <code>ChirpBrowser</code> that listens for several
+     * services at once.
+     * @param serviceNames the names of the services to browse/listen for. A name ending with "*"
+     *                     matches every service that starts with the rest of the name (e.g.
+     *                     "com.example.*"), and "*" on its own matches every service.
+     * @return a <code>ChirpBrowser.Builder</code>
+     */
+    public static ChirpBrowser.Builder browseFor(@Nonnull String... serviceNames) {
+        return new ChirpBrowser.Builder(serviceNames);
+    }
+
+    protected static String getRandomId() {
+        byte[] randData = new byte[16];
+        sSecureRandom.nextBytes(randData);
+
+        char[] hexChars = new char[16 * 2];
+        for ( int j = 0; j < 16; j++ ) {
+            int v = randData[j] & 0xFF;
+            hexChars[j * 2] = sHexArray[v >>> 4];
+            hexChars[j * 2 + 1] = sHexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * @return a monotonic clock in milliseconds, for measuring intervals. Unlike
+     * <code>System.currentTimeMillis()</code>, it isn't affected by changes to the wall clock.
+     */
+    protected static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * @return the first 8 bytes of a valid 32 character hexadecimal id, as a <code>long</code>
+     */
+    protected static long idHigh(String id) {
+        return parseHex(id, 0);
+    }
+
+    /**
+     * @return the last 8 bytes of a valid 32 character hexadecimal id, as a <code>long</code>
+     */
+    protected static long idLow(String id) {
+        return parseHex(id, 16);
+    }
+
+    /**
+     * @return the 32 character hexadecimal form of an id given as two <code>long</code>s
+     */
+    protected static String idString(long high, long low) {
+        char[] hexChars = new char[32];
+        writeHex(high, hexChars, 0);
+        writeHex(low, hexChars, 16);
+        return new String(hexChars);
+    }
+
+    private static void writeHex(long value, char[] dst, int offset) {
+        for (int i=15; i>=0; i--) {
+            dst[offset + i] = sHexArray[(int) (value & 0x0F)];
+            value >>>= 4;
+        }
+    }
+
+    private static long parseHex(String id, int offset) {
+        long value = 0;
+        for (int i=offset; i<offset+16; i++) {
+            value = (value << 4) | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * Checks if <i>name</i> can be used as a Chirp service name. Service names must a) not be
+     * empty, b) consist of characters from a-z, A-Z, 0-9, . (period), or - (hyphen), and c) be
+     * less than 32 characters. The ideal service name is a reverse dns style string.
+     * e.g. com.example.something
+     * @param name the string to test for validity
+     * @return true if the string can be used as a Chirp service name. false otherwise.
+     */
+    public static boolean isValidServiceName(String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+
+        // every legal character is ASCII, so the length in chars is also the length in bytes
+        int length = name.length();
+        if (length > 64) {
+            return false;
+        }
+        for (int i=0; i<length; i++) {
+            if (!isValidServiceNameChar(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if the pattern is "*", a valid service name, or a valid service name followed
+     * by "*" to match every service name that starts with it
+     */
+    protected static boolean isValidServiceNamePattern(String pattern) {
+        if (pattern == null) {
+            return false;
+        }
+        if (pattern.endsWith("*")) {
+            return pattern.length() == 1 || isValidServiceName(pattern.substring(0, pattern.length() - 1));
+        }
+        return isValidServiceName(pattern);
+    }
+
+    /**
+     * @return true if the service name matches the pattern
+     * @see #isValidServiceNamePattern(String)
+     */
+    protected static boolean serviceNameMatches(String pattern, String name) {
+        int prefixLength = pattern.length() - 1;
+        if (pattern.charAt(prefixLength) == '*') {
+            return name.regionMatches(0, pattern, 0, prefixLength);
+        }
+        return pattern.equals(name);
+    }
+
+    protected static boolean isValidServiceNameChar(int c) {
+        return (c >= 'a' && c <= 'z') ||
+                (c >= 'A' && c <= 'Z') ||
+                (c >= '0' && c <= '9') ||
+                c == '.' ||
+                c == '-';
+    }
+
+    protected static boolean isValidSenderId(String id) {
+        if (id == null || id.isEmpty()) {
+            return false;
+        }
+
+        int strLength = id.length();
+        if (strLength != 32) {
+            return false;
+        }
+        for (int i=0; i<strLength; i++) {
+            char c = id.charAt(i);
+            if ((c < 48 || c > 57) &&
+                    (c < 65 || c > 70) &&
+                    (c < 97 || c > 102)) {
+                logi("invalid character in senderid");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Convenience method for creating a <code>ChirpPublisher</code>.
+     * @param serviceName the name of the service to publish
+     * @return a <code>Builder</code> that can be configured further or used to start and return
+     * the <code>ChirpPublisher</code>
+     */
+    public static ChirpPublisher.Builder publish(@Nonnull String serviceName) {
+        return new ChirpPublisher.Builder(serviceName);
+    }
+
+    /**
+     * Convenience method for creating a <code>ChirpMultiPublisher</code>, for publishing many
+     * services at once.
+     * @return a <code>Builder</code> that can be configured further or used to start and return
+     * the <code>ChirpMultiPublisher</code>
+     */
+    public static ChirpMultiPublisher.Builder publishMany() {
+        return new ChirpMultiPublisher.Builder();
+    }
+
+    /**
+     * Sets how many copies of each message of a type are sent, and how far apart. Copies help
+     * messages survive lossy Wi-Fi, at the cost of more traffic. The default is 2 copies, 20ms
+     * apart. The setting applies to every publisher and browser in the process.
+     * @param messageType "publish", "remove_service", "new_listener" or "payload_request"
+     * @param copies the number of times each message is sent, from 1 to 8
+     * @param intervalMs the time between copies, from 1 to 5000 milliseconds
+     */
+    public static void setSendRedundancy(@Nonnull String messageType, int copies, long intervalMs) {
+        SendRedundancy.set(messageType, copies, intervalMs);
+    }
+
+    /**
+     * Estimates the fraction of Chirp datagrams on the network that this device never receives,
+     * from the gaps in the sequence numbers publishers stamp on their announcements. Only
+     * meaningful while a browser or publisher is running, and once some announcements have been
+     * heard from publishers that support sequence numbers.
+     * @return the estimated packet loss, between 0 and 1
+     */
+    public static double getEstimatedPacketLoss() {
+        return ChirpTransport.getEstimatedPacketLoss();
+    }
+
+}
@@ -0,0 +1,1151 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logi;
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * A <code>ChirpBrowser</code> is used to listen for Chirp services on the local network. You can
+ * construct and start a browser manually, or use the simpler class builder, like so:
+ * <pre>
+ *     ChirpBrowser browser = Chirp.browseFor("com.example.service").
+ *                                  listener(this).
+ *                                  start(platform);
+ * </pre>
+ *
+ * When you no longer need to listen for service(s) you should stop the browser:
+ * <pre>
+ *     browser.stop();
+ * </pre>
+ */
+public class ChirpBrowser {
+
+    /**
+     * The default time (in milliseconds) a <code>ChirpBrowserBatchListener</code> batch is held
+     * open, measured from the first event in the batch.
+     */
+    public static final long DEFAULT_BATCH_INTERVAL_MS = 250;
+    /**
+     * The default number of services a <code>ChirpBrowserBatchListener</code> batch can hold
+     * before it's delivered early.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    /**
+     * The most service names a browser can search for at once.
+     */
+    public static final int MAX_SERVICE_NAMES = 32;
+    /**
+     * The default number of received messages that can wait to be processed before the
+     * <code>OverflowPolicy</code> kicks in.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    // the most messages handled per trip to the incoming queue
+    private static final int DRAIN_BATCH_SIZE = 64;
+    private static final int PAYLOAD_CACHE_SIZE = 64;
+    // how long to wait for a requested payload before asking for it again
+    private static final long PAYLOAD_REQUEST_INTERVAL_MS = 1000;
+
+    private final String mId;
+    private final long mIdHigh;
+    private final long mIdLow;
+    // the service name sent in queries, and the list of names and prefixes we're browsing for
+    // (null if mServiceName says it all)
+    private final String mServiceName;
+    private final String[] mServiceNames;
+    private ChirpBrowserListener mListener;
+    // runs the browser's tasks: handling messages, sending queries and expiring addresses
+    private final SerialExecutor mSerial;
+    private ChirpScheduler mScheduler;
+    private MessageRing mIncomingMessages;
+    private final Message[] mDrainBatch;
+    // the services we know about, with the deadlines of their addresses, and the timer for the
+    // next deadline. Only touched by tasks on mSerial.
+    private final ServiceRegistry mServices;
+    private ChirpScheduler.Cancellable mExpiryTimer;
+    private long mExpiryTimerDeadline;
+    // the services as of the last change, for readers on other threads. Only replaced by tasks on
+    // mSerial.
+    private volatile ServiceSnapshot mSnapshot = ServiceSnapshot.EMPTY;
+    private boolean mSnapshots = true;
+    // the subscriptions and their indexes, while there are any. Only touched by tasks on mSerial.
+    private QueryIndex mQueries;
+    // payloads we've seen, and the payloads we've asked for (with the time we last asked). Only
+    // touched by tasks on mSerial.
+    private final PayloadCache mPayloadCache;
+    private final HashMap<Long, Long> mPayloadRequests;
+    private volatile boolean mIsStarted;
+    private volatile ChirpTransport mTransport;
+    private final ChirpTransport.Subscriber mSubscriber;
+    private int mReceiveBufferSize;
+    private boolean mUnicastReplies;
+    private CallbackDispatcher mDispatcher;
+    private ChirpBrowserBatchListener mBatchListener;
+    private long mBatchIntervalMs;
+    private int mMaxBatchSize;
+    private volatile ServiceEventBatcher mBatcher;
+    // for ChirpStats: the number of known services, and when we were started, until the first
+    // service is discovered (0 after that)
+    private volatile int mServiceCount;
+    private volatile long mStartNanos;
+
+    /**
+     * What a browser does with a newly received message when its queue of messages waiting to be
+     * processed is full, e.g. during a flood of announcements.
+     */
+    public enum OverflowPolicy {
+        /** Drop the message that has been waiting the longest, to make room. */
+        DROP_OLDEST,
+        /** Drop the new message. */
+        DROP_NEWEST,
+        /**
+         * Replace a waiting message of the same type from the same publisher, since the new message
+         * supersedes it. If there isn't one, drop the message that has been waiting the longest.
+         */
+        COALESCE_BY_SENDER
+    }
+
+    /**
+     * A subscription made with <code>subscribe</code>.
+     */
+    public interface Subscription {
+        /**
+         * Stops the subscription's callbacks, including any that haven't been delivered yet.
+         */
+        void cancel();
+    }
+
+    /**
+     * Used to chain configuration calls for creating a <code>ChirpBrowser</code>.
+     */
+    public static class Builder {
+
+        private String[] mServiceNames;
+        private ChirpBrowserListener mListener;
+        private CallbackDispatcher mDispatcher;
+        private ChirpBrowserBatchListener mBatchListener;
+        private long mBatchIntervalMs = DEFAULT_BATCH_INTERVAL_MS;
+        private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private int mReceiveBufferSize = ChirpSocket.DEFAULT_RECEIVE_BUFFER_SIZE;
+        private boolean mUnicastReplies;
+        private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.COALESCE_BY_SENDER;
+        private boolean mSnapshots = true;
+
+        public Builder(@Nonnull String serviceName) {
+            mServiceNames = new String[]{serviceName};
+        }
+
+        public Builder(@Nonnull String... serviceNames) {
+            mServiceNames = serviceNames.clone();
+        }
+
+        /**
+         * Sets the listener that will receive callbacks from the <code>ChirpBrowser</code>
+         * @param l the listener to use for callbacks. <code>null</code> is acceptable
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder listener(ChirpBrowserListener l) {
+            mListener = l;
+            return this;
+        }
+
+        /**
+         * Sets a listener that receives changes in batches, using the default batch interval and
+         * size. This can be used instead of, or along with, a <code>ChirpBrowserListener</code>.
+         * @param l the listener to use for batched callbacks. <code>null</code> is acceptable
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder batchListener(ChirpBrowserBatchListener l) {
+            return batchListener(l, DEFAULT_BATCH_INTERVAL_MS, DEFAULT_MAX_BATCH_SIZE);
+        }
+
+        /**
+         * Sets a listener that receives changes in batches.
+         * @param l the listener to use for batched callbacks. <code>null</code> is acceptable
+         * @param intervalMs how long to collect events before delivering them, measured from the
+         *                   first event in a batch
+         * @param maxBatchSize the number of changed services at which a batch is delivered
+         *                     without waiting for the interval to elapse
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder batchListener(ChirpBrowserBatchListener l, long intervalMs, int maxBatchSize) {
+            mBatchListener = l;
+            mBatchIntervalMs = intervalMs;
+            mMaxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets where callbacks to the listeners are run. Default is the platform's dispatcher,
+         * which on Android is the main looper.
+         * @param d the dispatcher to use for callbacks. <code>null</code> means to use the
+         *          platform's dispatcher.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder dispatcher(CallbackDispatcher d) {
+            mDispatcher = d;
+            return this;
+        }
+
+        /**
+         * Sets the <code>android.os.Handler</code> of the <code>android.os.Looper</code> to be used
+         * for callbacks to the listeners. Default is the main looper.
+         * @param h the <code>android.os.Handler</code> to use for callbacks. <code>null</code>
+         *          means to use the default looper (main).
+         * @return the same <code>Builder</code> object for method chaining
+         * @deprecated use <code>dispatcher(AndroidPlatform.dispatcherFor(h))</code>
+         */
+        @Deprecated
+        @SuppressWarnings("unused")
+        public Builder looper(Object h) {
+            return dispatcher(h == null ? null : AndroidCompat.dispatcherFor(h));
+        }
+
+        /**
+         * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+         * A larger buffer helps avoid dropped packets on busy networks.
+         * @param bytes the requested receive buffer size
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder receiveBufferSize(int bytes) {
+            mReceiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Asks publishers to send their replies to our queries straight to this device, instead
+         * of multicasting them to every device on the network. Periodic announcements are still
+         * multicast. Default is <code>false</code>.
+         * @param enabled true to ask for unicast replies
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder unicastReplies(boolean enabled) {
+            mUnicastReplies = enabled;
+            return this;
+        }
+
+        /**
+         * Sets how many received messages can wait to be processed, and what happens to new
+         * messages once that many are waiting. Default is <code>DEFAULT_QUEUE_CAPACITY</code>
+         * messages, coalescing by sender.
+         * @param capacity the most messages that can wait, rounded up to a power of two
+         * @param policy what to do with a message that arrives when the queue is full
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder queue(int capacity, @Nonnull OverflowPolicy policy) {
+            mQueueCapacity = capacity;
+            mOverflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets whether the browser keeps a <code>ServiceSnapshot</code> of the services it knows
+         * about, for <code>snapshot()</code>. The snapshot holds a <code>Service</code> for
+         * every known service, so a browser that doesn't need it on a very large network can
+         * save memory by turning it off. Default is <code>true</code>.
+         * @param enabled false to turn snapshots off
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder snapshots(boolean enabled) {
+            mSnapshots = enabled;
+            return this;
+        }
+
+        /**
+         * Builds, starts and returns the <code>ChirpBrowser</code>, on a plain JVM.
+         * @return the started <code>ChirpBrowser</code>
+         */
+        @SuppressWarnings("unused")
+        public ChirpBrowser start() {
+            return start(JvmPlatform.get());
+        }
+
+        /**
+         * Builds, starts and returns the <code>ChirpBrowser</code>.
+         * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+         * @return the started <code>ChirpBrowser</code>
+         */
+        @SuppressWarnings("unused")
+        public ChirpBrowser start(@Nonnull ChirpPlatform platform) {
+            ChirpBrowser cb = new ChirpBrowser(mServiceNames);
+            cb.setListener(mListener);
+            cb.setBatchListener(mBatchListener, mBatchIntervalMs, mMaxBatchSize);
+            cb.setDispatcher(mDispatcher);
+            cb.setReceiveBufferSize(mReceiveBufferSize);
+            cb.setUnicastReplies(mUnicastReplies);
+            cb.setQueue(mQueueCapacity, mOverflowPolicy);
+            cb.setSnapshots(mSnapshots);
+            cb.start(platform);
+            return cb;
+        }
+
+        /**
+         * Builds, starts and returns the <code>ChirpBrowser</code> on Android.
+         * @param app the <code>android.app.Application</code>
+         * @return the started <code>ChirpBrowser</code>
+         * @deprecated use <code>start(AndroidPlatform.get(app))</code>
+         */
+        @Deprecated
+        @SuppressWarnings("unused")
+        public ChirpBrowser start(@Nonnull Object app) {
+            return start(AndroidCompat.platformFor(app));
+        }
+
+    }
+
+    /**
+     * Creates a browser that can search for the specified service name. It's always easier to use
+     * <code>Chirp.browseFor(String)</code> to create and configure a <code>ChirpBrowser</code>
+     * instead of using the constructor.
+     * @param serviceName a valid service name, or "*" if the browser should return all services
+     *                    on the network
+     */
+    public ChirpBrowser(@Nonnull String serviceName) {
+        this(new String[]{serviceName});
+    }
+
+    /**
+     * Creates a browser that searches for several services at once, with a single query. It's
+     * always easier to use <code>Chirp.browseFor(String...)</code> to create and configure a
+     * <code>ChirpBrowser</code> instead of using the constructor.
+     * @param serviceNames up to <code>MAX_SERVICE_NAMES</code> service names. A name ending with
+     *                     "*" matches every service that starts with the rest of the name (e.g.
+     *                     "com.example.*"), and "*" on its own matches every service.
+     */
+    public ChirpBrowser(@Nonnull String... serviceNames) {
+        if (serviceNames.length == 0 || serviceNames.length > MAX_SERVICE_NAMES) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_SERVICE_NAMES + " service names are required");
+        }
+        boolean wildcard = false;
+        for (String name : serviceNames) {
+            if (!Chirp.isValidServiceNamePattern(name)) {
+                throw new IllegalArgumentException("Invalid service name: " + name);
+            }
+            wildcard |= name.equals("*");
+        }
+        if (wildcard) {
+            mServiceName = "*";
+            mServiceNames = null;
+        } else if (serviceNames.length == 1 && !serviceNames[0].endsWith("*")) {
+            mServiceName = serviceNames[0];
+            mServiceNames = null;
+        } else {
+            // older publishers only understand 'service_name', so they get asked for everything
+            mServiceName = "*";
+            mServiceNames = serviceNames.clone();
+        }
+        mId = Chirp.getRandomId();
+        mIdHigh = Chirp.idHigh(mId);
+        mIdLow = Chirp.idLow(mId);
+        mSerial = new SerialExecutor();
+        mIncomingMessages = new MessageRing(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COALESCE_BY_SENDER);
+        mDrainBatch = new Message[DRAIN_BATCH_SIZE];
+        mServices = new ServiceRegistry();
+        mPayloadCache = new PayloadCache(PAYLOAD_CACHE_SIZE);
+        mPayloadRequests = new HashMap<>();
+        mReceiveBufferSize = ChirpSocket.DEFAULT_RECEIVE_BUFFER_SIZE;
+        mBatchIntervalMs = DEFAULT_BATCH_INTERVAL_MS;
+        mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        mSubscriber = new ChirpTransport.Subscriber() {
+            @Override
+            public void onMessage(@Nonnull Message msg) {
+                if (!mIsStarted || msg.isFrom(mIdHigh, mIdLow)) {
+                    return;
+                }
+                // only publish and remove_service messages for the services we're browsing for are
+                // worth a slot in the queue. Batches arrive here already split into publishes.
+                if (!msg.type.equals(Message.MESSAGE_TYPE_PUBLISH) &&
+                        !msg.type.equals(Message.MESSAGE_TYPE_REMOVE_SERVICE)) {
+                    return;
+                }
+                if (!isBrowsingFor(msg.serviceName)) {
+                    return;
+                }
+                msg.retain();
+                if (mIncomingMessages.offer(msg)) {
+                    mSerial.execute(mDrainTask);
+                }
+            }
+        };
+    }
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainMessages();
+        }
+    };
+
+    private final Runnable mExpiryTask = new Runnable() {
+        @Override
+        public void run() {
+            mExpiryTimer = null;
+            if (!mIsStarted) {
+                return;
+            }
+            expireAddresses(mScheduler.now());
+            mServiceCount = mServices.size();
+            scheduleExpiry();
+        }
+    };
+
+    private final Runnable mQueryTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsStarted) {
+                sendQuery();
+            }
+        }
+    };
+
+    /**
+     * Drops every address whose deadline has passed. A service that still has an address in the
+     * other family is updated, and a service with no addresses left is removed.
+     * Package-private for the benchmarks.
+     */
+    void expireAddresses(long now) {
+        int slot;
+        while ((slot = mServices.pollExpired(now)) != -1) {
+            int service = slot / 2;
+            // if the other address is due too, report a single removal instead of an update first
+            int other = slot ^ 1;
+            if (mServices.hasAddress(other) && mServices.getDeadline(other) <= now) {
+                mServices.clearAddress(other);
+            }
+            if (mServices.hasAddresses(service)) {
+                notifyServiceUpdated(service);
+            } else {
+                notifyServiceRemoved(service);
+                mServices.remove(service);
+            }
+        }
+    }
+
+    private void drainMessages() {
+        if (!mIsStarted) {
+            return;
+        }
+        Message[] batch = mDrainBatch;
+        int count = mIncomingMessages.drain(batch);
+        try {
+            long now = mScheduler.now();
+            for (int i=0; i<count; i++) {
+                Message msg = batch[i];
+                batch[i] = null;
+                try {
+                    switch (msg.type) {
+                        case Message.MESSAGE_TYPE_PUBLISH:
+                            handlePublish(msg, now);
+                            break;
+                        case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+                            handleRemoval(msg);
+                            break;
+                    }
+                } finally {
+                    msg.recycle();
+                }
+            }
+            expireAddresses(now);
+            mServiceCount = mServices.size();
+            scheduleExpiry();
+        } catch (Throwable t) {
+            logw("problem handling incoming messages", t);
+        }
+        if (count == batch.length) {
+            // there may be more waiting, but the other tasks get a turn first
+            mSerial.execute(mDrainTask);
+        }
+    }
+
+    /**
+     * Makes sure the expiry timer goes off by the time the next address expires. Refreshed
+     * addresses only ever move their deadlines later, so a timer that's already set early enough
+     * is left alone, and finds nothing to do when it goes off.
+     */
+    private void scheduleExpiry() {
+        long next = mServices.nextDeadline();
+        if (next == Long.MAX_VALUE) {
+            return;
+        }
+        if (mExpiryTimer != null) {
+            if (mExpiryTimerDeadline <= next) {
+                return;
+            }
+            mExpiryTimer.cancel();
+        }
+        mExpiryTimerDeadline = next;
+        mExpiryTimer = mSerial.schedule(mExpiryTask, Math.max(0, next - mScheduler.now()));
+    }
+
+    // package-private for the benchmarks
+    void handlePublish(Message msg, long now) {
+        // is this a service we're interested in?
+        if (!isBrowsingFor(msg.serviceName)) {
+            return;
+        }
+
+        int service = mServices.find(msg.senderIdHigh, msg.senderIdLow);
+        long expiration = now + msg.ttl * 1000L;
+        if (service == -1) {
+            // only new services (or changed payloads) need the payload, so this is the only place
+            // it gets decoded
+            Payload payload = null;
+            if (msg.hasPayloadDigest || msg.payloadLength > 0) {
+                payload = findPayload(msg, now);
+                if (payload == null) {
+                    // we'll discover the service once its payload arrives
+                    return;
+                }
+            }
+            service = mServices.add(msg.senderIdHigh, msg.senderIdLow, msg.serviceName);
+            mServices.setAddress(service, msg.address, expiration);
+            mServices.setTtl(service, msg.ttl);
+            mServices.setPayload(service, payload, msg.hasPayloadDigest, msg.payloadDigest);
+            notifyServiceDiscovered(service);
+        } else {
+            mServices.setTtl(service, msg.ttl);
+            boolean updated = mServices.setAddress(service, msg.address, expiration);
+            if (msg.hasPayloadDigest && mServices.hasPayloadDigest(service) &&
+                    msg.payloadDigest != mServices.getPayloadDigest(service)) {
+                // the publisher changed its payload
+                Payload payload = findPayload(msg, now);
+                if (payload != null) {
+                    mServices.setPayload(service, payload, true, msg.payloadDigest);
+                    updated = true;
+                }
+            }
+            if (updated) {
+                notifyServiceUpdated(service);
+            }
+        }
+    }
+
+    private boolean isBrowsingFor(String serviceName) {
+        if (mServiceNames == null) {
+            return mServiceName.equals("*") || mServiceName.equals(serviceName);
+        }
+        for (String pattern : mServiceNames) {
+            if (Chirp.serviceNameMatches(pattern, serviceName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the payload of a publish message, copying it if it's included, or looking it up in
+     * the cache if it was left out. If it's not in the cache either, the payload is requested from
+     * the publisher.
+     * @return the payload, which may be shared with the cache, or <code>null</code> if it had to
+     * be requested
+     */
+    private Payload findPayload(Message msg, long now) {
+        Payload payload;
+        if (msg.isShortForm()) {
+            payload = mPayloadCache.get(msg.payloadDigest);
+            if (payload == null) {
+                requestPayload(msg, now);
+                return null;
+            }
+        } else {
+            // the message goes back to the pool, so the payload gets its own copy of the JSON,
+            // which isn't decoded until someone reads it
+            payload = new Payload(Arrays.copyOf(msg.payloadBytes, msg.payloadLength));
+            if (msg.hasPayloadDigest) {
+                mPayloadCache.put(msg.payloadDigest, payload);
+                mPayloadRequests.remove(msg.payloadDigest);
+            }
+        }
+        return payload;
+    }
+
+    private void requestPayload(Message msg, long now) {
+        ChirpTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        Long lastRequest = mPayloadRequests.get(msg.payloadDigest);
+        if (lastRequest != null && now - lastRequest < PAYLOAD_REQUEST_INTERVAL_MS) {
+            return;
+        }
+        if (mPayloadRequests.size() > PAYLOAD_CACHE_SIZE) {
+            // requests that were never answered
+            mPayloadRequests.clear();
+        }
+        mPayloadRequests.put(msg.payloadDigest, now);
+
+        Message request = new Message();
+        request.type = Message.MESSAGE_TYPE_PAYLOAD_REQUEST;
+        request.setSenderId(mId);
+        request.serviceName = msg.serviceName;
+        request.payloadDigest = msg.payloadDigest;
+        request.hasPayloadDigest = true;
+        // a publisher that sent a compact message can read one
+        request.compact = msg.compact;
+        transport.send(request);
+    }
+
+    private void handleRemoval(Message msg) {
+        // is this a service we're interested in?
+        if (!isBrowsingFor(msg.serviceName)) {
+            return;
+        }
+
+        // do we have a record for this service?
+        int service = mServices.find(msg.senderIdHigh, msg.senderIdLow);
+        if (service == -1) {
+            return;
+        }
+        notifyServiceRemoved(service);
+        mServices.remove(service);
+    }
+
+    /**
+     * Returns true if the browser is listening for services. False, otherwise.
+     * @return
+     */
+    @SuppressWarnings("unused")
+    public boolean isStarted() {
+        return mIsStarted;
+    }
+
+    private void listen(ChirpPlatform platform) {
+        ChirpTransport transport;
+        try {
+            transport = ChirpTransport.attach(platform, mSubscriber, mReceiveBufferSize);
+        } catch (IOException e) {
+            logw("failed to open transport", e);
+            return;
+        }
+        mTransport = transport;
+        if (!mIsStarted) {
+            // we were stopped while the transport was opening
+            transport.detach(mSubscriber);
+            return;
+        }
+
+        sendQuery();
+    }
+
+    /**
+     * Sends a <code>new_listener</code> query, along with the services we already know about and
+     * that don't need to be refreshed yet, so their publishers can skip their replies.
+     */
+    private void sendQuery() {
+        ChirpTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+
+        Message query = new Message();
+        query.type = Message.MESSAGE_TYPE_NEW_LISTENER;
+        query.setSenderId(mId);
+        query.serviceName = mServiceName;
+        if (mServiceNames != null) {
+            query.serviceNames = mServiceNames;
+            query.serviceNameCount = mServiceNames.length;
+        }
+        // let publishers know they can answer us in the compact format
+        query.acceptsCompact = true;
+        // and that they can leave out payloads we've already seen
+        query.acceptsDigests = true;
+        // the query is sent from an ephemeral port, which only we are listening on
+        query.acceptsUnicast = mUnicastReplies && transport.supportsUnicast();
+
+        // publishers only stay quiet for services with at least half their ttl left, so the
+        // rest aren't worth listing. If the list won't fit, the services closest to expiring are
+        // left out, since they're the ones that most need refreshing.
+        final long now = mScheduler.now();
+        ArrayList<Integer> known = new ArrayList<>();
+        for (int service=0; service<mServices.end(); service++) {
+            if (mServices.contains(service) &&
+                    mServices.remainingTtl(service, now) * 2 >= mServices.getTtl(service) * 1000L) {
+                known.add(service);
+            }
+        }
+        if (known.size() > KnownAnswers.MAX_ANSWERS) {
+            Collections.sort(known, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long l = mServices.remainingTtl(lhs, now);
+                    long r = mServices.remainingTtl(rhs, now);
+                    return l > r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+        }
+        if (!known.isEmpty()) {
+            query.knownAnswers = new KnownAnswers();
+            for (int service : known) {
+                if (!query.knownAnswers.add(mServices.getIdHigh(service),
+                        mServices.getIdLow(service),
+                        (int) (mServices.remainingTtl(service, now) / 1000),
+                        mServices.hasPayloadDigest(service),
+                        mServices.getPayloadDigest(service))) {
+                    break;
+                }
+            }
+        }
+
+        try {
+            transport.send(query);
+        } catch (Throwable t) {
+            logw("failed to send query", t);
+        }
+    }
+
+    /**
+     * Asks the publishers on the network to announce themselves again. Publishers of services the
+     * browser already knows about, and that aren't close to expiring, don't need to answer, so
+     * this is cheap to call, e.g. when the device switches networks or the app comes back to the
+     * foreground. Does nothing if the browser isn't started.
+     */
+    public void refresh() {
+        if (!mIsStarted) {
+            return;
+        }
+        requestQuery();
+    }
+
+    private void requestQuery() {
+        // the query includes the services we already know about, so it's built by one of our
+        // tasks
+        mSerial.execute(mQueryTask);
+    }
+
+    /**
+     * Returns the services the browser knows about, as of the last change. The snapshot never
+     * changes, so it can be read from any thread, and calling this is as cheap as reading a field.
+     * Callbacks to the listeners are delivered after the browser's snapshot changes, so a snapshot
+     * can already include a change that the listeners haven't heard about yet.
+     * @return the latest snapshot
+     * @throws IllegalStateException if snapshots were turned off
+     */
+    @Nonnull
+    public ServiceSnapshot snapshot() {
+        if (!mSnapshots) {
+            throw new IllegalStateException("snapshots are turned off for this browser");
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Subscribes to the services that match a query, instead of every service the browser finds.
+     * The listener hears about a service when it starts to match, whether it was just discovered
+     * or an update made it match, about its updates while it matches, and about its removal when
+     * it goes away or an update makes it stop matching. Services that already match are reported
+     * as discovered right after subscribing. Callbacks are delivered the same way as the
+     * browser's listener's, and a browser can have any number of subscriptions, before or after
+     * it has been started.
+     * @param query the services to hear about
+     * @param listener receives the changes to the services that match
+     * @return the subscription, to cancel it
+     */
+    @Nonnull
+    public Subscription subscribe(@Nonnull ServiceQuery query, @Nonnull ChirpBrowserListener listener) {
+        final QueryIndex.Subscriber subscriber = new QueryIndex.Subscriber(query, listener);
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (subscriber.cancelled) {
+                    return;
+                }
+                if (mQueries == null) {
+                    mQueries = new QueryIndex(mServices, mQueryEvents);
+                }
+                mQueries.subscribe(subscriber);
+            }
+        });
+        return new Subscription() {
+            @Override
+            public void cancel() {
+                subscriber.cancelled = true;
+                mSerial.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mQueries == null) {
+                            return;
+                        }
+                        mQueries.unsubscribe(subscriber);
+                        if (mQueries.isEmpty()) {
+                            // nothing to keep the indexes up to date for
+                            mQueries = null;
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private final QueryIndex.Events mQueryEvents = new QueryIndex.Events() {
+        @Override
+        public void onMatchChanged(@Nonnull final QueryIndex.Subscriber subscriber, final int change, @Nonnull final Service service) {
+            final long posted = System.nanoTime();
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (subscriber.cancelled) {
+                        return;
+                    }
+                    ChirpStats.recordCallbackLatency(System.nanoTime() - posted);
+                    switch (change) {
+                        case QueryIndex.DISCOVERED:
+                            subscriber.listener.onServiceDiscovered(service);
+                            break;
+                        case QueryIndex.UPDATED:
+                            subscriber.listener.onServiceUpdated(service);
+                            break;
+                        default:
+                            subscriber.listener.onServiceRemoved(service);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @return the number of received messages waiting to be processed
+     */
+    public int getQueueDepth() {
+        return mIncomingMessages.depth();
+    }
+
+    /**
+     * @return the most received messages that have been waiting to be processed at once
+     */
+    public int getMaxQueueDepth() {
+        return mIncomingMessages.maxDepth();
+    }
+
+    /**
+     * @return the number of received messages dropped because too many were waiting to be
+     * processed
+     */
+    public long getDroppedMessageCount() {
+        return mIncomingMessages.dropped();
+    }
+
+    /**
+     * @return the number of received messages that replaced a waiting message from the same
+     * publisher because too many were waiting to be processed
+     */
+    public long getCoalescedMessageCount() {
+        return mIncomingMessages.coalesced();
+    }
+
+    /**
+     * @return the number of services the browser knows about
+     */
+    int getServiceCount() {
+        return mServiceCount;
+    }
+
+    private void notifyServiceDiscovered(int service) {
+        long startNanos = mStartNanos;
+        if (startNanos != 0) {
+            mStartNanos = 0;
+            ChirpStats.recordTimeToFirstDiscovery(System.nanoTime() - startNanos);
+        }
+        ServiceEventBatcher batcher = mBatcher;
+        if (batcher == null && mListener == null && !mSnapshots && mQueries == null) {
+            return;
+        }
+        final Service s = mServices.toService(service);
+        if (mSnapshots) {
+            mSnapshot = mSnapshot.with(s);
+        }
+        if (mQueries != null) {
+            mQueries.onServiceChanged(service, s);
+        }
+        if (batcher != null) {
+            batcher.onServiceDiscovered(s);
+        }
+        if (mListener != null) {
+            final long posted = System.nanoTime();
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    ChirpStats.recordCallbackLatency(System.nanoTime() - posted);
+                    mListener.onServiceDiscovered(s);
+                }
+            });
+        }
+    }
+
+    private void notifyServiceRemoved(int service) {
+        if (mSnapshots) {
+            mSnapshot = mSnapshot.without(mServices.getIdHigh(service), mServices.getIdLow(service));
+        }
+        if (mQueries != null) {
+            mQueries.onServiceRemoved(service);
+        }
+        ServiceEventBatcher batcher = mBatcher;
+        if (batcher == null && mListener == null) {
+            return;
+        }
+        final Service s = mServices.toService(service);
+        if (batcher != null) {
+            batcher.onServiceRemoved(s);
+        }
+        if (mListener != null) {
+            final long posted = System.nanoTime();
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    ChirpStats.recordCallbackLatency(System.nanoTime() - posted);
+                    mListener.onServiceRemoved(s);
+                }
+            });
+        }
+    }
+
+    private void notifyServiceUpdated(int service) {
+        ServiceEventBatcher batcher = mBatcher;
+        if (batcher == null && mListener == null && !mSnapshots && mQueries == null) {
+            return;
+        }
+        final Service s = mServices.toService(service);
+        if (mSnapshots) {
+            mSnapshot = mSnapshot.with(s);
+        }
+        if (mQueries != null) {
+            mQueries.onServiceChanged(service, s);
+        }
+        if (batcher != null) {
+            batcher.onServiceUpdated(s);
+        }
+        if (mListener != null) {
+            final long posted = System.nanoTime();
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    ChirpStats.recordCallbackLatency(System.nanoTime() - posted);
+                    mListener.onServiceUpdated(s);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets a listener to receive callbacks.
+     * @param l a <code>ChirpBrowserListener</code> or <code>null</code>
+     */
+    public void setListener(ChirpBrowserListener l) {
+        mListener = l;
+    }
+
+    /**
+     * Sets a listener to receive changes in batches. Calling this after the browser has been
+     * started has no effect.
+     * @param l a <code>ChirpBrowserBatchListener</code> or <code>null</code>
+     * @param intervalMs how long to collect events before delivering them, measured from the first
+     *                   event in a batch
+     * @param maxBatchSize the number of changed services at which a batch is delivered without
+     *                     waiting for the interval to elapse
+     */
+    public void setBatchListener(ChirpBrowserBatchListener l, long intervalMs, int maxBatchSize) {
+        if (mIsStarted) {
+            return;
+        }
+        if (intervalMs < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch interval or size");
+        }
+
+        mBatchListener = l;
+        mBatchIntervalMs = intervalMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets where callbacks to the listeners are run. Calling this after the browser has been
+     * started has no effect.
+     * @param d the dispatcher to use for callbacks, or <code>null</code> to use the platform's
+     */
+    public void setDispatcher(CallbackDispatcher d) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mDispatcher = d;
+    }
+
+    /**
+     * Sets the <code>android.os.Handler</code> whose looper the callbacks are run on. Calling this
+     * after the browser has been started has no effect.
+     * @param h the <code>android.os.Handler</code>, or <code>null</code> to use the main looper
+     * @deprecated use <code>setDispatcher(AndroidPlatform.dispatcherFor(h))</code>
+     */
+    @Deprecated
+    public void setHandler(Object h) {
+        setDispatcher(h == null ? null : AndroidCompat.dispatcherFor(h));
+    }
+
+    /**
+     * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+     * Calling this after the browser has been started has no effect.
+     * @param bytes the requested receive buffer size
+     */
+    public void setReceiveBufferSize(int bytes) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * Asks publishers to send their replies to our queries straight to this device, instead of
+     * multicasting them. Calling this after the browser has been started has no effect.
+     * @param enabled true to ask for unicast replies
+     */
+    public void setUnicastReplies(boolean enabled) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mUnicastReplies = enabled;
+    }
+
+    /**
+     * Sets how many received messages can wait to be processed, and what happens to new messages
+     * once that many are waiting. Calling this after the browser has been started has no effect,
+     * and resets the queue counters.
+     * @param capacity the most messages that can wait, rounded up to a power of two
+     * @param policy what to do with a message that arrives when the queue is full
+     */
+    public void setQueue(int capacity, @Nonnull OverflowPolicy policy) {
+        if (mIsStarted) {
+            return;
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        mIncomingMessages = new MessageRing(capacity, policy);
+    }
+
+    /**
+     * Sets whether the browser keeps a <code>ServiceSnapshot</code> of the services it knows
+     * about. Calling this after the browser has been started has no effect.
+     * @param enabled false to turn snapshots off
+     */
+    public void setSnapshots(boolean enabled) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mSnapshots = enabled;
+    }
+
+    /**
+     * Starts listening for and reporting Chirp service(s) on the local network, on a plain JVM.
+     */
+    public void start() {
+        start(JvmPlatform.get());
+    }
+
+    /**
+     * Starts listening for and reporting Chirp service(s) on the local network, on Android.
+     * @param app the <code>android.app.Application</code>
+     * @deprecated use <code>start(AndroidPlatform.get(app))</code>
+     */
+    @Deprecated
+    public void start(@Nonnull Object app) {
+        start(AndroidCompat.platformFor(app));
+    }
+
+    /**
+     * Starts listening for and reporting Chirp service(s) on the local network.
+     * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+     */
+    public void start(@Nonnull final ChirpPlatform platform) {
+        if (Chirp.Debug) {
+            logi("ChirpBrowser.start");
+        }
+        if (mIsStarted) {
+            logi("ChirpBrowser.start: already started");
+            return;
+        }
+
+        mIsStarted = true;
+        mStartNanos = System.nanoTime();
+        ChirpStats.addBrowser(this);
+
+        if (mDispatcher == null) {
+            mDispatcher = platform.getCallbackDispatcher();
+        }
+        if (mBatchListener != null) {
+            mBatcher = new ServiceEventBatcher(mBatchListener, mDispatcher, mBatchIntervalMs, mMaxBatchSize);
+        }
+
+        mScheduler = platform.getScheduler();
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listen(platform);
+                } catch (Throwable t) {
+                    logw("error listening", t);
+                }
+            }
+        });
+        mSerial.start(mScheduler);
+    }
+
+    /**
+     * Stops the browser from listening and reporting services. The <code>ChirpBrowser</code> can
+     * not be reused.
+     */
+    public void stop() {
+        if (Chirp.Debug) {
+            logi("ChirpBrowser.stop");
+        }
+        if (!mIsStarted) {
+            if (Chirp.Debug) {
+                logi("ChirpBrowser.stop already stopped");
+            }
+            return;
+        }
+
+        mIsStarted = false;
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mExpiryTimer != null) {
+                    mExpiryTimer.cancel();
+                    mExpiryTimer = null;
+                }
+            }
+        });
+        ChirpStats.removeBrowser(this);
+        // check if the transport is null, in case there was a problem attaching to it
+        ChirpTransport transport = mTransport;
+        if (transport != null) {
+            transport.detach(mSubscriber);
+            mTransport = null;
+        }
+        mIncomingMessages.clear();
+        ServiceEventBatcher batcher = mBatcher;
+        if (batcher != null) {
+            // deliver anything that's still pending
+            batcher.flushNow();
+            mBatcher = null;
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.arashpayan.chirp;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Interface for objects that prefer to receive changes to the set of discovered services in
+ * batches, instead of one callback per event. A browser collects events for a configurable
+ * interval (or until a configurable number of services have changed) and then delivers them all in
+ * a single call. Multiple events for the same publisher within one batch are collapsed, so a
+ * service appears at most once per call.
+ */
+public interface ChirpBrowserBatchListener {
+
+    /**
+     * Called with the services that changed since the last call. At least one of the lists is
+     * non-empty.
+     * @param added services discovered since the last call. A service discovered and then removed
+     *              within the same batch isn't reported at all.
+     * @param updated previously reported services whose IP addresses changed. A service that was
+     *                removed and rediscovered within the same batch is reported here.
+     * @param removed previously reported services that are no longer being published
+     */
+    void onServicesChanged(@Nonnull List<Service> added,
+                           @Nonnull List<Service> updated,
+                           @Nonnull List<Service> removed);
+
+}
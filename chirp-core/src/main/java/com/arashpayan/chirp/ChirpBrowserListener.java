@@ -1,6 +1,6 @@
 package com.arashpayan.chirp;
 
-import android.support.annotation.NonNull;
+import javax.annotation.Nonnull;
 
 /**
  * Interface for objects to receive callbacks when services are discovered, updated and removed.
@@ -14,7 +14,7 @@ public interface ChirpBrowserListener {
      * <code>onServiceUpdated</code> will include the second IP address.
      * @param service the discovered service
      */
-    void onServiceDiscovered(@NonNull Service service);
+    void onServiceDiscovered(@Nonnull Service service);
 
     /**
      * Called when a new IP address has been discovered for the service. This is usually called
@@ -24,7 +24,7 @@ public interface ChirpBrowserListener {
      * service changes.
      * @param service the updated Service
      */
-    void onServiceUpdated(@NonNull Service service);
+    void onServiceUpdated(@Nonnull Service service);
 
     /**
      * Called when a service is no longer being published on the local network. This occurs when
@@ -33,6 +33,6 @@ public interface ChirpBrowserListener {
      * network.
      * @param service the service that was removed
      */
-    void onServiceRemoved(@NonNull Service service);
+    void onServiceRemoved(@Nonnull Service service);
 
 }
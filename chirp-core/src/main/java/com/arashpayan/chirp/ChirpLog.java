@@ -0,0 +1,52 @@
+package com.arashpayan.chirp;
+
+import java.util.logging.Level;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Where Chirp's log messages go. By default they go to <code>java.util.logging</code>, under the
+ * name "Chirp". The Android module sends them to logcat instead.
+ */
+public class ChirpLog {
+
+    /**
+     * Receives Chirp's log messages. Calls can come from any thread.
+     */
+    public interface Logger {
+        void info(String msg);
+        void warn(String msg, Throwable t);
+    }
+
+    private static final String TAG = "Chirp";
+
+    private static volatile Logger sLogger = new Logger() {
+        private final java.util.logging.Logger mLogger = java.util.logging.Logger.getLogger(TAG);
+
+        @Override
+        public void info(String msg) {
+            mLogger.info(msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            mLogger.log(Level.WARNING, msg, t);
+        }
+    };
+
+    /**
+     * Replaces the logger Chirp's messages are sent to.
+     */
+    public static void setLogger(@Nonnull Logger logger) {
+        sLogger = logger;
+    }
+
+    protected static void logi(String msg) {
+        sLogger.info(msg);
+    }
+
+    protected static void logw(String msg, Throwable t) {
+        sLogger.warn(msg, t);
+    }
+
+}
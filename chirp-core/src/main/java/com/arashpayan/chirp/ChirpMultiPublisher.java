@@ -0,0 +1,552 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * A <code>ChirpMultiPublisher</code> publishes any number of services from a single runtime. It's
+ * meant for hosts that publish services on behalf of many devices (a gateway, for example), where
+ * running one <code>ChirpPublisher</code> per service would mean one announce timer and one
+ * response per service, every time. Instead, the services share one timer, and their
+ * announcements are packed into as few datagrams as possible.
+ * <pre>
+ *     ChirpMultiPublisher publisher = Chirp.publishMany().
+ *                                           start(platform);
+ *     String lampId = publisher.addService("com.example.lamp", lampPayload);
+ *     String fanId = publisher.addService("com.example.fan", fanPayload);
+ *     ...
+ *     publisher.removeService(fanId);
+ * </pre>
+ *
+ * Each service gets its own publisher id, so browsers see them as separate services. The
+ * announcements use the <code>publish_batch</code> message, an extension to the Chirp protocol
+ * that browsers from older versions of this library (or other implementations) don't understand.
+ *
+ * When you no longer want any of the services published:
+ * <pre>
+ *     publisher.stop();
+ * </pre>
+ */
+public class ChirpMultiPublisher {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String mId;
+    private final long mIdHigh;
+    private final long mIdLow;
+    private int mTtl;
+    private int mReceiveBufferSize;
+    private volatile boolean mIsStarted;
+    // runs the publisher's tasks. Everything below is only touched by them.
+    private final SerialExecutor mSerial;
+    private ChirpScheduler mScheduler;
+    private final LinkedHashMap<String, Entry> mServices;
+    private final ArrayList<Entry> mPendingAnnouncements;
+    private boolean mFlushQueued;
+    private ChirpTransport mTransport;
+    private ChirpTransport.Subscriber mSubscriber;
+    private ReplyScheduler mReplies;
+    // the services the pending reply answers: the ones the queries asked for and didn't know about
+    private final LinkedHashSet<Entry> mReplyEntries;
+    private ChirpScheduler.Cancellable mAnnounceTimer;
+    private ChirpScheduler.Cancellable mReplyTimer;
+    private long mReplyTimerDeadline;
+
+    private static class Entry {
+        Message message;
+        // the message pre-encoded as an entry of a batch
+        byte[] encoded;
+    }
+
+    // announces the services added since the last time it ran, so a burst of additions only
+    // results in one round of announcements
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushQueued = false;
+            if (mTransport == null || mPendingAnnouncements.isEmpty()) {
+                return;
+            }
+            announce(mPendingAnnouncements, mTransport, null);
+            mPendingAnnouncements.clear();
+        }
+    };
+
+    private final Runnable mAnnounceTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransport == null) {
+                return;
+            }
+            announceAll();
+            mAnnounceTimer = mSerial.schedule(this, (mTtl - 4) * 1000L);
+        }
+    };
+
+    private final Runnable mReplyTask = new Runnable() {
+        @Override
+        public void run() {
+            mReplyTimer = null;
+            if (mTransport == null) {
+                return;
+            }
+            replyIfDue();
+            scheduleReply();
+        }
+    };
+
+    /**
+     * Used to chain configuration calls for creating a <code>ChirpMultiPublisher</code>.
+     */
+    public static class Builder {
+
+        private ChirpMultiPublisher mPublisher;
+
+        public Builder() {
+            mPublisher = new ChirpMultiPublisher();
+        }
+
+        /**
+         * Sets the TTL shared by all the services.
+         * @param ttl the ttl to use for the services
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder ttl(int ttl) {
+            mPublisher.setTtl(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+         * @param bytes the requested receive buffer size
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder receiveBufferSize(int bytes) {
+            mPublisher.setReceiveBufferSize(bytes);
+            return this;
+        }
+
+        /**
+         * Starts the publisher on a plain JVM and returns it
+         * @return the newly created and started <code>ChirpMultiPublisher</code>
+         */
+        public ChirpMultiPublisher start() {
+            return start(JvmPlatform.get());
+        }
+
+        /**
+         * Starts the publisher and returns it
+         * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+         * @return the newly created and started <code>ChirpMultiPublisher</code>
+         */
+        public ChirpMultiPublisher start(@Nonnull ChirpPlatform platform) {
+            mPublisher.start(platform);
+            return mPublisher;
+        }
+
+    }
+
+    /**
+     * Creates a publisher that doesn't have any services yet. It's easier to use
+     * <code>Chirp.publishMany()</code> to create, configure and start a
+     * <code>ChirpMultiPublisher</code>.
+     */
+    public ChirpMultiPublisher() {
+        mId = Chirp.getRandomId();
+        mIdHigh = Chirp.idHigh(mId);
+        mIdLow = Chirp.idLow(mId);
+        mTtl = 60;
+        mReceiveBufferSize = ChirpSocket.DEFAULT_RECEIVE_BUFFER_SIZE;
+        mSerial = new SerialExecutor();
+        mServices = new LinkedHashMap<>();
+        mPendingAnnouncements = new ArrayList<>();
+        mReplyEntries = new LinkedHashSet<>();
+    }
+
+    /**
+     * Adds a service to be published. If the publisher is running, the service is announced right
+     * away (along with any other services added at the same time), otherwise it's announced once
+     * the publisher is started.
+     * @param serviceName a valid service name
+     * @param payload the service's payload, or <code>null</code>. The same size limit applies as
+     *                for <code>ChirpPublisher.setPayload</code>.
+     * @return the publisher id that browsers will see for this service. Pass it to
+     * <code>removeService</code> to stop publishing the service.
+     */
+    public String addService(@Nonnull String serviceName, Map<String, Object> payload) {
+        if (!Chirp.isValidServiceName(serviceName)) {
+            throw new IllegalArgumentException("Invalid service name");
+        }
+        byte[] payloadBytes = null;
+        if (payload != null) {
+            payloadBytes = Chirp.sGson.toJson(payload).getBytes(UTF8);
+            if (payloadBytes.length > Chirp.MAX_PAYLOAD_BYTES) {
+                throw new IllegalArgumentException("Payload is too large. Max: " + Chirp.MAX_PAYLOAD_BYTES + " Serialized payload bytes: " + payloadBytes.length);
+            }
+        }
+
+        Message msg = new Message();
+        msg.type = Message.MESSAGE_TYPE_PUBLISH;
+        msg.setSenderId(Chirp.getRandomId());
+        msg.serviceName = serviceName;
+        msg.payload = payload;
+        if (payloadBytes != null) {
+            msg.payloadBytes = payloadBytes;
+            msg.payloadLength = payloadBytes.length;
+        }
+
+        final Entry entry = new Entry();
+        entry.message = msg;
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                add(entry);
+            }
+        });
+
+        return msg.getSenderId();
+    }
+
+    /**
+     * Stops publishing a service, and lets browsers know that it's gone.
+     * @param publisherId the id returned by <code>addService</code>
+     */
+    public void removeService(@Nonnull final String publisherId) {
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                remove(publisherId);
+            }
+        });
+    }
+
+    /**
+     * Sets the ttl of the services in seconds. Must be >= 10. This method has no effect if called
+     * after the publisher has been started.
+     * @param ttl
+     */
+    public void setTtl(int ttl) {
+        if (ttl < 10) {
+            throw new IllegalArgumentException("TTL must be at least 10 seconds");
+        }
+        if (mIsStarted) {
+            return;
+        }
+
+        mTtl = ttl;
+    }
+
+    /**
+     * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+     * This method has no effect if called after the publisher has been started.
+     * @param bytes the requested receive buffer size
+     */
+    public void setReceiveBufferSize(int bytes) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mReceiveBufferSize = bytes;
+    }
+
+    private void serve(ChirpPlatform platform) {
+        ChirpTransport.Subscriber subscriber = new ChirpTransport.Subscriber() {
+            @Override
+            public void onMessage(@Nonnull final Message msg) {
+                // we only ever respond to new listeners
+                if (!msg.type.equals(Message.MESSAGE_TYPE_NEW_LISTENER) || msg.isFrom(mIdHigh, mIdLow)) {
+                    return;
+                }
+                msg.retain();
+                mSerial.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handleQuery(msg);
+                        } finally {
+                            msg.recycle();
+                        }
+                    }
+                });
+            }
+        };
+        final ChirpTransport transport;
+        try {
+            transport = ChirpTransport.attach(platform, subscriber, mReceiveBufferSize);
+        } catch (IOException e) {
+            logw("failed to open transport", e);
+            return;
+        }
+        mTransport = transport;
+        mSubscriber = subscriber;
+        mReplies = new ReplyScheduler();
+
+        // the services added before we were started haven't been announced yet
+        if (!mServices.isEmpty()) {
+            announceAll();
+        }
+        mAnnounceTimer = mSerial.schedule(mAnnounceTask, (mTtl - 4) * 1000L);
+    }
+
+    private void add(Entry entry) {
+        entry.message.ttl = mTtl;
+        ByteBuffer buf = ByteBuffer.allocate(ChirpSocket.MAX_MSG_LENGTH);
+        MessageEncoder.encodeBatchEntry(entry.message, buf);
+        entry.encoded = new byte[buf.position()];
+        buf.flip();
+        buf.get(entry.encoded);
+        mServices.put(entry.message.getSenderId(), entry);
+        mPendingAnnouncements.add(entry);
+        if (!mFlushQueued) {
+            mFlushQueued = true;
+            mSerial.execute(mFlushTask);
+        }
+    }
+
+    private void remove(String publisherId) {
+        Entry removed = mServices.remove(publisherId);
+        if (removed == null) {
+            return;
+        }
+        mPendingAnnouncements.remove(removed);
+        mReplyEntries.remove(removed);
+        if (mTransport != null) {
+            sendGoodbye(removed, mTransport);
+        }
+    }
+
+    private void handleQuery(Message query) {
+        if (mTransport == null) {
+            // we've been stopped
+            return;
+        }
+        // answered along with everyone else's replies, rather than right away, and not at all if
+        // the listener already knows about every one of our services it asked for. The reply only
+        // carries the services that were asked for.
+        if (addReplyEntries(query)) {
+            mReplies.onQuery(mScheduler.now(), query.getReplyAddress(),
+                    query.senderIdHigh, query.senderIdLow);
+            scheduleReply();
+        } else {
+            ChirpStats.recordQuerySuppressed();
+        }
+    }
+
+    private void announceAll() {
+        ChirpStats.recordAnnouncement();
+        // every service is in it, so it answers the pending reply too
+        mReplies.onAnnounced(mScheduler.now());
+        mReplyEntries.clear();
+        mPendingAnnouncements.clear();
+        announce(mServices.values(), mTransport, null);
+    }
+
+    /**
+     * Makes sure the reply timer goes off by the time the pending reply is due, if there is one.
+     */
+    private void scheduleReply() {
+        long now = mScheduler.now();
+        long wait = mReplies.timeUntilReply(now);
+        if (wait < 0) {
+            return;
+        }
+        if (mReplyTimer != null) {
+            if (mReplyTimerDeadline <= now + wait) {
+                return;
+            }
+            mReplyTimer.cancel();
+        }
+        mReplyTimerDeadline = now + wait;
+        mReplyTimer = mSerial.schedule(mReplyTask, wait);
+    }
+
+    private void replyIfDue() {
+        if (!mReplies.isReplyDue(mScheduler.now())) {
+            return;
+        }
+        ChirpStats.recordReply();
+        InetSocketAddress replyTo = mReplies.getReplyAddress();
+        if (replyTo != null) {
+            // only the listener that asked needs to hear the reply
+            mReplies.onUnicastReplySent();
+        } else {
+            // it answers every query received so far, and counts towards the multicast rate limit
+            mReplies.onAnnounced(mScheduler.now());
+        }
+        announce(mReplyEntries, mTransport, replyTo);
+        mReplyEntries.clear();
+    }
+
+    /**
+     * Says goodbye for every service and lets go of the transport.
+     */
+    private void shutDown() {
+        ChirpTransport transport = mTransport;
+        if (transport == null) {
+            // the transport never opened
+            return;
+        }
+        mTransport = null;
+        if (mAnnounceTimer != null) {
+            mAnnounceTimer.cancel();
+            mAnnounceTimer = null;
+        }
+        if (mReplyTimer != null) {
+            mReplyTimer.cancel();
+            mReplyTimer = null;
+        }
+        for (Entry entry : mServices.values()) {
+            sendGoodbye(entry, transport);
+        }
+        mServices.clear();
+        mReplyEntries.clear();
+        // the transport writes out anything still queued before it closes
+        transport.detach(mSubscriber);
+    }
+
+    /**
+     * Adds the services the query asks for, and doesn't already know about, to the pending reply.
+     * @return true if the query asks for at least one of them
+     */
+    private boolean addReplyEntries(Message query) {
+        KnownAnswers known = query.knownAnswers;
+        boolean needed = false;
+        for (Entry entry : mServices.values()) {
+            Message msg = entry.message;
+            if (!query.asksFor(msg.serviceName)) {
+                continue;
+            }
+            if (known == null || !known.isKnown(msg.senderIdHigh, msg.senderIdLow, mTtl,
+                    msg.hasPayloadDigest, msg.payloadDigest)) {
+                mReplyEntries.add(entry);
+                needed = true;
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Packs the entries into as few <code>publish_batch</code> datagrams as they'll fit in.
+     * @param to where to send the datagrams, or <code>null</code> to multicast them
+     */
+    private void announce(Collection<Entry> entries, ChirpTransport transport, InetSocketAddress to) {
+        int capacity = ChirpSocket.MAX_MSG_LENGTH - MessageEncoder.batchOverhead();
+        ByteBuffer batch = ByteBuffer.allocate(capacity);
+        for (Entry entry : entries) {
+            int needed = entry.encoded.length + (batch.position() > 0 ? 1 : 0);
+            if (needed > batch.remaining()) {
+                sendBatch(batch, transport, to);
+            }
+            if (entry.encoded.length > batch.remaining()) {
+                // too big to share a datagram with anything, so send it on its own
+                send(entry.message, transport, to);
+                continue;
+            }
+            if (batch.position() > 0) {
+                batch.put((byte) ',');
+            }
+            batch.put(entry.encoded);
+        }
+        sendBatch(batch, transport, to);
+    }
+
+    private void sendBatch(ByteBuffer batch, ChirpTransport transport, InetSocketAddress to) {
+        if (batch.position() == 0) {
+            return;
+        }
+        Message msg = new Message();
+        msg.type = Message.MESSAGE_TYPE_PUBLISH_BATCH;
+        msg.setSenderId(mId);
+        // the message is encoded later by the socket, so it needs its own copy
+        msg.payloadLength = batch.position();
+        msg.payloadBytes = new byte[msg.payloadLength];
+        batch.flip();
+        batch.get(msg.payloadBytes);
+        batch.clear();
+        send(msg, transport, to);
+    }
+
+    private static void send(Message msg, ChirpTransport transport, InetSocketAddress to) {
+        if (to == null) {
+            transport.send(msg);
+        } else {
+            transport.send(msg, to);
+        }
+    }
+
+    private void sendGoodbye(Entry entry, ChirpTransport transport) {
+        Message goodbye = new Message();
+        goodbye.type = Message.MESSAGE_TYPE_REMOVE_SERVICE;
+        goodbye.setSenderId(entry.message.getSenderId());
+        goodbye.serviceName = entry.message.serviceName;
+        transport.send(goodbye);
+    }
+
+    /**
+     * Starts the publisher on a plain JVM.
+     */
+    public void start() {
+        start(JvmPlatform.get());
+    }
+
+    /**
+     * Starts the publisher.
+     * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+     */
+    public void start(@Nonnull final ChirpPlatform platform) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mIsStarted = true;
+        mScheduler = platform.getScheduler();
+
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve(platform);
+                } catch (Throwable t) {
+                    logw("error serving", t);
+                }
+            }
+        });
+        mSerial.start(mScheduler);
+    }
+
+    /**
+     * Stops the publisher. A removal message is sent for every service, so browsers don't have to
+     * wait for the TTLs to expire.
+     *
+     * The <code>ChirpMultiPublisher</code> can not be started again after it has been stopped.
+     */
+    public void stop() {
+        if (!mIsStarted) {
+            return;
+        }
+
+        mIsStarted = false;
+        // runs after everything already queued, including opening the transport if it hasn't
+        // happened yet
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                shutDown();
+            }
+        });
+    }
+
+}
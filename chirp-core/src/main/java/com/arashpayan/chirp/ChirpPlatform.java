@@ -0,0 +1,42 @@
+package com.arashpayan.chirp;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The things Chirp needs from the environment it runs in, which differ between Android and a
+ * plain JVM. Browsers and publishers are started with a platform, and the first one to start
+ * opens the shared transport with it.
+ *
+ * Logging is configured separately, with <code>ChirpLog.setLogger()</code>, since it's needed
+ * before anything is started.
+ */
+public interface ChirpPlatform {
+
+    /**
+     * Called when a transport opens. Platforms that filter out multicast traffic to save power
+     * (like Android) should let it through until every call has been matched by a call to
+     * <code>releaseMulticastLock()</code>. A transport that's closing can still hold the lock
+     * after the next one has acquired it, so the calls have to be counted.
+     */
+    void acquireMulticastLock();
+
+    /**
+     * Called once for each call to <code>acquireMulticastLock()</code>, when that transport has
+     * closed or failed to open.
+     */
+    void releaseMulticastLock();
+
+    /**
+     * @return where browser callbacks are delivered, unless the browser was given a dispatcher of
+     * its own
+     */
+    @Nonnull
+    CallbackDispatcher getCallbackDispatcher();
+
+    /**
+     * @return the clock and timer that browsers and publishers do their work on
+     */
+    @Nonnull
+    ChirpScheduler getScheduler();
+
+}
@@ -0,0 +1,558 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logi;
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * A <code>ChirpPublisher</code> is used to publish a Chirp service on the local network. You can
+ * construct and start the publisher manually, or use the simpler class builder, like so:
+ * <pre>
+ *     ChirpPublisher publisher = Chirp.publish("com.example.service").
+ *                                      start(platform)
+ * </pre>
+ *
+ * Optionally, you can also set a payload for the publisher that gets sent along to clients
+ * listening for your service. The payload can contain any data you want that can be serialized
+ * into a JSON object, as long as it's less than <code>Chirp.MAX_PAYLOAD_BYTES</code> (32KB) in size
+ * (after serialization). For example, if you're using to mDNS/Bonjour, you might want to include a
+ * port number for your service in the payload:
+ * <pre>
+ *     Map&lt;String, Object&gt; payload = new HashMap&lt;&gt;();
+ *     payload.put("port", 1337);
+ *     ChirpPublisher publisher Chirp.publish("com.example.service").
+ *                                    payload(payload).
+ *                                    start(platform);
+ * </pre>
+ *
+ * When you no longer want your service published:
+ * <pre>
+ *     publisher.stop();
+ * </pre>
+ */
+public class ChirpPublisher {
+
+    // indices into mAnnouncements
+    private static final int ANNOUNCE_COMPACT = 1;
+    private static final int ANNOUNCE_SHORT = 2;
+
+    private final String mId;
+    private final long mIdHigh;
+    private final long mIdLow;
+    private final String mServiceName;
+    private Map<String, Object> mPayload;
+    // mPayload serialized as UTF-8 JSON
+    private byte[] mPayloadBytes;
+    private long mPayloadDigest;
+    private int mTtl;
+    private int mReceiveBufferSize;
+    private boolean mCompactEncoding;
+
+    private volatile boolean mIsStarted;
+    // runs the publisher's tasks. Everything below is only touched by them.
+    private final SerialExecutor mSerial;
+    private ChirpScheduler mScheduler;
+    private ChirpTransport mTransport;
+    private ChirpTransport.Subscriber mSubscriber;
+    private ReplyScheduler mReplies;
+    private ChirpScheduler.Cancellable mAnnounceTimer;
+    private ChirpScheduler.Cancellable mReplyTimer;
+    private long mReplyTimerDeadline;
+    // what we know about the listeners on the network, and every form of our announcement
+    private boolean mCompactListenerSeen;
+    private boolean mLegacyListenerSeen;
+    private boolean mCachingListenerSeen;
+    private boolean mNonCachingListenerSeen;
+    private Message[] mAnnouncements;
+
+    private final Runnable mAnnounceTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransport == null) {
+                return;
+            }
+            announce();
+            mAnnounceTimer = mSerial.schedule(this, (mTtl - 4) * 1000L);
+        }
+    };
+
+    private final Runnable mReplyTask = new Runnable() {
+        @Override
+        public void run() {
+            mReplyTimer = null;
+            if (mTransport == null) {
+                return;
+            }
+            replyIfDue();
+            scheduleReply();
+        }
+    };
+
+    /**
+     * Used to chain configuration calls for creating a <code>ChirpPublisher</code>.
+     */
+    public static class Builder {
+
+        private ChirpPublisher mPublisher;
+
+        public Builder(@Nonnull String serviceName) {
+            mPublisher = new ChirpPublisher(serviceName);
+        }
+
+        /**
+         * Sets a payload with arbitrary data to be associated with the service
+         * @param p the payload
+         * @return the <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder payload(Map<String, Object> p) {
+            mPublisher.setPayload(p);
+            return this;
+        }
+
+        /**
+         * Sets the TTL of the service. There's not really a good reason to set this, unless you're
+         * debugging the library or implementing Chirp in another language and need to test with this.
+         * @param ttl the ttl to use for the service
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder ttl(int ttl) {
+            mPublisher.setTtl(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+         * @param bytes the requested receive buffer size
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder receiveBufferSize(int bytes) {
+            mPublisher.setReceiveBufferSize(bytes);
+            return this;
+        }
+
+        /**
+         * Allows the publisher to use the compact binary format instead of JSON.
+         * @param enabled whether the compact format may be used
+         * @return the same <code>Builder</code> object for method chaining
+         * @see ChirpPublisher#setCompactEncoding(boolean)
+         */
+        @SuppressWarnings("unused")
+        public Builder compactEncoding(boolean enabled) {
+            mPublisher.setCompactEncoding(enabled);
+            return this;
+        }
+
+        /**
+         * Starts the publisher on a plain JVM and returns it
+         * @return the newly created and started <code>ChirpPublisher</code>
+         */
+        public ChirpPublisher start() {
+            return start(JvmPlatform.get());
+        }
+
+        /**
+         * Starts the publisher and returns it
+         * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+         * @return the newly created and started <code>ChirpPublisher</code>
+         */
+        public ChirpPublisher start(@Nonnull ChirpPlatform platform) {
+            mPublisher.start(platform);
+            return mPublisher;
+        }
+
+        /**
+         * Starts the publisher on Android and returns it
+         * @param app the <code>android.app.Application</code>
+         * @return the newly created and started <code>ChirpPublisher</code>
+         * @deprecated use <code>start(AndroidPlatform.get(app))</code>
+         */
+        @Deprecated
+        public ChirpPublisher start(@Nonnull Object app) {
+            return start(AndroidCompat.platformFor(app));
+        }
+
+    }
+
+    /**
+     * Create a publisher that can publish the specified service name. It's always easier to use
+     * <code>Chirp.publish(String)</code> to create, configure and start a <code>ChirpPublisher</code>
+     * instead of using this constructor.
+     * @param serviceName a valid service name
+     */
+    public ChirpPublisher(@Nonnull String serviceName) {
+        if (!Chirp.isValidServiceName(serviceName)) {
+            throw new IllegalArgumentException("Invalid service name");
+        }
+
+        mServiceName = serviceName;
+        mId = Chirp.getRandomId();
+        mIdHigh = Chirp.idHigh(mId);
+        mIdLow = Chirp.idLow(mId);
+        mTtl = 60;
+        mReceiveBufferSize = ChirpSocket.DEFAULT_RECEIVE_BUFFER_SIZE;
+        mSerial = new SerialExecutor();
+    }
+
+    /**
+     * Sets the payload for this service. If the payload is too large (> Chirp.MAX_PAYLOAD_BYTES
+     * after serialization into JSON), then an <code>IllegalArgumentException</code> will be thrown.
+     * This method has no effect if called after the publisher has been started.
+     *
+     * The payload is always sent to new listeners. Once the listeners that have shown up all cache
+     * payloads by digest, the periodic announcements only carry a digest of it. Until then, or as
+     * soon as a listener that doesn't cache payloads shows up, they carry the full payload.
+     * @param p the payload
+     */
+    public void setPayload(Map<String, Object> p) {
+        if (mIsStarted) {
+            return;
+        }
+
+        byte[] bytes = null;
+        if (p != null) {
+            // we gotta check its size when serialized
+            String json = Chirp.sGson.toJson(p);
+            bytes = json.getBytes(Charset.forName("UTF-8"));
+            if (bytes.length > Chirp.MAX_PAYLOAD_BYTES) {
+                throw new IllegalArgumentException("Payload is too large. Max: " + Chirp.MAX_PAYLOAD_BYTES + " Serialized payload bytes: " + bytes.length);
+            }
+        }
+
+        mPayload = p;
+        mPayloadBytes = bytes;
+        if (bytes != null) {
+            mPayloadDigest = Message.digest(bytes, bytes.length);
+        }
+    }
+
+    /**
+     * Sets the ttl of the service in seconds. Must be >= 10.
+     * @param ttl
+     */
+    public void setTtl(int ttl) {
+        if (ttl < 10) {
+            throw new IllegalArgumentException("TTL must be at least 10 seconds");
+        }
+
+        mTtl = ttl;
+    }
+
+    /**
+     * Sets the size (in bytes) requested for the socket receive buffer (<code>SO_RCVBUF</code>).
+     * This method has no effect if called after the publisher has been started.
+     * @param bytes the requested receive buffer size
+     */
+    public void setReceiveBufferSize(int bytes) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * Allows the publisher to send its messages in the compact binary format instead of JSON. The
+     * format is only used once a listener has asked for our service and said that it understands
+     * the compact format, and never after a listener that doesn't understand it has shown up.
+     * Listeners that started before the publisher can't be detected, so only enable this on
+     * networks where every Chirp listener is running a version of this library that supports the
+     * compact format. This method has no effect if called after the publisher has been started.
+     * @param enabled whether the compact format may be used
+     */
+    public void setCompactEncoding(boolean enabled) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mCompactEncoding = enabled;
+    }
+
+    private void serve(ChirpPlatform platform) {
+        // the transport's I/O thread hands the messages we're interested in to our tasks
+        ChirpTransport.Subscriber subscriber = new ChirpTransport.Subscriber() {
+            @Override
+            public void onMessage(@Nonnull final Message msg) {
+                // we only ever respond to new listeners, and requests for our payload
+                if (msg.isFrom(mIdHigh, mIdLow)) {
+                    return;
+                }
+                if (msg.type.equals(Message.MESSAGE_TYPE_NEW_LISTENER)) {
+                    if (!msg.asksFor(mServiceName)) {
+                        return;
+                    }
+                } else if (!isRequestForOurPayload(msg)) {
+                    return;
+                }
+                msg.retain();
+                mSerial.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handleMessage(msg);
+                        } finally {
+                            msg.recycle();
+                        }
+                    }
+                });
+            }
+        };
+        final ChirpTransport transport;
+        try {
+            transport = ChirpTransport.attach(platform, subscriber, mReceiveBufferSize);
+        } catch (IOException e) {
+            logw("failed to open transport", e);
+            return;
+        }
+        mTransport = transport;
+        mSubscriber = subscriber;
+
+        // the announcement never changes, so each of its forms is built once and sent every time
+        mAnnouncements = new Message[4];
+        for (int i=0; i<mAnnouncements.length; i++) {
+            Message announceMsg = new Message();
+            announceMsg.type = Message.MESSAGE_TYPE_PUBLISH;
+            announceMsg.setSenderId(mId);
+            announceMsg.serviceName = mServiceName;
+            announceMsg.ttl = mTtl;
+            announceMsg.compact = (i & ANNOUNCE_COMPACT) != 0;
+            if (mPayloadBytes != null) {
+                announceMsg.payloadDigest = mPayloadDigest;
+                announceMsg.hasPayloadDigest = true;
+                if ((i & ANNOUNCE_SHORT) == 0) {
+                    announceMsg.payload = mPayload;
+                    announceMsg.payloadBytes = mPayloadBytes;
+                    announceMsg.payloadLength = mPayloadBytes.length;
+                }
+            }
+            mAnnouncements[i] = announceMsg;
+        }
+        mReplies = new ReplyScheduler();
+        mReplies.onAnnounced(mScheduler.now());
+        try {
+            transport.send(announcement(false));
+            ChirpStats.recordAnnouncement();
+        } catch (Throwable t) {
+            logw("error sending initial announce", t);
+        }
+
+        // announce periodically, so listeners don't let us expire
+        mAnnounceTimer = mSerial.schedule(mAnnounceTask, (mTtl - 4) * 1000L);
+    }
+
+    private void announce() {
+        // listeners have seen our payload by now, so leave it out if we can
+        Message announceMsg = announcement(true);
+        if (!announceMsg.isShortForm()) {
+            mReplies.onAnnounced(mScheduler.now());
+        }
+        mTransport.send(announceMsg);
+        ChirpStats.recordAnnouncement();
+    }
+
+    private void handleMessage(Message msg) {
+        if (mTransport == null) {
+            // we've been stopped
+            return;
+        }
+        if (msg.type.equals(Message.MESSAGE_TYPE_NEW_LISTENER)) {
+            if (msg.acceptsCompact) {
+                mCompactListenerSeen = true;
+            } else {
+                mLegacyListenerSeen = true;
+            }
+            if (msg.acceptsDigests) {
+                mCachingListenerSeen = true;
+            } else {
+                mNonCachingListenerSeen = true;
+            }
+        }
+        // new listeners and payload requests both get the full announcement, but not right away,
+        // in case everyone else on the network is answering too. A listener that already knows
+        // about us doesn't need an answer at all.
+        if (!isKnownBy(msg)) {
+            mReplies.onQuery(mScheduler.now(), msg.getReplyAddress(), msg.senderIdHigh, msg.senderIdLow);
+            scheduleReply();
+        } else {
+            ChirpStats.recordQuerySuppressed();
+        }
+    }
+
+    /**
+     * Makes sure the reply timer goes off by the time the pending reply is due, if there is one.
+     */
+    private void scheduleReply() {
+        long now = mScheduler.now();
+        long wait = mReplies.timeUntilReply(now);
+        if (wait < 0) {
+            return;
+        }
+        if (mReplyTimer != null) {
+            if (mReplyTimerDeadline <= now + wait) {
+                return;
+            }
+            mReplyTimer.cancel();
+        }
+        mReplyTimerDeadline = now + wait;
+        mReplyTimer = mSerial.schedule(mReplyTask, wait);
+    }
+
+    private void replyIfDue() {
+        long now = mScheduler.now();
+        if (!mReplies.isReplyDue(now)) {
+            return;
+        }
+        InetSocketAddress replyTo = mReplies.getReplyAddress();
+        if (replyTo != null) {
+            mReplies.onUnicastReplySent();
+            mTransport.send(announcement(false), replyTo);
+        } else {
+            mReplies.onAnnounced(now);
+            mTransport.send(announcement(false));
+            ChirpStats.recordAnnouncement();
+        }
+        ChirpStats.recordReply();
+    }
+
+    /**
+     * Sends our goodbye and lets go of the transport.
+     */
+    private void shutDown() {
+        ChirpTransport transport = mTransport;
+        if (transport == null) {
+            // the transport never opened
+            return;
+        }
+        mTransport = null;
+        if (mAnnounceTimer != null) {
+            mAnnounceTimer.cancel();
+            mAnnounceTimer = null;
+        }
+        if (mReplyTimer != null) {
+            mReplyTimer.cancel();
+            mReplyTimer = null;
+        }
+
+        Message goodbye = new Message();
+        goodbye.type = Message.MESSAGE_TYPE_REMOVE_SERVICE;
+        goodbye.setSenderId(mId);
+        goodbye.serviceName = mServiceName;
+        goodbye.compact = useCompact();
+        // the transport writes out anything still queued before it closes
+        transport.send(goodbye);
+        transport.detach(mSubscriber);
+    }
+
+    /**
+     * @return true if the message is a query that lists us as a known answer
+     */
+    private boolean isKnownBy(Message query) {
+        return query.knownAnswers != null &&
+                query.knownAnswers.isKnown(mIdHigh, mIdLow, mTtl, mPayloadBytes != null, mPayloadDigest);
+    }
+
+    /**
+     * @return true if the message asks for the payload we're publishing
+     */
+    private boolean isRequestForOurPayload(Message msg) {
+        return msg.type.equals(Message.MESSAGE_TYPE_PAYLOAD_REQUEST) &&
+                mPayloadBytes != null &&
+                msg.payloadDigest == mPayloadDigest &&
+                mServiceName.equals(msg.serviceName);
+    }
+
+    /**
+     * Picks the form of our announcement that every listener we know about can understand.
+     * @param allowShort true if the payload can be left out for listeners that have it cached
+     */
+    private Message announcement(boolean allowShort) {
+        int form = 0;
+        if (useCompact()) {
+            form |= ANNOUNCE_COMPACT;
+        }
+        // like the compact format, only once we've heard from a listener that caches payloads, so
+        // a browser that started before us, and never asked, isn't left without the payload
+        if (allowShort && mPayloadBytes != null && mCachingListenerSeen && !mNonCachingListenerSeen) {
+            form |= ANNOUNCE_SHORT;
+        }
+        return mAnnouncements[form];
+    }
+
+    private boolean useCompact() {
+        return mCompactEncoding && mCompactListenerSeen && !mLegacyListenerSeen;
+    }
+
+    /**
+     * Starts the publisher on a plain JVM.
+     */
+    public void start() {
+        start(JvmPlatform.get());
+    }
+
+    /**
+     * Starts the publisher on Android.
+     * @param app the <code>android.app.Application</code>
+     * @deprecated use <code>start(AndroidPlatform.get(app))</code>
+     */
+    @Deprecated
+    public void start(@Nonnull Object app) {
+        start(AndroidCompat.platformFor(app));
+    }
+
+    /**
+     * Starts the publisher.
+     * @param platform the platform to run on, e.g. <code>AndroidPlatform</code>
+     */
+    public void start(@Nonnull final ChirpPlatform platform) {
+        if (mIsStarted) {
+            return;
+        }
+
+        mIsStarted = true;
+        mScheduler = platform.getScheduler();
+
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve(platform);
+                } catch (Throwable t) {
+                    logw("error serving", t);
+                }
+            }
+        });
+        mSerial.start(mScheduler);
+    }
+
+    /**
+     * Stops the publisher. A message is sent before closing network connections to inform any
+     * Chirp listeners that our service is no longer around, so they don't have to wait for the TTL
+     * to expire before removing our service.
+     *
+     * The <code>ChirpPublisher</code> can not be started again after it has been stopped.
+     */
+    public void stop() {
+        if (!mIsStarted) {
+            return;
+        }
+
+        mIsStarted = false;
+        // runs after everything already queued, including opening the transport if it hasn't
+        // happened yet
+        mSerial.execute(new Runnable() {
+            @Override
+            public void run() {
+                shutDown();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.arashpayan.chirp;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The threads Chirp runs on: one timer thread, and a small pool of workers that run the tasks of
+ * every browser and publisher. A browser or publisher only occupies a worker while it has
+ * something to do, so the number of threads stays the same no matter how many services are
+ * published or browsed for. The only other thread is the socket's I/O thread, one per transport.
+ *
+ * <code>AndroidPlatform</code> and the plain JVM platform run on the default runtime. To run Chirp
+ * on threads of your own, e.g. virtual threads on a JVM that has them, replace the default before
+ * starting anything:
+ * <pre>
+ *     ChirpRuntime.setDefault(new ChirpRuntime.Builder().
+ *                                     threadFactory(Thread.ofVirtual().factory()).
+ *                                     build());
+ * </pre>
+ *
+ * or hand the tasks to an executor you already have:
+ * <pre>
+ *     ChirpRuntime.setDefault(new ChirpRuntime.Builder().
+ *                                     executor(myExecutor).
+ *                                     build());
+ * </pre>
+ */
+public final class ChirpRuntime implements ChirpScheduler {
+
+    /**
+     * The default size of the worker pool.
+     */
+    public static final int DEFAULT_MAX_WORKERS = 2;
+    // how long an idle worker waits for a task before its thread exits
+    private static final long WORKER_KEEP_ALIVE_MS = 30 * 1000;
+
+    private static ChirpRuntime sDefault;
+
+    private final ThreadFactory mThreadFactory;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final Executor mWorkers;
+    // the worker pool, if the runtime created it
+    private final ThreadPoolExecutor mOwnWorkers;
+
+    /**
+     * Used to chain configuration calls for creating a <code>ChirpRuntime</code>.
+     */
+    public static class Builder {
+
+        private ThreadFactory mThreadFactory;
+        private Executor mExecutor;
+        private int mMaxWorkers = DEFAULT_MAX_WORKERS;
+
+        /**
+         * Sets what creates the runtime's threads: the timer, the workers (unless an executor is
+         * set) and the sockets' I/O threads. By default they're named after what they do, and all
+         * but the I/O threads are daemons, so an open transport keeps the JVM running.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder threadFactory(@Nonnull ThreadFactory factory) {
+            mThreadFactory = factory;
+            return this;
+        }
+
+        /**
+         * Runs the tasks of browsers and publishers on <code>executor</code>, instead of a worker
+         * pool of the runtime's own. Each browser and publisher runs one task at a time, so the
+         * executor doesn't need to be bounded, e.g. one that starts a virtual thread per task.
+         * The runtime never shuts the executor down.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder executor(@Nonnull Executor executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the most threads in the runtime's own worker pool. Has no effect if an executor is
+         * set. Default is <code>DEFAULT_MAX_WORKERS</code>.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder maxWorkers(int workers) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("workers must be positive");
+            }
+            mMaxWorkers = workers;
+            return this;
+        }
+
+        public ChirpRuntime build() {
+            return new ChirpRuntime(this);
+        }
+
+    }
+
+    private ChirpRuntime(Builder builder) {
+        mThreadFactory = builder.mThreadFactory;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                return ChirpRuntime.this.newThread(r, "ChirpTimer", true);
+            }
+        });
+        mTimer.setRemoveOnCancelPolicy(true);
+        if (builder.mExecutor != null) {
+            mWorkers = builder.mExecutor;
+            mOwnWorkers = null;
+        } else {
+            final AtomicInteger count = new AtomicInteger();
+            mOwnWorkers = new ThreadPoolExecutor(builder.mMaxWorkers, builder.mMaxWorkers,
+                    WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@Nonnull Runnable r) {
+                            return ChirpRuntime.this.newThread(r, "ChirpWorker-" + count.incrementAndGet(), true);
+                        }
+                    });
+            // no threads at all while there's nothing to do
+            mOwnWorkers.allowCoreThreadTimeOut(true);
+            mWorkers = mOwnWorkers;
+        }
+    }
+
+    /**
+     * @return the runtime used by <code>AndroidPlatform</code> and the plain JVM platform
+     */
+    @Nonnull
+    public static synchronized ChirpRuntime getDefault() {
+        if (sDefault == null) {
+            sDefault = new Builder().build();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the default runtime. Browsers and publishers that are already running stay on the
+     * runtime they were started with, and the previous default isn't shut down.
+     */
+    public static synchronized void setDefault(@Nonnull ChirpRuntime runtime) {
+        sDefault = runtime;
+    }
+
+    /**
+     * Creates a thread with the runtime's thread factory.
+     * @param name the thread's name, unless the factory was supplied by the application
+     * @param daemon whether the thread is a daemon, unless the factory was supplied by the
+     *               application
+     */
+    Thread newThread(@Nonnull Runnable r, @Nonnull String name, boolean daemon) {
+        if (mThreadFactory != null) {
+            return mThreadFactory.newThread(r);
+        }
+        Thread t = new Thread(r, name);
+        t.setDaemon(daemon);
+        return t;
+    }
+
+    @Override
+    public long now() {
+        return Chirp.now();
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        mWorkers.execute(task);
+    }
+
+    @Nonnull
+    @Override
+    public Cancellable schedule(@Nonnull final Runnable task, long delayMs) {
+        // the timer thread only hands the task off, so it's never held up by the work itself
+        final ScheduledFuture<?> future = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mWorkers.execute(task);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                future.cancel(false);
+            }
+        };
+    }
+
+    /**
+     * Stops the timer and the runtime's own worker pool. Anything still scheduled is dropped, so
+     * only shut down a runtime once everything started on it has been stopped.
+     */
+    public void shutdown() {
+        mTimer.shutdownNow();
+        if (mOwnWorkers != null) {
+            mOwnWorkers.shutdown();
+        }
+    }
+
+}
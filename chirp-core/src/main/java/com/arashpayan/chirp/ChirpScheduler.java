@@ -0,0 +1,42 @@
+package com.arashpayan.chirp;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The clock and timer that browsers and publishers run on. All of their work, including waiting
+ * for the next announcement, reply or expiration, is done in tasks handed to the scheduler, so
+ * none of them holds a thread of its own, and a simulated scheduler can run them in virtual time
+ * (see <code>SimulatedNetwork</code>).
+ */
+public interface ChirpScheduler {
+
+    /**
+     * A task that has been scheduled to run later.
+     */
+    interface Cancellable {
+        /**
+         * Keeps the task from running, unless it's already on its way.
+         */
+        void cancel();
+    }
+
+    /**
+     * @return the current time in milliseconds. The origin is arbitrary, so only the difference
+     * between two times means anything, and the clock never goes backwards.
+     */
+    long now();
+
+    /**
+     * Runs <code>task</code> as soon as possible, on any thread. Tasks may block briefly, e.g. to
+     * open a socket, but must not wait for other tasks.
+     */
+    void execute(@Nonnull Runnable task);
+
+    /**
+     * Runs <code>task</code> once <code>delayMs</code> milliseconds have passed on this
+     * scheduler's clock.
+     */
+    @Nonnull
+    Cancellable schedule(@Nonnull Runnable task, long delayMs);
+
+}
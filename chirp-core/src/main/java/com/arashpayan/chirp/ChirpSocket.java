@@ -0,0 +1,628 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logi;
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * Multicast transport for Chirp messages. A single <code>ChirpSocket</code> listens on both the
+ * IPv4 and IPv6 groups using non-blocking <code>DatagramChannel</code>s that share one
+ * <code>Selector</code>, so all reading and writing happens on one I/O thread. Listener callbacks
+ * happen on the I/O thread.
+ *
+ * Created by Arash Payan (https://arashpayan.com) on 6/3/16.
+ */
+public class ChirpSocket implements MessageSocket {
+
+    private static final String IPv4_GROUP = "224.0.0.224";
+    private static final String IPv6_GROUP = "FF06::224";
+    private static final int CHIRP_PORT = 6464;
+    protected static final int MAX_MSG_LENGTH = 33 * 1024;
+    /**
+     * The default size requested for <code>SO_RCVBUF</code> on each channel. Large enough to
+     * absorb a burst of announcements while the I/O thread is busy.
+     */
+    protected static final int DEFAULT_RECEIVE_BUFFER_SIZE = 256 * 1024;
+    // upper bound on packets drained from one channel per wakeup, so one busy address family
+    // can't starve the other
+    private static final int MAX_READS_PER_WAKEUP = 64;
+    // how long closing waits for the remaining copies of queued messages (e.g. goodbyes)
+    private static final long MAX_CLOSE_DRAIN_MS = 500;
+
+    private final Listener mListener;
+    private final ChirpRuntime mRuntime;
+    private volatile int mReceiveBufferSize;
+    private final ByteBuffer mReadBuf;
+    private final MessageDecoder mDecoder;
+    private final CompactMessageDecoder mCompactDecoder;
+    private byte[] mDebugArray;
+    private final ByteBuffer mSendBuf;
+    private final ArrayDeque<Outgoing> mOutgoing;
+    private Selector mSelector;
+    private DatagramChannel mChannel4;
+    private DatagramChannel mChannel6;
+    // bound to ephemeral ports, so that replies sent straight to us only reach this socket, even
+    // if other processes on the device are also listening on CHIRP_PORT
+    private DatagramChannel mUnicast4;
+    private DatagramChannel mUnicast6;
+    private InetSocketAddress mGroup4;
+    private InetSocketAddress mGroup6;
+    // the copies still to be sent of recently sent messages. Only touched by the I/O thread.
+    private final DeadlineHeap<Retransmit> mRetransmits;
+    private final HashMap<Long, Retransmit> mRetransmitsByKey;
+    // the next sequence number for each sender, keyed by the high half of its id, which is
+    // random. Only touched by the I/O thread.
+    private final HashMap<Long, int[]> mNextSeqs;
+    private final DuplicateFilter mDuplicates;
+    private Thread mIoThread;
+    private volatile boolean mIsOpen;
+
+    // a message waiting to be sent, and where to send it (null for the multicast groups)
+    private static class Outgoing {
+        final Message msg;
+        final InetSocketAddress to;
+
+        Outgoing(Message msg, InetSocketAddress to) {
+            this.msg = msg;
+            this.to = to;
+        }
+    }
+
+    // the remaining copies of a sent packet
+    private static class Retransmit {
+        final DeadlineHeap.Entry<Retransmit> entry = new DeadlineHeap.Entry<>(this);
+        final long key;
+        final InetSocketAddress to;
+        final boolean fromUnicast;
+        // for publish and remove_service messages, the sender and type whose newer messages
+        // supersede these copies. null for other messages, which only match identical packets.
+        final String type;
+        final long idHigh;
+        final long idLow;
+        byte[] packet;
+        long intervalMs;
+        int remaining;
+
+        Retransmit(long key, Message msg, boolean supersedable, InetSocketAddress to, boolean fromUnicast) {
+            this.key = key;
+            this.to = to;
+            this.fromUnicast = fromUnicast;
+            this.type = supersedable ? msg.type : null;
+            this.idHigh = msg.senderIdHigh;
+            this.idLow = msg.senderIdLow;
+        }
+
+        /**
+         * @return true if the packet that was just sent for <code>msg</code> makes these copies
+         * redundant
+         */
+        boolean isSupersededBy(Message msg, ByteBuffer packet, InetSocketAddress to, boolean fromUnicast) {
+            if (fromUnicast != this.fromUnicast || (to == null ? this.to != null : !to.equals(this.to))) {
+                return false;
+            }
+            if (type != null) {
+                return type.equals(msg.type) && msg.isFrom(idHigh, idLow);
+            }
+            return packet.remaining() == this.packet.length && packet.equals(ByteBuffer.wrap(this.packet));
+        }
+    }
+
+    protected ChirpSocket(@Nonnull Listener listener, int receiveBufferSize, @Nonnull ChirpRuntime runtime) {
+        mListener = listener;
+        mRuntime = runtime;
+        mReceiveBufferSize = receiveBufferSize;
+        mReadBuf = ByteBuffer.allocateDirect(MAX_MSG_LENGTH);
+        mDecoder = new MessageDecoder();
+        mCompactDecoder = new CompactMessageDecoder();
+        mSendBuf = ByteBuffer.allocateDirect(MAX_MSG_LENGTH);
+        mOutgoing = new ArrayDeque<>();
+        mRetransmits = new DeadlineHeap<>();
+        mRetransmitsByKey = new HashMap<>();
+        mNextSeqs = new HashMap<>();
+        mDuplicates = new DuplicateFilter();
+    }
+
+    /**
+     * Opens the IPv4 and IPv6 channels, joins the Chirp group on every multicast capable
+     * interface and starts the I/O thread, which comes from the runtime. Failing to open one of
+     * the address families is not fatal, as long as the other one succeeds.
+     * @throws IOException if neither address family could be opened
+     */
+    @Override
+    public void open() throws IOException {
+        mSelector = Selector.open();
+        try {
+            mGroup4 = new InetSocketAddress(InetAddress.getByName(IPv4_GROUP), CHIRP_PORT);
+            mChannel4 = openChannel(StandardProtocolFamily.INET, mGroup4.getAddress());
+            mUnicast4 = openUnicastChannel(StandardProtocolFamily.INET);
+        } catch (IOException e) {
+            logw("unable to open IPv4 channel", e);
+        }
+        try {
+            mGroup6 = new InetSocketAddress(InetAddress.getByName(IPv6_GROUP), CHIRP_PORT);
+            mChannel6 = openChannel(StandardProtocolFamily.INET6, mGroup6.getAddress());
+            mUnicast6 = openUnicastChannel(StandardProtocolFamily.INET6);
+        } catch (IOException e) {
+            logw("unable to open IPv6 channel", e);
+        }
+        if (mChannel4 == null && mChannel6 == null) {
+            mSelector.close();
+            throw new IOException("Unable to open an IPv4 or IPv6 channel");
+        }
+
+        mIsOpen = true;
+        mIoThread = mRuntime.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Throwable t) {
+                    logw("error in socket loop", t);
+                } finally {
+                    closeChannels();
+                    mListener.onClosed();
+                }
+            }
+        }, "ChirpSocket", false);
+        mIoThread.start();
+    }
+
+    private DatagramChannel openChannel(ProtocolFamily family, InetAddress group) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(family);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, mReceiveBufferSize);
+            channel.bind(new InetSocketAddress(CHIRP_PORT));
+
+            // join the group on every interface we have
+            Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
+            int numJoins = 0;
+            while (ifaces.hasMoreElements()) {
+                NetworkInterface ifc = ifaces.nextElement();
+                if (ifc.supportsMulticast() && !ifc.isVirtual() && ifc.isUp()) {
+                    try {
+                        channel.join(group, ifc);
+                        numJoins++;
+                    } catch (IOException ignore) {}
+                }
+            }
+            if (numJoins == 0) {
+                logi("failed to join any interfaces");
+                // TODO: https://github.com/arashpayan/chirp-android/issues/2
+            }
+
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Opens a channel on an ephemeral port, for sending queries that ask for unicast replies.
+     * @return the channel, or <code>null</code> if it couldn't be opened. Publishers will simply
+     * multicast their replies then.
+     */
+    private DatagramChannel openUnicastChannel(ProtocolFamily family) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open(family);
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_READ);
+            return channel;
+        } catch (IOException e) {
+            logw("unable to open unicast channel", e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {}
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return true if every open address family can receive unicast replies
+     */
+    @Override
+    public boolean supportsUnicast() {
+        return (mChannel4 == null || mUnicast4 != null) && (mChannel6 == null || mUnicast6 != null);
+    }
+
+    /**
+     * Changes the size requested for <code>SO_RCVBUF</code> on the channels.
+     * @param bytes the requested receive buffer size
+     */
+    @Override
+    public void setReceiveBufferSize(int bytes) {
+        mReceiveBufferSize = bytes;
+        setReceiveBufferSize(mChannel4, bytes);
+        setReceiveBufferSize(mChannel6, bytes);
+    }
+
+    private static void setReceiveBufferSize(DatagramChannel channel, int bytes) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+        } catch (IOException e) {
+            logw("unable to set receive buffer size", e);
+        }
+    }
+
+    /**
+     * Stops the I/O thread. Messages that have already been handed to <code>send</code> are
+     * written out before the channels are closed.
+     */
+    @Override
+    public void close() {
+        if (!mIsOpen) {
+            return;
+        }
+        mIsOpen = false;
+        mSelector.wakeup();
+    }
+
+    private void closeChannels() {
+        // flush anything that was queued before we were closed (e.g. goodbye messages), along
+        // with its copies, as long as that doesn't take too long
+        writeOutgoing();
+        long giveUpAt = Chirp.now() + MAX_CLOSE_DRAIN_MS;
+        DeadlineHeap.Entry<Retransmit> next;
+        while ((next = mRetransmits.peek()) != null && next.deadline <= giveUpAt) {
+            long wait = next.deadline - Chirp.now();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            writeRetransmits(Chirp.now());
+        }
+        try {
+            mSelector.close();
+        } catch (IOException ignore) {}
+        closeQuietly(mChannel4);
+        closeQuietly(mChannel6);
+        closeQuietly(mUnicast4);
+        closeQuietly(mUnicast6);
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private void loop() throws IOException {
+        while (mIsOpen) {
+            DeadlineHeap.Entry<Retransmit> next = mRetransmits.peek();
+            if (next == null) {
+                mSelector.select();
+            } else {
+                long wait = next.deadline - Chirp.now();
+                if (wait > 0) {
+                    mSelector.select(wait);
+                } else {
+                    mSelector.selectNow();
+                }
+            }
+            writeOutgoing();
+            writeRetransmits(Chirp.now());
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    readAll((DatagramChannel) key.channel());
+                }
+            }
+        }
+    }
+
+    private void readAll(DatagramChannel channel) {
+        for (int i=0; i<MAX_READS_PER_WAKEUP && mIsOpen; i++) {
+            SocketAddress source;
+            mReadBuf.clear();
+            try {
+                source = channel.receive(mReadBuf);
+            } catch (IOException e) {
+                logw("receive IOException", e);
+                return;
+            }
+            if (source == null) {
+                // drained
+                return;
+            }
+            mReadBuf.flip();
+            InetSocketAddress sourceAddress = (InetSocketAddress) source;
+            boolean ipv6 = sourceAddress.getAddress() instanceof Inet6Address;
+            ChirpStats.recordReceived(ipv6, mReadBuf.remaining());
+            Message msg = read(mReadBuf, sourceAddress.getAddress());
+            if (msg != null && msg.hasSeq && mDuplicates.isDuplicate(msg.seqIdHigh, msg.seqIdLow, ipv6, msg.seq)) {
+                // another copy of a datagram we've already handled
+                ChirpStats.recordDuplicate();
+                recycleChain(msg);
+                continue;
+            }
+            while (msg != null) {
+                // a batch decodes to a chain of messages
+                Message next = msg.batchNext;
+                msg.batchNext = null;
+                msg.port = sourceAddress.getPort();
+                mListener.onMessage(msg);
+                msg = next;
+            }
+        }
+    }
+
+    private static void recycleChain(Message msg) {
+        while (msg != null) {
+            Message next = msg.batchNext;
+            msg.batchNext = null;
+            msg.recycle();
+            msg = next;
+        }
+    }
+
+    private Message read(ByteBuffer buf, InetAddress source) {
+        if (!buf.hasRemaining()) {
+            if (Chirp.Debug) {
+                logi("read: received 0 length packet");
+            }
+            return null;
+        }
+        if (CompactMessageDecoder.isCompact(buf)) {
+            Message msg = mCompactDecoder.decode(buf, source);
+            if (msg == null) {
+                logi("returning null because compact message isn't valid: " + mCompactDecoder.getLastError());
+            } else if (Chirp.Debug) {
+                logi(Thread.currentThread().getName() + " read compact: " + msg);
+            }
+            return msg;
+        }
+
+        if (Chirp.Debug) {
+            int length = buf.remaining();
+            // Chirp.Debug can be turned on at any time, so the array is only made when it's needed
+            if (mDebugArray == null) {
+                mDebugArray = new byte[MAX_MSG_LENGTH];
+            }
+            buf.duplicate().get(mDebugArray, 0, length);
+            try {
+                String str = new String(mDebugArray, 0, length, "utf-8");
+                logi(Thread.currentThread().getName() +  " read: " + str);
+            } catch (UnsupportedEncodingException e) {
+                logi("failed to convert message to string: " + e.getMessage());
+            }
+        }
+
+        Message msg = mDecoder.decode(buf, source);
+        if (msg == null) {
+            logi("returning null because message isn't valid: " + mDecoder.getLastError());
+        }
+        return msg;
+    }
+
+    private void writeOutgoing() {
+        while (true) {
+            Outgoing out;
+            synchronized (mOutgoing) {
+                out = mOutgoing.poll();
+            }
+            if (out == null) {
+                return;
+            }
+            Message msg = out.msg;
+            // the I/O thread is the only one that touches the sequence fields of outgoing
+            // messages, so it's safe to stamp one that's shared. Datagrams sent straight to one
+            // listener are left out of the sequence, or everyone else would see gaps in it.
+            msg.hasSeq = false;
+            if (out.to == null) {
+                switch (msg.type) {
+                    case Message.MESSAGE_TYPE_PUBLISH:
+                    case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+                    case Message.MESSAGE_TYPE_PUBLISH_BATCH:
+                        msg.seq = nextSeq(msg.senderIdHigh);
+                        msg.hasSeq = true;
+                        break;
+                }
+            }
+
+            mSendBuf.clear();
+            try {
+                MessageEncoder.encode(msg, mSendBuf);
+            } catch (RuntimeException e) {
+                logw("unable to encode " + msg, e);
+                continue;
+            }
+            mSendBuf.flip();
+            boolean fromUnicast = out.to == null && msg.acceptsUnicast;
+            writePacket(mSendBuf, out.to, fromUnicast);
+            scheduleCopies(msg, mSendBuf, out.to, fromUnicast, SendRedundancy.forType(msg.type));
+        }
+    }
+
+    private int nextSeq(long senderIdHigh) {
+        int[] next = mNextSeqs.get(senderIdHigh);
+        if (next == null) {
+            next = new int[1];
+            mNextSeqs.put(senderIdHigh, next);
+        }
+        int seq = next[0];
+        next[0] = (seq + 1) & Integer.MAX_VALUE;
+        return seq;
+    }
+
+    /**
+     * @return the fraction of datagrams from other senders that never arrived, between 0 and 1
+     * @see DuplicateFilter
+     */
+    @Override
+    public double getEstimatedPacketLoss() {
+        return mDuplicates.estimatedLoss();
+    }
+
+    /**
+     * Schedules the remaining copies of a packet that was just sent. If copies of the same packet
+     * are already scheduled, they're pushed back instead, so sending a message again while its
+     * copies are pending doesn't double them up. The same goes for a publisher's announcements
+     * and goodbyes, which carry a new sequence number every time they're sent: the new packet
+     * takes the place of the older one's copies.
+     */
+    private void scheduleCopies(Message msg, ByteBuffer packet, InetSocketAddress to, boolean fromUnicast, SendRedundancy redundancy) {
+        if (redundancy.copies < 2) {
+            return;
+        }
+        packet.rewind();
+        boolean supersedable = msg.hasSeq && !Message.MESSAGE_TYPE_PUBLISH_BATCH.equals(msg.type);
+        long key;
+        if (supersedable) {
+            key = msg.senderIdHigh * 31 + msg.senderIdLow;
+            key = key * 31 + msg.type.hashCode();
+            key = key * 31 + (to == null ? (fromUnicast ? 1 : 0) : to.hashCode());
+        } else {
+            key = digest(packet);
+        }
+        Retransmit retransmit = mRetransmitsByKey.get(key);
+        if (retransmit == null || !retransmit.isSupersededBy(msg, packet, to, fromUnicast)) {
+            retransmit = new Retransmit(key, msg, supersedable, to, fromUnicast);
+            if (!mRetransmitsByKey.containsKey(key)) {
+                mRetransmitsByKey.put(key, retransmit);
+            }
+        }
+        if (retransmit.packet == null || supersedable) {
+            retransmit.packet = new byte[packet.remaining()];
+            packet.get(retransmit.packet);
+        }
+        retransmit.intervalMs = redundancy.intervalMs;
+        retransmit.remaining = redundancy.copies - 1;
+        mRetransmits.schedule(retransmit.entry, Chirp.now() + retransmit.intervalMs);
+    }
+
+    private void writeRetransmits(long now) {
+        DeadlineHeap.Entry<Retransmit> entry;
+        while ((entry = mRetransmits.peek()) != null && entry.deadline <= now) {
+            Retransmit retransmit = entry.value;
+            mSendBuf.clear();
+            mSendBuf.put(retransmit.packet);
+            mSendBuf.flip();
+            writePacket(mSendBuf, retransmit.to, retransmit.fromUnicast);
+            if (--retransmit.remaining > 0) {
+                mRetransmits.schedule(entry, now + retransmit.intervalMs);
+            } else {
+                mRetransmits.cancel(entry);
+                if (mRetransmitsByKey.get(retransmit.key) == retransmit) {
+                    mRetransmitsByKey.remove(retransmit.key);
+                }
+            }
+        }
+    }
+
+    private static long digest(ByteBuffer buf) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=buf.position(); i<buf.limit(); i++) {
+            hash = (hash ^ (buf.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the packet between <code>packet</code>'s position and limit to its destination.
+     * @param to the destination, or <code>null</code> for the multicast groups
+     * @param fromUnicast true to send to the groups from the unicast channels
+     */
+    private void writePacket(ByteBuffer packet, InetSocketAddress to, boolean fromUnicast) {
+        if (to != null) {
+            write(to.getAddress() instanceof Inet6Address ? mChannel6 : mChannel4, to, packet);
+        } else if (fromUnicast) {
+            // send from the unicast channels, so the replies come back to them
+            write(mUnicast4, mGroup4, packet.duplicate());
+            write(mUnicast6, mGroup6, packet.duplicate());
+        } else {
+            write(mChannel4, mGroup4, packet.duplicate());
+            write(mChannel6, mGroup6, packet.duplicate());
+        }
+    }
+
+    private void write(DatagramChannel channel, InetSocketAddress group, ByteBuffer packet) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            int sent = channel.send(packet, group);
+            if (sent > 0) {
+                ChirpStats.recordSent(group.getAddress() instanceof Inet6Address, sent);
+            } else if (Chirp.Debug) {
+                logi("send buffer full, dropped packet to " + group);
+            }
+        } catch (IOException e) {
+            logw("send IOException", e);
+        }
+    }
+
+    private void enqueue(Outgoing out) {
+        if (!mIsOpen) {
+            logi("dropping message because the socket is closed");
+            return;
+        }
+        synchronized (mOutgoing) {
+            mOutgoing.offer(out);
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Queues a message to be sent to the IPv4 and IPv6 groups. The message is encoded on the I/O
+     * thread, so it must not be modified after being passed in. A message with
+     * <code>acceptsUnicast</code> set is sent from the unicast channels, so it should only be set
+     * if <code>supportsUnicast()</code> is true.
+     * @param msg the message to send
+     */
+    @Override
+    public void send(@Nonnull Message msg) {
+        send(msg, null);
+    }
+
+    /**
+     * Queues a message to be sent straight to one address, rather than to the multicast groups.
+     * Any extra copies called for by <code>SendRedundancy</code> are sent later from the I/O
+     * thread, so this never blocks.
+     * @param msg the message to send
+     * @param to the destination, or <code>null</code> for the multicast groups
+     */
+    @Override
+    public void send(@Nonnull Message msg, InetSocketAddress to) {
+        // The actual write happens on the I/O thread, so an interrupt of the calling thread can't
+        // close the channel out from under us.
+        enqueue(new Outgoing(msg, to));
+    }
+}
@@ -0,0 +1,485 @@
+package com.arashpayan.chirp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * Counters that show how Chirp is behaving in the field: the traffic the shared socket sends and
+ * receives, the datagrams it throws away and why, how busy browsers are, and how long it takes
+ * for services to show up. The counters cover every browser and publisher in the process, and
+ * count up from the moment the process starts.
+ *
+ * Read the counters with <code>snapshot()</code>, or register a <code>Sink</code> to have a
+ * snapshot delivered periodically:
+ * <pre>
+ *     ChirpStats.addSink(new ChirpStats.Sink() {
+ *         public void onStats(ChirpStats.Snapshot s) {
+ *             analytics.log("chirp_loss", s.getPacketsLost());
+ *         }
+ *     }, 60_000);
+ * </pre>
+ *
+ * The counters are striped, so updating them from the receive path costs next to nothing, even
+ * with several threads updating the same counter.
+ */
+public final class ChirpStats {
+
+    /**
+     * Receives snapshots of the counters. Called on one of the default
+     * <code>ChirpRuntime</code>'s workers, which browsers and publishers share, so implementations
+     * should hand off anything slow, like network I/O.
+     */
+    public interface Sink {
+        void onStats(@Nonnull Snapshot snapshot);
+    }
+
+    private static final Counter sPacketsReceivedV4 = new Counter();
+    private static final Counter sPacketsReceivedV6 = new Counter();
+    private static final Counter sBytesReceivedV4 = new Counter();
+    private static final Counter sBytesReceivedV6 = new Counter();
+    private static final Counter sPacketsSentV4 = new Counter();
+    private static final Counter sPacketsSentV6 = new Counter();
+    private static final Counter sBytesSentV4 = new Counter();
+    private static final Counter sBytesSentV6 = new Counter();
+    private static final Counter sParseFailures = new Counter();
+    private static final Counter sDuplicates = new Counter();
+    private static final Counter sMessagesDropped = new Counter();
+    private static final Counter sAnnouncementsSent = new Counter();
+    private static final Counter sRepliesSent = new Counter();
+    private static final Counter sQueriesSuppressed = new Counter();
+    // keyed by the reason Message.isValid() gave
+    private static final ConcurrentHashMap<String, Counter> sRejections = new ConcurrentHashMap<>();
+    private static final Latency sCallbackLatency = new Latency();
+    private static final Latency sTimeToFirstDiscovery = new Latency();
+    // browsers report their queue depth and number of known services when a snapshot is taken
+    private static final CopyOnWriteArrayList<ChirpBrowser> sBrowsers = new CopyOnWriteArrayList<>();
+    private static final ConcurrentHashMap<Sink, SinkTask> sSinks = new ConcurrentHashMap<>();
+
+    private ChirpStats() {
+    }
+
+    // delivers snapshots to a sink, rescheduling itself each time. Cancelled under sSinks.
+    private static class SinkTask implements Runnable {
+        final Sink sink;
+        final long intervalMs;
+        final ChirpRuntime runtime;
+        ChirpScheduler.Cancellable timer;
+        boolean cancelled;
+
+        SinkTask(Sink sink, long intervalMs, ChirpRuntime runtime) {
+            this.sink = sink;
+            this.intervalMs = intervalMs;
+            this.runtime = runtime;
+        }
+
+        @Override
+        public void run() {
+            synchronized (sSinks) {
+                if (cancelled) {
+                    return;
+                }
+                timer = runtime.schedule(this, intervalMs);
+            }
+            try {
+                sink.onStats(snapshot());
+            } catch (Throwable t) {
+                logw("stats sink failed", t);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            timer.cancel();
+        }
+    }
+
+    /**
+     * A counter spread over several cache lines, each updated by a different set of threads, so
+     * threads updating it at the same time don't fight over one line. Reading it adds up the
+     * stripes, which is only done for snapshots. (<code>LongAdder</code> does the same, but needs
+     * Java 8.)
+     */
+    private static final class Counter {
+        // a long is 8 bytes, so each stripe gets a 64 byte cache line of its own
+        private static final int PADDING = 8;
+        // a power of two, at least the number of processors up to 16
+        private static final int STRIPES = Math.min(16,
+                Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 2) - 1) << 1);
+
+        private final AtomicLongArray mStripes = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long x) {
+            // thread ids are handed out in sequence, so they spread over the stripes as they are
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            mStripes.addAndGet(stripe * PADDING, x);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i=0; i<STRIPES; i++) {
+                sum += mStripes.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A count, total and maximum of durations, in nanoseconds.
+     */
+    private static class Latency {
+        final Counter count = new Counter();
+        final Counter totalNanos = new Counter();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+    }
+
+    /**
+     * The values of every counter at one point in time.
+     */
+    public static final class Snapshot {
+        private final long mTimestamp;
+        private final long mPacketsReceivedV4;
+        private final long mPacketsReceivedV6;
+        private final long mBytesReceivedV4;
+        private final long mBytesReceivedV6;
+        private final long mPacketsSentV4;
+        private final long mPacketsSentV6;
+        private final long mBytesSentV4;
+        private final long mBytesSentV6;
+        private final long mParseFailures;
+        private final Map<String, Long> mRejections;
+        private final long mDuplicates;
+        private final double mEstimatedPacketLoss;
+        private final long mMessagesDropped;
+        private final int mQueueDepth;
+        private final int mRegistrySize;
+        private final long mAnnouncementsSent;
+        private final long mRepliesSent;
+        private final long mQueriesSuppressed;
+        private final long mCallbackCount;
+        private final long mCallbackLatencyTotalNanos;
+        private final long mCallbackLatencyMaxNanos;
+        private final long mFirstDiscoveryCount;
+        private final long mFirstDiscoveryTotalNanos;
+        private final long mFirstDiscoveryMaxNanos;
+
+        private Snapshot() {
+            mTimestamp = System.currentTimeMillis();
+            mPacketsReceivedV4 = sPacketsReceivedV4.sum();
+            mPacketsReceivedV6 = sPacketsReceivedV6.sum();
+            mBytesReceivedV4 = sBytesReceivedV4.sum();
+            mBytesReceivedV6 = sBytesReceivedV6.sum();
+            mPacketsSentV4 = sPacketsSentV4.sum();
+            mPacketsSentV6 = sPacketsSentV6.sum();
+            mBytesSentV4 = sBytesSentV4.sum();
+            mBytesSentV6 = sBytesSentV6.sum();
+            mParseFailures = sParseFailures.sum();
+            HashMap<String, Long> rejections = new HashMap<>();
+            for (Map.Entry<String, Counter> e : sRejections.entrySet()) {
+                rejections.put(e.getKey(), e.getValue().sum());
+            }
+            mRejections = Collections.unmodifiableMap(rejections);
+            mDuplicates = sDuplicates.sum();
+            mEstimatedPacketLoss = ChirpTransport.getEstimatedPacketLoss();
+            mMessagesDropped = sMessagesDropped.sum();
+            int depth = 0;
+            int services = 0;
+            for (ChirpBrowser browser : sBrowsers) {
+                depth += browser.getQueueDepth();
+                services += browser.getServiceCount();
+            }
+            mQueueDepth = depth;
+            mRegistrySize = services;
+            mAnnouncementsSent = sAnnouncementsSent.sum();
+            mRepliesSent = sRepliesSent.sum();
+            mQueriesSuppressed = sQueriesSuppressed.sum();
+            mCallbackCount = sCallbackLatency.count.sum();
+            mCallbackLatencyTotalNanos = sCallbackLatency.totalNanos.sum();
+            mCallbackLatencyMaxNanos = sCallbackLatency.maxNanos.get();
+            mFirstDiscoveryCount = sTimeToFirstDiscovery.count.sum();
+            mFirstDiscoveryTotalNanos = sTimeToFirstDiscovery.totalNanos.sum();
+            mFirstDiscoveryMaxNanos = sTimeToFirstDiscovery.maxNanos.get();
+        }
+
+        /** @return when the snapshot was taken, in milliseconds since the epoch */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /** @return datagrams received over IPv4, including ones that were thrown away */
+        public long getPacketsReceivedV4() {
+            return mPacketsReceivedV4;
+        }
+
+        /** @return datagrams received over IPv6, including ones that were thrown away */
+        public long getPacketsReceivedV6() {
+            return mPacketsReceivedV6;
+        }
+
+        public long getBytesReceivedV4() {
+            return mBytesReceivedV4;
+        }
+
+        public long getBytesReceivedV6() {
+            return mBytesReceivedV6;
+        }
+
+        /** @return datagrams sent over IPv4, including redundant copies */
+        public long getPacketsSentV4() {
+            return mPacketsSentV4;
+        }
+
+        /** @return datagrams sent over IPv6, including redundant copies */
+        public long getPacketsSentV6() {
+            return mPacketsSentV6;
+        }
+
+        public long getBytesSentV4() {
+            return mBytesSentV4;
+        }
+
+        public long getBytesSentV6() {
+            return mBytesSentV6;
+        }
+
+        /** @return datagrams that weren't well formed Chirp messages */
+        public long getParseFailures() {
+            return mParseFailures;
+        }
+
+        /** @return the number of well formed messages that were rejected, by reason */
+        @Nonnull
+        public Map<String, Long> getRejections() {
+            return mRejections;
+        }
+
+        /** @return repeated copies of datagrams that were dropped on arrival */
+        public long getDuplicates() {
+            return mDuplicates;
+        }
+
+        /** @see Chirp#getEstimatedPacketLoss() */
+        public double getEstimatedPacketLoss() {
+            return mEstimatedPacketLoss;
+        }
+
+        /**
+         * @return messages browsers dropped or coalesced because too many were waiting to be
+         * processed
+         */
+        public long getMessagesDropped() {
+            return mMessagesDropped;
+        }
+
+        /** @return the number of messages waiting to be processed, across all running browsers */
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        /** @return the number of services known to all running browsers */
+        public int getRegistrySize() {
+            return mRegistrySize;
+        }
+
+        /** @return full announcements multicast by publishers, periodic ones included */
+        public long getAnnouncementsSent() {
+            return mAnnouncementsSent;
+        }
+
+        /** @return replies publishers sent to queries */
+        public long getRepliesSent() {
+            return mRepliesSent;
+        }
+
+        /** @return queries publishers didn't need to answer, because they were known answers */
+        public long getQueriesSuppressed() {
+            return mQueriesSuppressed;
+        }
+
+        /** @return listener callbacks delivered */
+        public long getCallbackCount() {
+            return mCallbackCount;
+        }
+
+        /**
+         * @return the average time between a browser posting a listener callback and the
+         * callback running, in milliseconds
+         */
+        public double getAverageCallbackLatencyMs() {
+            return mCallbackCount == 0 ? 0 : mCallbackLatencyTotalNanos / 1e6 / mCallbackCount;
+        }
+
+        /** @return the longest a listener callback has waited to run, in milliseconds */
+        public double getMaxCallbackLatencyMs() {
+            return mCallbackLatencyMaxNanos / 1e6;
+        }
+
+        /** @return the number of browsers that have discovered at least one service */
+        public long getFirstDiscoveryCount() {
+            return mFirstDiscoveryCount;
+        }
+
+        /**
+         * @return the average time from a browser starting to it discovering its first service,
+         * in milliseconds
+         */
+        public double getAverageTimeToFirstDiscoveryMs() {
+            return mFirstDiscoveryCount == 0 ? 0 : mFirstDiscoveryTotalNanos / 1e6 / mFirstDiscoveryCount;
+        }
+
+        /** @return the longest it has taken a browser to discover its first service */
+        public double getMaxTimeToFirstDiscoveryMs() {
+            return mFirstDiscoveryMaxNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return "ChirpStats{" +
+                    "received=" + mPacketsReceivedV4 + "/" + mPacketsReceivedV6 +
+                    ", sent=" + mPacketsSentV4 + "/" + mPacketsSentV6 +
+                    ", parseFailures=" + mParseFailures +
+                    ", rejections=" + mRejections +
+                    ", duplicates=" + mDuplicates +
+                    ", loss=" + mEstimatedPacketLoss +
+                    ", dropped=" + mMessagesDropped +
+                    ", queueDepth=" + mQueueDepth +
+                    ", registrySize=" + mRegistrySize +
+                    ", callbackLatencyMs=" + getAverageCallbackLatencyMs() +
+                    ", firstDiscoveryMs=" + getAverageTimeToFirstDiscoveryMs() +
+                    '}';
+        }
+    }
+
+    /**
+     * @return the current value of every counter
+     */
+    @Nonnull
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * Delivers a snapshot to the sink every <code>intervalMs</code>, until it's removed. Adding a
+     * sink that's already registered changes its interval.
+     * @param sink receives the snapshots
+     * @param intervalMs the time between snapshots
+     */
+    public static void addSink(@Nonnull final Sink sink, long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive");
+        }
+        synchronized (sSinks) {
+            removeSink(sink);
+            SinkTask task = new SinkTask(sink, intervalMs, ChirpRuntime.getDefault());
+            task.timer = task.runtime.schedule(task, intervalMs);
+            sSinks.put(sink, task);
+        }
+    }
+
+    /**
+     * Stops delivering snapshots to the sink.
+     */
+    public static void removeSink(@Nonnull Sink sink) {
+        synchronized (sSinks) {
+            SinkTask task = sSinks.remove(sink);
+            if (task != null) {
+                task.cancel();
+            }
+        }
+    }
+
+    static void recordReceived(boolean ipv6, int bytes) {
+        if (ipv6) {
+            sPacketsReceivedV6.increment();
+            sBytesReceivedV6.add(bytes);
+        } else {
+            sPacketsReceivedV4.increment();
+            sBytesReceivedV4.add(bytes);
+        }
+    }
+
+    static void recordSent(boolean ipv6, int bytes) {
+        if (ipv6) {
+            sPacketsSentV6.increment();
+            sBytesSentV6.add(bytes);
+        } else {
+            sPacketsSentV4.increment();
+            sBytesSentV4.add(bytes);
+        }
+    }
+
+    static void recordParseFailure() {
+        sParseFailures.increment();
+    }
+
+    static void recordRejected(@Nonnull ChirpError reason) {
+        String key = reason.toString();
+        Counter count = sRejections.get(key);
+        if (count == null) {
+            Counter newCount = new Counter();
+            count = sRejections.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.increment();
+    }
+
+    static void recordDuplicate() {
+        sDuplicates.increment();
+    }
+
+    static void recordMessageDropped() {
+        sMessagesDropped.increment();
+    }
+
+    static void recordAnnouncement() {
+        sAnnouncementsSent.increment();
+    }
+
+    static void recordReply() {
+        sRepliesSent.increment();
+    }
+
+    static void recordQuerySuppressed() {
+        sQueriesSuppressed.increment();
+    }
+
+    static void recordCallbackLatency(long nanos) {
+        sCallbackLatency.record(nanos);
+    }
+
+    static void recordTimeToFirstDiscovery(long nanos) {
+        sTimeToFirstDiscovery.record(nanos);
+    }
+
+    static void addBrowser(@Nonnull ChirpBrowser browser) {
+        sBrowsers.addIfAbsent(browser);
+    }
+
+    static void removeBrowser(@Nonnull ChirpBrowser browser) {
+        sBrowsers.remove(browser);
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logi;
+
+/**
+ * A platform's connection to the Chirp multicast groups. Every <code>ChirpBrowser</code> and
+ * <code>ChirpPublisher</code> started with the same <code>ChirpPlatform</code> attaches to the same
+ * transport, so no matter how many of them are running, there's one <code>ChirpSocket</code>, one
+ * I/O thread and one multicast lock, held through the platform. Each datagram is read and decoded
+ * once, then handed to every attached subscriber. The real platforms are process-wide singletons,
+ * so in practice there's one transport per process, except in a <code>SimulatedNetwork</code>,
+ * where every node has its own.
+ *
+ * The transport is reference counted. It's opened when the first subscriber attaches and closed
+ * once the last one detaches.
+ */
+class ChirpTransport implements MessageSocket.Listener {
+
+    /**
+     * Receives every valid message read by the transport, including the ones sent by this
+     * process, so subscribers need to filter out their own messages. Callbacks happen on the
+     * socket's I/O thread. The message is recycled when the callback returns, so a subscriber that wants to
+     * hold on to it must call <code>retain()</code> first, and <code>recycle()</code> once it's
+     * done.
+     */
+    interface Subscriber {
+        void onMessage(@Nonnull Message msg);
+    }
+
+    private static final Object sLock = new Object();
+    // the open transports, by the platform they were opened with
+    private static final IdentityHashMap<ChirpPlatform, ChirpTransport> sOpen = new IdentityHashMap<>();
+
+    private final MessageSocket mSocket;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers;
+    private final ChirpPlatform mPlatform;
+    private int mReceiveBufferSize;
+
+    private ChirpTransport(ChirpPlatform platform, int receiveBufferSize) {
+        mPlatform = platform;
+        mSubscribers = new CopyOnWriteArrayList<>();
+        mReceiveBufferSize = receiveBufferSize;
+        if (platform instanceof MessageSocket.Factory) {
+            mSocket = ((MessageSocket.Factory) platform).createSocket(this, receiveBufferSize);
+        } else {
+            // the I/O thread comes from the platform's runtime, if it has one
+            ChirpScheduler scheduler = platform.getScheduler();
+            ChirpRuntime runtime = scheduler instanceof ChirpRuntime ? (ChirpRuntime) scheduler : ChirpRuntime.getDefault();
+            mSocket = new ChirpSocket(this, receiveBufferSize, runtime);
+        }
+    }
+
+    /**
+     * Attaches a subscriber to the platform's transport, opening it if necessary. This does network
+     * I/O the first time it's called, so it shouldn't be called from the main thread.
+     * @param platform the platform whose transport to attach to
+     * @param subscriber receives incoming messages until it's detached
+     * @param receiveBufferSize the <code>SO_RCVBUF</code> size the subscriber would like. The
+     *                          transport uses the largest size requested by any subscriber.
+     * @return the platform's transport
+     * @throws IOException if the transport had to be opened, and that failed
+     */
+    static ChirpTransport attach(@Nonnull ChirpPlatform platform, @Nonnull Subscriber subscriber, int receiveBufferSize) throws IOException {
+        synchronized (sLock) {
+            ChirpTransport transport = sOpen.get(platform);
+            if (transport == null) {
+                transport = new ChirpTransport(platform, receiveBufferSize);
+                transport.open();
+                sOpen.put(platform, transport);
+            } else if (receiveBufferSize > transport.mReceiveBufferSize) {
+                transport.mReceiveBufferSize = receiveBufferSize;
+                transport.mSocket.setReceiveBufferSize(receiveBufferSize);
+            }
+            transport.mSubscribers.add(subscriber);
+            return transport;
+        }
+    }
+
+    /**
+     * @return the estimated packet loss on the network, between 0 and 1, averaged over the open
+     * transports, or 0 if none are open
+     */
+    static double getEstimatedPacketLoss() {
+        synchronized (sLock) {
+            if (sOpen.isEmpty()) {
+                return 0;
+            }
+            double loss = 0;
+            for (ChirpTransport transport : sOpen.values()) {
+                loss += transport.mSocket.getEstimatedPacketLoss();
+            }
+            return loss / sOpen.size();
+        }
+    }
+
+    /**
+     * Detaches a subscriber. When the last subscriber has detached, the transport finishes sending
+     * any queued messages, closes the socket and releases the multicast lock.
+     * @param subscriber a subscriber previously passed to <code>attach</code>
+     */
+    void detach(@Nonnull Subscriber subscriber) {
+        synchronized (sLock) {
+            if (!mSubscribers.remove(subscriber)) {
+                return;
+            }
+            if (mSubscribers.isEmpty()) {
+                if (Chirp.Debug) {
+                    logi("last subscriber detached, closing transport");
+                }
+                if (sOpen.get(mPlatform) == this) {
+                    sOpen.remove(mPlatform);
+                }
+                mSocket.close();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        mPlatform.acquireMulticastLock();
+        try {
+            mSocket.open();
+        } catch (IOException e) {
+            mPlatform.releaseMulticastLock();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a message to be sent to the IPv4 and IPv6 groups.
+     * @see MessageSocket#send(Message)
+     */
+    void send(@Nonnull Message msg) {
+        mSocket.send(msg);
+    }
+
+    /**
+     * Queues a message to be sent straight to one address.
+     * @see MessageSocket#send(Message, InetSocketAddress)
+     */
+    void send(@Nonnull Message msg, @Nonnull InetSocketAddress to) {
+        mSocket.send(msg, to);
+    }
+
+    /**
+     * @see MessageSocket#supportsUnicast()
+     */
+    boolean supportsUnicast() {
+        return mSocket.supportsUnicast();
+    }
+
+    @Override
+    public void onMessage(@Nonnull Message msg) {
+        for (Subscriber s : mSubscribers) {
+            s.onMessage(msg);
+        }
+        msg.recycle();
+    }
+
+    @Override
+    public void onClosed() {
+        // everything queued has been written, so it's safe to let go of the lock
+        mPlatform.releaseMulticastLock();
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.arashpayan.chirp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.arashpayan.chirp.CompactMessageEncoder.FLAG_ACCEPTS_COMPACT;
+import static com.arashpayan.chirp.CompactMessageEncoder.FLAG_ACCEPTS_DIGESTS;
+import static com.arashpayan.chirp.CompactMessageEncoder.FLAG_HAS_DIGEST;
+import static com.arashpayan.chirp.CompactMessageEncoder.FLAG_HAS_SEQ;
+import static com.arashpayan.chirp.CompactMessageEncoder.MAGIC;
+import static com.arashpayan.chirp.CompactMessageEncoder.TYPE_NEW_LISTENER;
+import static com.arashpayan.chirp.CompactMessageEncoder.TYPE_PAYLOAD_REQUEST;
+import static com.arashpayan.chirp.CompactMessageEncoder.TYPE_PUBLISH;
+import static com.arashpayan.chirp.CompactMessageEncoder.TYPE_REMOVE_SERVICE;
+import static com.arashpayan.chirp.CompactMessageEncoder.VERSION;
+
+/**
+ * Decodes datagrams in the compact binary format described in {@link CompactMessageEncoder}.
+ * Like the JSON decoder, service names are interned and the payload is kept as raw bytes until
+ * someone asks for it.
+ *
+ * A decoder keeps state between calls and must only be used by one thread at a time.
+ */
+class CompactMessageDecoder {
+
+    private static final int HEADER_LENGTH = 4 + 16 + 1;
+    private static final int MAX_SERVICE_NAME_BYTES = 64;
+
+    private static final ChirpError ERR_TRUNCATED = new ChirpError("truncated compact message");
+    private static final ChirpError ERR_VERSION = new ChirpError("unsupported compact message version");
+    private static final ChirpError ERR_SERVICE_NAME = new ChirpError("invalid 'service_name'");
+    private static final ChirpError ERR_TYPE = new ChirpError("unknown message type");
+    private static final ChirpError ERR_SEQ = new ChirpError("invalid 'seq'");
+
+    private final SymbolTable mServiceNames = new SymbolTable(256);
+    private ChirpError mLastError;
+
+    /**
+     * @return true if the datagram between <code>buf</code>'s position and limit is in the
+     * compact format, rather than JSON
+     */
+    static boolean isCompact(@Nonnull ByteBuffer buf) {
+        return buf.hasRemaining() && buf.get(buf.position()) == MAGIC;
+    }
+
+    /**
+     * Decodes the datagram between <code>buf</code>'s position and limit. The buffer's position
+     * isn't modified.
+     * @return a pooled <code>Message</code>, or <code>null</code> if the datagram was malformed or
+     * invalid. In that case <code>getLastError()</code> describes the problem.
+     */
+    @Nullable
+    Message decode(@Nonnull ByteBuffer buf, InetAddress source) {
+        mLastError = null;
+        int pos = buf.position();
+        int limit = buf.limit();
+        if (limit - pos < HEADER_LENGTH) {
+            mLastError = ERR_TRUNCATED;
+            ChirpStats.recordParseFailure();
+            return null;
+        }
+        if (buf.get(pos + 1) != VERSION) {
+            mLastError = ERR_VERSION;
+            ChirpStats.recordParseFailure();
+            return null;
+        }
+
+        String type;
+        switch (buf.get(pos + 2)) {
+            case TYPE_NEW_LISTENER:
+                type = Message.MESSAGE_TYPE_NEW_LISTENER;
+                break;
+            case TYPE_PUBLISH:
+                type = Message.MESSAGE_TYPE_PUBLISH;
+                break;
+            case TYPE_REMOVE_SERVICE:
+                type = Message.MESSAGE_TYPE_REMOVE_SERVICE;
+                break;
+            case TYPE_PAYLOAD_REQUEST:
+                type = Message.MESSAGE_TYPE_PAYLOAD_REQUEST;
+                break;
+            default:
+                mLastError = ERR_TYPE;
+                ChirpStats.recordParseFailure();
+                return null;
+        }
+
+        Message msg = Message.obtain();
+        msg.type = type;
+        msg.compact = true;
+        int flags = buf.get(pos + 3);
+        msg.acceptsCompact = (flags & FLAG_ACCEPTS_COMPACT) != 0;
+        msg.acceptsDigests = (flags & FLAG_ACCEPTS_DIGESTS) != 0;
+        msg.senderIdHigh = buf.getLong(pos + 4);
+        msg.senderIdLow = buf.getLong(pos + 12);
+        msg.hasSenderId = true;
+        pos += 20;
+
+        int nameLength = buf.get(pos++) & 0xFF;
+        if (nameLength > MAX_SERVICE_NAME_BYTES) {
+            return fail(msg, ERR_SERVICE_NAME);
+        }
+        if (limit - pos < nameLength) {
+            return fail(msg, ERR_TRUNCATED);
+        }
+        if (nameLength == 1 && buf.get(pos) == '*') {
+            msg.serviceName = "*";
+        } else if (nameLength > 0) {
+            for (int i=pos; i<pos+nameLength; i++) {
+                if (!Chirp.isValidServiceNameChar(buf.get(i))) {
+                    return fail(msg, ERR_SERVICE_NAME);
+                }
+            }
+            msg.serviceName = mServiceNames.intern(buf, pos, nameLength);
+        }
+        pos += nameLength;
+
+        if (type.equals(Message.MESSAGE_TYPE_PUBLISH)) {
+            if (limit - pos < 6) {
+                return fail(msg, ERR_TRUNCATED);
+            }
+            msg.ttl = buf.getInt(pos);
+            int payloadLength = buf.getShort(pos + 4) & 0xFFFF;
+            pos += 6;
+            if (limit - pos < payloadLength) {
+                return fail(msg, ERR_TRUNCATED);
+            }
+            if (payloadLength > 0) {
+                if (msg.payloadBytes == null || msg.payloadBytes.length < payloadLength) {
+                    msg.payloadBytes = new byte[Math.max(payloadLength, 256)];
+                }
+                ByteBuffer payload = buf.duplicate();
+                payload.position(pos);
+                payload.get(msg.payloadBytes, 0, payloadLength);
+            }
+            msg.payloadLength = payloadLength;
+            msg.payload = null;
+            pos += payloadLength;
+        }
+        if ((flags & FLAG_HAS_DIGEST) != 0) {
+            if (limit - pos < 8) {
+                return fail(msg, ERR_TRUNCATED);
+            }
+            msg.payloadDigest = buf.getLong(pos);
+            msg.hasPayloadDigest = true;
+            pos += 8;
+        }
+        if ((flags & FLAG_HAS_SEQ) != 0) {
+            if (limit - pos < 4) {
+                return fail(msg, ERR_TRUNCATED);
+            }
+            msg.seq = buf.getInt(pos);
+            if (msg.seq < 0) {
+                return fail(msg, ERR_SEQ);
+            }
+            msg.hasSeq = true;
+            msg.seqIdHigh = msg.senderIdHigh;
+            msg.seqIdLow = msg.senderIdLow;
+        }
+
+        ChirpError err = msg.isValid();
+        if (err != null) {
+            ChirpStats.recordRejected(err);
+            mLastError = err;
+            msg.recycle();
+            return null;
+        }
+
+        msg.setAddress(source);
+        return msg;
+    }
+
+    /**
+     * @return the reason the last call to <code>decode</code> returned <code>null</code>
+     */
+    ChirpError getLastError() {
+        return mLastError;
+    }
+
+    private Message fail(Message msg, ChirpError error) {
+        mLastError = error;
+        ChirpStats.recordParseFailure();
+        msg.recycle();
+        return null;
+    }
+
+}
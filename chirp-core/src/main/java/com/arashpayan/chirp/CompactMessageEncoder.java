@@ -0,0 +1,109 @@
+package com.arashpayan.chirp;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes outgoing messages in the compact binary format, an alternative to JSON for networks where
+ * every listener understands it. All numbers are big-endian:
+ * <pre>
+ *     byte      magic (0xCB), which can never start a JSON datagram
+ *     byte      version (1)
+ *     byte      type: 1 = new_listener, 2 = publish, 3 = remove_service, 4 = payload_request
+ *     byte      flags: 0x01 = the sender accepts compact messages
+ *                      0x02 = the sender caches payloads by digest
+ *                      0x04 = a payload digest is included
+ *                      0x08 = a sequence number is included
+ *     16 bytes  sender id
+ *     byte      service name length, followed by the ASCII service name
+ *     int32     ttl (publish only)
+ *     uint16    payload length, followed by the payload as UTF-8 JSON (publish only)
+ *     int64     payload digest (publish and payload_request, when flagged)
+ *     int32     sequence number (publish and remove_service, when flagged)
+ * </pre>
+ * Later revisions of version 1 may only append fields, and decoders ignore any bytes they don't
+ * know about. A publish message is 26 bytes plus the service name and payload, compared to about
+ * 100 bytes of JSON.
+ */
+class CompactMessageEncoder {
+
+    static final byte MAGIC = (byte) 0xCB;
+    static final byte VERSION = 1;
+    static final byte TYPE_NEW_LISTENER = 1;
+    static final byte TYPE_PUBLISH = 2;
+    static final byte TYPE_REMOVE_SERVICE = 3;
+    static final byte TYPE_PAYLOAD_REQUEST = 4;
+    static final byte FLAG_ACCEPTS_COMPACT = 0x01;
+    static final byte FLAG_ACCEPTS_DIGESTS = 0x02;
+    static final byte FLAG_HAS_DIGEST = 0x04;
+    static final byte FLAG_HAS_SEQ = 0x08;
+
+    private CompactMessageEncoder() {
+    }
+
+    /**
+     * Encodes <code>msg</code> into <code>out</code>, starting at its current position.
+     * @throws java.nio.BufferOverflowException if the message doesn't fit
+     * @throws IllegalArgumentException if the message type can't be sent in the compact format
+     */
+    static void encode(@Nonnull Message msg, @Nonnull ByteBuffer out) {
+        byte type;
+        switch (msg.type) {
+            case Message.MESSAGE_TYPE_NEW_LISTENER:
+                type = TYPE_NEW_LISTENER;
+                break;
+            case Message.MESSAGE_TYPE_PUBLISH:
+                type = TYPE_PUBLISH;
+                break;
+            case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+                type = TYPE_REMOVE_SERVICE;
+                break;
+            case Message.MESSAGE_TYPE_PAYLOAD_REQUEST:
+                type = TYPE_PAYLOAD_REQUEST;
+                break;
+            default:
+                throw new IllegalArgumentException("Can't encode message of type " + msg.type + " in the compact format");
+        }
+
+        out.put(MAGIC);
+        out.put(VERSION);
+        out.put(type);
+        int flags = 0;
+        if (msg.acceptsCompact) {
+            flags |= FLAG_ACCEPTS_COMPACT;
+        }
+        if (msg.acceptsDigests) {
+            flags |= FLAG_ACCEPTS_DIGESTS;
+        }
+        if (msg.hasPayloadDigest) {
+            flags |= FLAG_HAS_DIGEST;
+        }
+        if (msg.hasSeq) {
+            flags |= FLAG_HAS_SEQ;
+        }
+        out.put((byte) flags);
+        out.putLong(msg.senderIdHigh);
+        out.putLong(msg.senderIdLow);
+        // service names are restricted to ASCII, and are never longer than 64 characters
+        String name = msg.serviceName;
+        out.put((byte) name.length());
+        for (int i=0; i<name.length(); i++) {
+            out.put((byte) name.charAt(i));
+        }
+        if (type == TYPE_PUBLISH) {
+            out.putInt(msg.ttl);
+            out.putShort((short) msg.payloadLength);
+            if (msg.payloadLength > 0) {
+                out.put(msg.payloadBytes, 0, msg.payloadLength);
+            }
+        }
+        if (msg.hasPayloadDigest) {
+            out.putLong(msg.payloadDigest);
+        }
+        if (msg.hasSeq) {
+            out.putInt(msg.seq);
+        }
+    }
+
+}
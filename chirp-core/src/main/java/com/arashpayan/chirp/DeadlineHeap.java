@@ -0,0 +1,154 @@
+package com.arashpayan.chirp;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A binary min-heap of deadlines. Every entry remembers its position in the heap, so moving an
+ * entry's deadline or cancelling it is O(log n) and finding the next deadline is O(1). Not
+ * thread safe.
+ */
+class DeadlineHeap<T> {
+
+    /**
+     * A deadline that can be scheduled in (at most) one heap at a time. Entries are meant to be
+     * created once and then rescheduled over and over.
+     */
+    static class Entry<T> {
+        final T value;
+        long deadline;
+        // position in the heap's array, or -1 when not scheduled
+        int index = -1;
+
+        Entry(T value) {
+            this.value = value;
+        }
+
+        boolean isScheduled() {
+            return index != -1;
+        }
+    }
+
+    private Entry<T>[] mHeap;
+    private int mSize;
+
+    @SuppressWarnings("unchecked")
+    DeadlineHeap() {
+        mHeap = (Entry<T>[]) new Entry<?>[16];
+    }
+
+    /**
+     * Schedules the entry for <code>deadline</code>, moving it if it's already scheduled.
+     */
+    void schedule(@Nonnull Entry<T> entry, long deadline) {
+        if (entry.isScheduled()) {
+            long old = entry.deadline;
+            entry.deadline = deadline;
+            if (deadline < old) {
+                siftUp(entry.index);
+            } else {
+                siftDown(entry.index);
+            }
+            return;
+        }
+
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        entry.deadline = deadline;
+        entry.index = mSize;
+        mHeap[mSize++] = entry;
+        siftUp(entry.index);
+    }
+
+    /**
+     * Removes the entry from the heap. Does nothing if it isn't scheduled.
+     */
+    void cancel(@Nonnull Entry<T> entry) {
+        if (!entry.isScheduled()) {
+            return;
+        }
+        removeAt(entry.index);
+    }
+
+    /**
+     * @return the entry with the earliest deadline, or <code>null</code> if the heap is empty
+     */
+    @Nullable
+    Entry<T> peek() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    /**
+     * Removes and returns the entry with the earliest deadline, if that deadline is at or before
+     * <code>now</code>.
+     * @return the expired entry, or <code>null</code> if nothing has expired
+     */
+    @Nullable
+    Entry<T> pollExpired(long now) {
+        if (mSize == 0 || mHeap[0].deadline > now) {
+            return null;
+        }
+        Entry<T> head = mHeap[0];
+        removeAt(0);
+        return head;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void removeAt(int i) {
+        Entry<T> removed = mHeap[i];
+        mSize--;
+        Entry<T> last = mHeap[mSize];
+        mHeap[mSize] = null;
+        removed.index = -1;
+        if (i == mSize) {
+            return;
+        }
+        mHeap[i] = last;
+        last.index = i;
+        siftUp(i);
+        siftDown(last.index);
+    }
+
+    private void siftUp(int i) {
+        Entry<T> entry = mHeap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Entry<T> p = mHeap[parent];
+            if (p.deadline <= entry.deadline) {
+                break;
+            }
+            mHeap[i] = p;
+            p.index = i;
+            i = parent;
+        }
+        mHeap[i] = entry;
+        entry.index = i;
+    }
+
+    private void siftDown(int i) {
+        Entry<T> entry = mHeap[i];
+        int half = mSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < mSize && mHeap[right].deadline < mHeap[child].deadline) {
+                child = right;
+            }
+            if (entry.deadline <= mHeap[child].deadline) {
+                break;
+            }
+            mHeap[i] = mHeap[child];
+            mHeap[i].index = i;
+            i = child;
+        }
+        mHeap[i] = entry;
+        entry.index = i;
+    }
+
+}
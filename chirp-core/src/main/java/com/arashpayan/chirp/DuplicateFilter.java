@@ -0,0 +1,132 @@
+package com.arashpayan.chirp;
+
+/**
+ * Recognizes datagrams that have already been received, by the sequence number the sending socket
+ * stamps on them. Every message is sent more than once (see {@link SendRedundancy}), and the
+ * copies that make it through are dropped here, before they're handed to any browser.
+ *
+ * The table has a fixed number of slots, each tracking one sender in one address family: the
+ * highest sequence number seen, and which of the 64 before it have been seen. A sender that maps
+ * to a slot in use by another sender takes it over, so with a lot of senders an occasional copy
+ * gets through. That only costs the work the filter was meant to save.
+ *
+ * Gaps in a sender's sequence numbers are counted as lost datagrams, and datagrams that fill a gap
+ * later are taken back off the count, which gives a rough estimate of the packet loss on the
+ * network.
+ *
+ * Only used by the socket's I/O thread, but the loss estimate can be read from any thread.
+ */
+class DuplicateFilter {
+
+    private static final int SLOTS = 256;
+    private static final int WINDOW = 64;
+    // the loss counts are halved once this many datagrams have been counted, so the estimate
+    // follows changes in the network
+    private static final long LOSS_DECAY_THRESHOLD = 10000;
+
+    private final long[] mIdsHigh = new long[SLOTS];
+    private final long[] mIdsLow = new long[SLOTS];
+    private final boolean[] mUsed = new boolean[SLOTS];
+    private final boolean[] mIPv6 = new boolean[SLOTS];
+    private final int[] mHighest = new int[SLOTS];
+    // bit n is set if (highest - n - 1) has been seen
+    private final long[] mSeen = new long[SLOTS];
+    private volatile long mReceived;
+    private volatile long mLost;
+
+    /**
+     * Records a datagram.
+     * @param seq the datagram's sequence number, which counts up from 0 and wraps around after
+     *            2^31 - 1
+     * @return true if the datagram has already been seen
+     */
+    boolean isDuplicate(long idHigh, long idLow, boolean ipv6, int seq) {
+        int slot = slot(idHigh, idLow, ipv6);
+        if (!mUsed[slot] || mIdsHigh[slot] != idHigh || mIdsLow[slot] != idLow || mIPv6[slot] != ipv6) {
+            reset(slot, idHigh, idLow, ipv6, seq);
+            count(0);
+            return false;
+        }
+
+        int diff = seqDiff(seq, mHighest[slot]);
+        if (diff > 0) {
+            if (diff > WINDOW) {
+                // too far ahead to be a gap worth counting, e.g. a sender we lost track of
+                reset(slot, idHigh, idLow, ipv6, seq);
+                count(0);
+                return false;
+            }
+            mSeen[slot] = diff == WINDOW ? 1L << (WINDOW - 1) : (mSeen[slot] << diff) | (1L << (diff - 1));
+            mHighest[slot] = seq;
+            count(diff - 1);
+            return false;
+        }
+        if (diff == 0) {
+            return true;
+        }
+        int age = -diff;
+        if (age > WINDOW) {
+            // from long ago, or the sender's socket was reopened and it started counting over
+            reset(slot, idHigh, idLow, ipv6, seq);
+            count(0);
+            return false;
+        }
+        long bit = 1L << (age - 1);
+        if ((mSeen[slot] & bit) != 0) {
+            return true;
+        }
+        // late, but it was counted as lost
+        mSeen[slot] |= bit;
+        mReceived++;
+        if (mLost > 0) {
+            mLost--;
+        }
+        return false;
+    }
+
+    /**
+     * @return the fraction of datagrams that were lost, between 0 and 1
+     */
+    double estimatedLoss() {
+        long lost = mLost;
+        long total = mReceived + lost;
+        return total == 0 ? 0 : (double) lost / total;
+    }
+
+    private void count(int lost) {
+        long received = mReceived + 1;
+        long total = received + mLost + lost;
+        if (total > LOSS_DECAY_THRESHOLD) {
+            mReceived = received / 2;
+            mLost = (mLost + lost) / 2;
+        } else {
+            mReceived = received;
+            mLost += lost;
+        }
+    }
+
+    private void reset(int slot, long idHigh, long idLow, boolean ipv6, int seq) {
+        mUsed[slot] = true;
+        mIdsHigh[slot] = idHigh;
+        mIdsLow[slot] = idLow;
+        mIPv6[slot] = ipv6;
+        mHighest[slot] = seq;
+        mSeen[slot] = 0;
+    }
+
+    private static int slot(long idHigh, long idLow, boolean ipv6) {
+        // sender ids are random, so their bits are already well mixed
+        long h = idHigh ^ idLow;
+        int slot = (int) (h ^ (h >>> 32)) & (SLOTS - 1);
+        return ipv6 ? slot ^ 1 : slot;
+    }
+
+    /**
+     * @return how far <code>a</code> is ahead of <code>b</code>, in the 31-bit space of
+     * sequence numbers
+     */
+    static int seqDiff(int a, int b) {
+        return ((a - b) << 1) >> 1;
+    }
+
+}
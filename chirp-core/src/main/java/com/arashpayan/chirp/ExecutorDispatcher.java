@@ -0,0 +1,73 @@
+package com.arashpayan.chirp;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A <code>CallbackDispatcher</code> that runs callbacks on a
+ * <code>ScheduledExecutorService</code>. Callbacks are only delivered in order if the executor
+ * has a single thread.
+ */
+public class ExecutorDispatcher implements CallbackDispatcher {
+
+    private final ScheduledExecutorService mExecutor;
+    // posts that haven't run yet, so they can be cancelled by their runnable
+    private final ArrayList<Post> mPending = new ArrayList<>();
+
+    private class Post implements Runnable {
+
+        final Runnable runnable;
+        ScheduledFuture<?> future;
+
+        Post(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mPending) {
+                if (!mPending.remove(this)) {
+                    // cancelled after it was already on its way
+                    return;
+                }
+            }
+            runnable.run();
+        }
+    }
+
+    public ExecutorDispatcher(@Nonnull ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void post(@Nonnull Runnable r) {
+        postDelayed(r, 0);
+    }
+
+    @Override
+    public void postDelayed(@Nonnull Runnable r, long delayMs) {
+        Post post = new Post(r);
+        synchronized (mPending) {
+            mPending.add(post);
+            post.future = mExecutor.schedule(post, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void cancel(@Nonnull Runnable r) {
+        synchronized (mPending) {
+            for (int i=mPending.size()-1; i>=0; i--) {
+                Post post = mPending.get(i);
+                if (post.runnable == r) {
+                    mPending.remove(i);
+                    post.future.cancel(false);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.arashpayan.chirp;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The platform used on a plain JVM, when browsers and publishers are started without one. There
+ * is no multicast lock to hold, everything runs on the default <code>ChirpRuntime</code>, and
+ * browser callbacks are delivered in order on the runtime's workers.
+ */
+final class JvmPlatform implements ChirpPlatform {
+
+    private static JvmPlatform sShared;
+
+    // the runtime the dispatcher runs on, so it follows ChirpRuntime.setDefault()
+    private ChirpRuntime mRuntime;
+    private CallbackDispatcher mDispatcher;
+
+    private JvmPlatform() {
+    }
+
+    static synchronized JvmPlatform get() {
+        if (sShared == null) {
+            sShared = new JvmPlatform();
+        }
+        return sShared;
+    }
+
+    @Override
+    public void acquireMulticastLock() {
+    }
+
+    @Override
+    public void releaseMulticastLock() {
+    }
+
+    @Nonnull
+    @Override
+    public synchronized CallbackDispatcher getCallbackDispatcher() {
+        ChirpRuntime runtime = ChirpRuntime.getDefault();
+        if (runtime != mRuntime) {
+            mRuntime = runtime;
+            mDispatcher = new SchedulerDispatcher(runtime);
+        }
+        return mDispatcher;
+    }
+
+    @Nonnull
+    @Override
+    public ChirpScheduler getScheduler() {
+        return ChirpRuntime.getDefault();
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.arashpayan.chirp;
+
+import java.util.Arrays;
+
+/**
+ * The services a browser already knows about, sent along with its <code>new_listener</code>
+ * message so that publishers it has recently heard from don't need to answer. Each answer is a
+ * publisher id, the number of seconds left before the browser expires the service, and the digest
+ * of the payload it has for it (if any). In JSON, the list is an array of arrays:
+ * <pre>
+ *     "known":[["&lt;sender id&gt;",&lt;ttl&gt;,"&lt;payload digest&gt;"],...]
+ * </pre>
+ * The arrays grow as needed and are reused when a pooled <code>Message</code> is recycled.
+ */
+class KnownAnswers {
+
+    /**
+     * The longest an encoded answer can be, including the comma that separates it from the
+     * previous one.
+     */
+    static final int MAX_ENCODED_LENGTH = 1 + 2 + 32 + 2 + 10 + 2 + 16 + 2;
+    /**
+     * The room for the list in a query. A query has to fit in a single 1500 byte Ethernet frame
+     * (1452 bytes of UDP payload over IPv6), since a multicast datagram that gets fragmented is
+     * lost if any of its fragments is, and fragments are what gets lost on a busy network. This
+     * leaves a couple of hundred bytes for the rest of the query.
+     */
+    static final int MAX_ENCODED_LIST_LENGTH = 1200;
+    /**
+     * The most answers that are sent or accepted in one message. A browser that knows about more
+     * services than this lists the ones with the most TTL left.
+     */
+    static final int MAX_ANSWERS = MAX_ENCODED_LIST_LENGTH / MAX_ENCODED_LENGTH;
+
+    int count;
+    long[] idsHigh = new long[8];
+    long[] idsLow = new long[8];
+    int[] ttls = new int[8];
+    long[] digests = new long[8];
+    boolean[] hasDigest = new boolean[8];
+
+    /**
+     * Adds an answer, unless the list is already full.
+     * @return true if the answer was added
+     */
+    boolean add(long idHigh, long idLow, int ttl, boolean hasDigest, long digest) {
+        if (count == MAX_ANSWERS) {
+            return false;
+        }
+        if (count == idsHigh.length) {
+            int size = Math.min(count * 2, MAX_ANSWERS);
+            idsHigh = Arrays.copyOf(idsHigh, size);
+            idsLow = Arrays.copyOf(idsLow, size);
+            ttls = Arrays.copyOf(ttls, size);
+            digests = Arrays.copyOf(digests, size);
+            this.hasDigest = Arrays.copyOf(this.hasDigest, size);
+        }
+        idsHigh[count] = idHigh;
+        idsLow[count] = idLow;
+        ttls[count] = ttl;
+        digests[count] = digest;
+        this.hasDigest[count] = hasDigest;
+        count++;
+        return true;
+    }
+
+    /**
+     * Checks whether the sender of the query already knows about a service, so that announcing it
+     * would be redundant. Like multicast DNS, an answer only counts if the browser still has at
+     * least half of the service's TTL left, so services get refreshed well before they expire.
+     * @param ttl the TTL the service is published with
+     * @param hasPayload true if the service has a payload
+     * @param digest the digest of the service's payload
+     * @return true if the service is in the list, with enough TTL left and the current payload
+     */
+    boolean isKnown(long idHigh, long idLow, int ttl, boolean hasPayload, long digest) {
+        for (int i=0; i<count; i++) {
+            if (idsHigh[i] != idHigh || idsLow[i] != idLow) {
+                continue;
+            }
+            if (ttls[i] * 2 < ttl) {
+                return false;
+            }
+            return !hasPayload || (hasDigest[i] && digests[i] == digest);
+        }
+        return false;
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+}
@@ -0,0 +1,387 @@
+package com.arashpayan.chirp;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Arash Payan (https://arashpayan.com) on 6/1/16.
+ */
+class Message {
+
+    protected static final String MESSAGE_TYPE_NEW_LISTENER = "new_listener";
+    protected static final String MESSAGE_TYPE_PUBLISH = "publish";
+    protected static final String MESSAGE_TYPE_REMOVE_SERVICE = "remove_service";
+    /**
+     * Several services announced in one datagram. This is an extension to the Chirp protocol, so
+     * it's only ever sent by a <code>ChirpMultiPublisher</code>. The decoder expands it into
+     * <code>MESSAGE_TYPE_PUBLISH</code> messages, so browsers never see this type.
+     */
+    protected static final String MESSAGE_TYPE_PUBLISH_BATCH = "publish_batch";
+    /**
+     * Sent by a browser that got a publish message without a payload, and doesn't have the
+     * payload with that digest cached. Publishers of the service whose payload has the requested
+     * digest answer with a full publish message. This is an extension to the Chirp protocol.
+     */
+    protected static final String MESSAGE_TYPE_PAYLOAD_REQUEST = "payload_request";
+
+    private static final ChirpError ERR_SENDER_ID = new ChirpError("invalid 'sender_id'");
+    private static final ChirpError ERR_SERVICE_NAME_MISSING = new ChirpError("'service_name' is missing");
+    private static final ChirpError ERR_SERVICE_NAME = new ChirpError("invalid 'service_name'");
+    private static final ChirpError ERR_TTL = new ChirpError("invalid 'ttl'");
+    private static final ChirpError ERR_TYPE = new ChirpError("unknown message type");
+    private static final ChirpError ERR_PAYLOAD_DIGEST = new ChirpError("'payload_digest' is missing");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Type PAYLOAD_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object sPoolLock = new Object();
+    private static Message sPool;
+    private static int sPoolSize;
+
+    protected InetAddress address;
+    private String ipAddress;
+    // the source port of a received message
+    protected int port;
+
+    // one of the MESSAGE_TYPE_ constants
+    protected String type;
+    protected String senderId;
+    // the sender id in binary form. Only valid when hasSenderId is true.
+    protected long senderIdHigh;
+    protected long senderIdLow;
+    protected boolean hasSenderId;
+    protected String serviceName;
+    // the service names (and prefix patterns) a new_listener query asks for. When there are
+    // several, serviceName is "*" so that older publishers still answer.
+    protected String[] serviceNames;
+    protected int serviceNameCount;
+    protected Map<String, Object> payload;
+    // the raw JSON of a received payload, decoded into 'payload' on demand. For an outgoing
+    // batch, these are the encoded entries of the 'services' array.
+    protected byte[] payloadBytes;
+    protected int payloadLength;
+    // a digest of the payload's raw JSON, so that announcements can leave out a payload that the
+    // receiver already has. Only valid when hasPayloadDigest is true.
+    protected long payloadDigest;
+    protected boolean hasPayloadDigest;
+    protected int ttl;
+    // true if the message is sent (or was received) in the compact binary format instead of JSON
+    protected boolean compact;
+    // true if the sender understands the compact binary format
+    protected boolean acceptsCompact;
+    // true if the sender caches payloads by digest, so it can handle a publish without a payload
+    protected boolean acceptsDigests;
+    // true if the sender of a new_listener message would like replies sent straight to its
+    // address and port, instead of to the multicast groups
+    protected boolean acceptsUnicast;
+    // the sequence number ChirpSocket stamps on publish, remove_service and publish_batch
+    // datagrams as it sends them, and the id whose sequence it's part of (for the entries of a
+    // batch, the id of the batch's sender). Only valid when hasSeq is true.
+    protected int seq;
+    protected boolean hasSeq;
+    protected long seqIdHigh;
+    protected long seqIdLow;
+    // the services the sender of a new_listener message already knows about, or null
+    protected KnownAnswers knownAnswers;
+
+    // next message decoded from the same batch datagram
+    protected Message batchNext;
+    // next message in the pool
+    private Message next;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    /**
+     * Returns a <code>Message</code> from the pool, or a new one if the pool is empty. Messages
+     * obtained this way should be handed back with <code>recycle()</code> when they're no longer
+     * needed.
+     */
+    protected static Message obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                Message m = sPool;
+                sPool = m.next;
+                m.next = null;
+                sPoolSize--;
+                m.mRefCount.set(1);
+                return m;
+            }
+        }
+        return new Message();
+    }
+
+    /**
+     * Adds a reference to the message, so it isn't returned to the pool until <code>recycle()</code>
+     * has been called one more time.
+     */
+    protected void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference to the message. Once the last reference is released the message is
+     * cleared and returned to the pool, and must not be used anymore.
+     */
+    protected void recycle() {
+        if (mRefCount.decrementAndGet() > 0) {
+            return;
+        }
+        address = null;
+        ipAddress = null;
+        port = 0;
+        type = null;
+        senderId = null;
+        senderIdHigh = 0;
+        senderIdLow = 0;
+        hasSenderId = false;
+        serviceName = null;
+        serviceNameCount = 0;
+        payload = null;
+        payloadLength = 0;
+        payloadDigest = 0;
+        hasPayloadDigest = false;
+        ttl = 0;
+        compact = false;
+        acceptsCompact = false;
+        acceptsDigests = false;
+        acceptsUnicast = false;
+        seq = 0;
+        hasSeq = false;
+        seqIdHigh = 0;
+        seqIdLow = 0;
+        if (knownAnswers != null) {
+            // kept around for the next message that gets decoded into this one
+            knownAnswers.clear();
+        }
+        batchNext = null;
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * @return the sender id as a hexadecimal string
+     */
+    protected String getSenderId() {
+        if (senderId == null && hasSenderId) {
+            senderId = Chirp.idString(senderIdHigh, senderIdLow);
+        }
+        return senderId;
+    }
+
+    protected void setSenderId(String id) {
+        senderId = id;
+        senderIdHigh = Chirp.idHigh(id);
+        senderIdLow = Chirp.idLow(id);
+        hasSenderId = true;
+    }
+
+    /**
+     * @return true if this message was sent by the owner of the given sender id
+     */
+    protected boolean isFrom(long idHigh, long idLow) {
+        return hasSenderId && senderIdHigh == idHigh && senderIdLow == idLow;
+    }
+
+    /**
+     * @return the source address of a received message as a string, without any scope id
+     */
+    protected String getIpAddress() {
+        if (ipAddress == null && address != null) {
+            ipAddress = hostAddress(address);
+        }
+        return ipAddress;
+    }
+
+    /**
+     * @return the bytes of a string that's known to only contain ASCII characters
+     */
+    protected static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the first <code>length</code> bytes of <code>bytes</code>
+     */
+    protected static long digest(byte[] bytes, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=0; i<length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the address a received query asked its replies to be sent to, or <code>null</code>
+     * if they should be multicast
+     */
+    protected InetSocketAddress getReplyAddress() {
+        if (!acceptsUnicast || address == null || port == 0) {
+            return null;
+        }
+        return new InetSocketAddress(address, port);
+    }
+
+    /**
+     * @return true if this new_listener query asks for the named service
+     */
+    protected boolean asksFor(String name) {
+        if (serviceNameCount == 0) {
+            return serviceName.equals("*") || serviceName.equals(name);
+        }
+        for (int i=0; i<serviceNameCount; i++) {
+            if (Chirp.serviceNameMatches(serviceNames[i], name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this is a publish message that left out its payload, and expects the
+     * receiver to have it cached
+     */
+    protected boolean isShortForm() {
+        return hasPayloadDigest && payloadLength == 0;
+    }
+
+    protected static String hostAddress(InetAddress address) {
+        if (address == null) {
+            return null;
+        }
+
+        String hostAddr = address.getHostAddress();
+        int scopeIdx = hostAddr.indexOf('%');
+        if (scopeIdx != -1) {
+            return hostAddr.substring(0, scopeIdx);
+        }
+        return hostAddr;
+    }
+
+    /**
+     * Returns the payload, decoding it from the raw bytes the first time it's requested.
+     * @return the payload, or <code>null</code> if the message doesn't have one
+     */
+    protected Map<String, Object> getPayload() {
+        if (payload == null && payloadLength > 0) {
+            ByteArrayInputStream bais = new ByteArrayInputStream(payloadBytes, 0, payloadLength);
+            payload = Chirp.sGson.fromJson(new InputStreamReader(bais, UTF8), PAYLOAD_TYPE);
+        }
+        return payload;
+    }
+
+    protected boolean isIP6() {
+        if (address == null) {
+            throw new RuntimeException("There's no IP address on this message");
+        }
+        return address instanceof Inet6Address;
+    }
+
+    /**
+     * Checks the semantics of a decoded message. The decoder has already verified that the sender
+     * id is well formed and that the service name only contains legal characters (or is "*").
+     * @return an error describing the problem, or <code>null</code> if the message is valid
+     */
+    protected ChirpError isValid() {
+        if (!hasSenderId) {
+            return ERR_SENDER_ID;
+        }
+        if (serviceName == null || serviceName.isEmpty()) {
+            return ERR_SERVICE_NAME_MISSING;
+        }
+        if (type == null) {
+            return ERR_TYPE;
+        }
+
+        switch (type) {
+            case MESSAGE_TYPE_NEW_LISTENER:
+                // wildcard is acceptable for listeners
+                break;
+            case MESSAGE_TYPE_PUBLISH:
+                if (serviceName.equals("*")) {
+                    return ERR_SERVICE_NAME;
+                }
+                if (ttl < 10) {
+                    return ERR_TTL;
+                }
+                break;
+            case MESSAGE_TYPE_REMOVE_SERVICE:
+                if (serviceName.equals("*")) {
+                    return ERR_SERVICE_NAME;
+                }
+                break;
+            case MESSAGE_TYPE_PAYLOAD_REQUEST:
+                if (serviceName.equals("*")) {
+                    return ERR_SERVICE_NAME;
+                }
+                if (!hasPayloadDigest) {
+                    return ERR_PAYLOAD_DIGEST;
+                }
+                break;
+            default:
+                // unknown message type
+                return ERR_TYPE;
+        }
+
+        return null;
+    }
+
+    protected void setAddress(InetAddress address) {
+        this.address = address;
+        this.ipAddress = null;
+    }
+
+    protected Map<String, Object> toMap() {
+        HashMap<String, Object> json = new HashMap<>();
+        json.put("type", type);
+        json.put("sender_id", getSenderId());
+        json.put("service_name", serviceName);
+        switch (type) {
+            case MESSAGE_TYPE_NEW_LISTENER:
+                break;
+            case MESSAGE_TYPE_PUBLISH:
+                json.put("service_name", serviceName);
+                json.put("ttl", ttl);
+                if (getPayload() != null) {
+                    json.put("payload", payload);
+                }
+                break;
+            case MESSAGE_TYPE_REMOVE_SERVICE:
+                json.put("service_name", serviceName);
+            default:
+                break;
+        }
+
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "Message{" +
+                "ipAddress='" + getIpAddress() + '\'' +
+                ", type=" + type +
+                ", senderId='" + getSenderId() + '\'' +
+                ", serviceName='" + serviceName + '\'' +
+                ", payload=" + getPayload() +
+                ", ttl=" + ttl +
+                '}';
+    }
+
+}
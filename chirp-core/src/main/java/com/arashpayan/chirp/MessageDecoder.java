@@ -0,0 +1,774 @@
+package com.arashpayan.chirp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes Chirp JSON datagrams straight out of a receive buffer. Field names and message types
+ * are matched against pre-encoded byte sequences, the sender id is parsed into two
+ * <code>long</code>s, and service names are interned through a {@link SymbolTable}, so decoding a
+ * message for a service that's already been seen doesn't allocate. The payload isn't parsed at
+ * all, its raw bytes are kept on the <code>Message</code> until someone asks for it.
+ *
+ * A decoder keeps state between calls and must only be used by one thread at a time.
+ */
+class MessageDecoder {
+
+    private static final byte[] KEY_TYPE = Message.ascii("type");
+    private static final byte[] KEY_SENDER_ID = Message.ascii("sender_id");
+    private static final byte[] KEY_SERVICE_NAME = Message.ascii("service_name");
+    private static final byte[] KEY_PAYLOAD = Message.ascii("payload");
+    private static final byte[] KEY_TTL = Message.ascii("ttl");
+    private static final byte[] KEY_SERVICES = Message.ascii("services");
+    private static final byte[] KEY_COMPACT = Message.ascii("compact");
+    private static final byte[] KEY_DIGESTS = Message.ascii("digests");
+    private static final byte[] KEY_PAYLOAD_DIGEST = Message.ascii("payload_digest");
+    private static final byte[] KEY_KNOWN = Message.ascii("known");
+    private static final byte[] KEY_SERVICE_NAMES = Message.ascii("service_names");
+    private static final byte[] KEY_UNICAST = Message.ascii("unicast");
+    private static final byte[] KEY_SEQ = Message.ascii("seq");
+    private static final byte[] TYPE_NEW_LISTENER = Message.ascii(Message.MESSAGE_TYPE_NEW_LISTENER);
+    private static final byte[] TYPE_PUBLISH = Message.ascii(Message.MESSAGE_TYPE_PUBLISH);
+    private static final byte[] TYPE_REMOVE_SERVICE = Message.ascii(Message.MESSAGE_TYPE_REMOVE_SERVICE);
+    private static final byte[] TYPE_PUBLISH_BATCH = Message.ascii(Message.MESSAGE_TYPE_PUBLISH_BATCH);
+    private static final byte[] TYPE_PAYLOAD_REQUEST = Message.ascii(Message.MESSAGE_TYPE_PAYLOAD_REQUEST);
+    private static final byte[] LITERAL_NULL = Message.ascii("null");
+    private static final byte[] LITERAL_TRUE = Message.ascii("true");
+    private static final byte[] LITERAL_FALSE = Message.ascii("false");
+    private static final int MAX_SERVICE_NAME_BYTES = 64;
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Thrown when a datagram isn't well formed. The instances are preallocated and carry no stack
+     * trace, because bad packets aren't exceptional enough to pay for one.
+     */
+    static class MalformedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final ChirpError error;
+
+        MalformedException(String msg) {
+            super(msg, null, false, false);
+            error = new ChirpError(msg);
+        }
+    }
+
+    private static final MalformedException ERR_SYNTAX = new MalformedException("malformed JSON");
+    private static final MalformedException ERR_SENDER_ID = new MalformedException("invalid 'sender_id'");
+    private static final MalformedException ERR_SERVICE_NAME = new MalformedException("invalid 'service_name'");
+    private static final MalformedException ERR_TTL = new MalformedException("invalid 'ttl'");
+    private static final MalformedException ERR_PAYLOAD_DIGEST = new MalformedException("invalid 'payload_digest'");
+    private static final MalformedException ERR_KNOWN = new MalformedException("invalid 'known'");
+    private static final MalformedException ERR_SEQ = new MalformedException("invalid 'seq'");
+    private static final MalformedException ERR_TYPE = new MalformedException("unknown message type");
+    private static final MalformedException ERR_EMPTY_BATCH = new MalformedException("no valid 'services' in batch");
+
+    private final SymbolTable mServiceNames = new SymbolTable(256);
+    private ByteBuffer mBuf;
+    private int mPos;
+    private int mLimit;
+    // scratch results of the last string token that was scanned
+    private int mStrStart;
+    private int mStrEnd;
+    private boolean mStrEscaped;
+    private ChirpError mLastError;
+
+    /**
+     * Decodes the datagram between <code>buf</code>'s position and limit. The buffer's position
+     * isn't modified.
+     * A <code>publish_batch</code> datagram is expanded into one <code>publish</code> message per
+     * valid entry, chained together through <code>Message.batchNext</code>.
+     * @return a pooled <code>Message</code>, or <code>null</code> if the datagram was malformed or
+     * invalid. In that case <code>getLastError()</code> describes the problem.
+     */
+    @Nullable
+    Message decode(@Nonnull ByteBuffer buf, InetAddress source) {
+        mBuf = buf;
+        mPos = buf.position();
+        mLimit = buf.limit();
+        mLastError = null;
+
+        Message msg = Message.obtain();
+        try {
+            expect('{');
+            parseObject(msg, true);
+            skipWhitespace();
+            if (mPos != mLimit) {
+                throw ERR_SYNTAX;
+            }
+        } catch (MalformedException e) {
+            mLastError = e.error;
+            ChirpStats.recordParseFailure();
+            recycleBatch(msg);
+            msg.recycle();
+            return null;
+        } finally {
+            mBuf = null;
+        }
+
+        if (Message.MESSAGE_TYPE_PUBLISH_BATCH.equals(msg.type)) {
+            Message entries = msg.batchNext;
+            msg.batchNext = null;
+            boolean hasSender = msg.hasSenderId;
+            int seq = msg.seq;
+            boolean hasSeq = msg.hasSeq;
+            long seqIdHigh = msg.senderIdHigh;
+            long seqIdLow = msg.senderIdLow;
+            msg.recycle();
+            if (!hasSender || entries == null) {
+                mLastError = !hasSender ? ERR_SENDER_ID.error : ERR_EMPTY_BATCH.error;
+                ChirpStats.recordRejected(mLastError);
+                recycleBatch(entries);
+                if (entries != null) {
+                    entries.recycle();
+                }
+                return null;
+            }
+            for (Message e = entries; e != null; e = e.batchNext) {
+                e.setAddress(source);
+                // the entries are all part of the batch's sequence
+                e.seq = seq;
+                e.hasSeq = hasSeq;
+                e.seqIdHigh = seqIdHigh;
+                e.seqIdLow = seqIdLow;
+            }
+            return entries;
+        }
+        // entries only mean something in a batch
+        recycleBatch(msg);
+
+        ChirpError err = msg.isValid();
+        if (err != null) {
+            mLastError = err;
+            ChirpStats.recordRejected(err);
+            msg.recycle();
+            return null;
+        }
+
+        msg.setAddress(source);
+        msg.seqIdHigh = msg.senderIdHigh;
+        msg.seqIdLow = msg.senderIdLow;
+        return msg;
+    }
+
+    /**
+     * @return the reason the last call to <code>decode</code> returned <code>null</code>
+     */
+    ChirpError getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Recycles every message chained after <code>head</code>, but not <code>head</code> itself.
+     */
+    private static void recycleBatch(Message head) {
+        if (head == null) {
+            return;
+        }
+        Message e = head.batchNext;
+        head.batchNext = null;
+        while (e != null) {
+            Message next = e.batchNext;
+            e.recycle();
+            e = next;
+        }
+    }
+
+    /**
+     * Parses the members of an object whose opening brace has already been consumed.
+     * @param topLevel true for the message itself, false for the entries of a batch
+     */
+    private void parseObject(Message msg, boolean topLevel) throws MalformedException {
+        if (peekNonWhitespace() == '}') {
+            mPos++;
+            return;
+        }
+        while (true) {
+            expect('"');
+            scanString();
+            expect(':');
+            skipWhitespace();
+            if (stringEquals(KEY_TYPE) && topLevel) {
+                parseType(msg);
+            } else if (stringEquals(KEY_SENDER_ID)) {
+                parseSenderId(msg);
+            } else if (stringEquals(KEY_SERVICE_NAME)) {
+                parseServiceName(msg);
+            } else if (stringEquals(KEY_TTL)) {
+                msg.ttl = parseInt(ERR_TTL);
+            } else if (stringEquals(KEY_PAYLOAD)) {
+                parsePayload(msg);
+            } else if (stringEquals(KEY_SERVICES) && topLevel) {
+                parseServices(msg);
+            } else if (stringEquals(KEY_PAYLOAD_DIGEST)) {
+                parsePayloadDigest(msg);
+            } else if (stringEquals(KEY_COMPACT) && topLevel) {
+                msg.acceptsCompact = parseBoolean();
+            } else if (stringEquals(KEY_DIGESTS) && topLevel) {
+                msg.acceptsDigests = parseBoolean();
+            } else if (stringEquals(KEY_KNOWN) && topLevel) {
+                parseKnownAnswers(msg);
+            } else if (stringEquals(KEY_SERVICE_NAMES) && topLevel) {
+                parseServiceNames(msg);
+            } else if (stringEquals(KEY_UNICAST) && topLevel) {
+                msg.acceptsUnicast = parseBoolean();
+            } else if (stringEquals(KEY_SEQ) && topLevel) {
+                parseSeq(msg);
+            } else {
+                skipValue(0);
+            }
+            byte b = peekNonWhitespace();
+            mPos++;
+            if (b == '}') {
+                break;
+            }
+            if (b != ',') {
+                throw ERR_SYNTAX;
+            }
+        }
+    }
+
+    /**
+     * Parses the array of services in a batch, chaining a <code>publish</code> message for each
+     * valid entry after <code>msg</code>. Invalid entries are skipped, so that one bad service
+     * doesn't hide the rest.
+     */
+    private void parseServices(Message msg) throws MalformedException {
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            mPos++;
+            return;
+        }
+        Message tail = msg;
+        while (tail.batchNext != null) {
+            tail = tail.batchNext;
+        }
+        while (true) {
+            expect('{');
+            Message entry = Message.obtain();
+            try {
+                parseObject(entry, false);
+            } catch (MalformedException e) {
+                entry.recycle();
+                throw e;
+            }
+            entry.type = Message.MESSAGE_TYPE_PUBLISH;
+            ChirpError err = entry.isValid();
+            if (err == null) {
+                tail.batchNext = entry;
+                tail = entry;
+            } else {
+                ChirpStats.recordRejected(err);
+                entry.recycle();
+            }
+            byte b = peekNonWhitespace();
+            mPos++;
+            if (b == ']') {
+                break;
+            }
+            if (b != ',') {
+                throw ERR_SYNTAX;
+            }
+        }
+    }
+
+    private void parseType(Message msg) throws MalformedException {
+        expect('"');
+        scanString();
+        if (stringEquals(TYPE_PUBLISH)) {
+            msg.type = Message.MESSAGE_TYPE_PUBLISH;
+        } else if (stringEquals(TYPE_NEW_LISTENER)) {
+            msg.type = Message.MESSAGE_TYPE_NEW_LISTENER;
+        } else if (stringEquals(TYPE_REMOVE_SERVICE)) {
+            msg.type = Message.MESSAGE_TYPE_REMOVE_SERVICE;
+        } else if (stringEquals(TYPE_PUBLISH_BATCH)) {
+            msg.type = Message.MESSAGE_TYPE_PUBLISH_BATCH;
+        } else if (stringEquals(TYPE_PAYLOAD_REQUEST)) {
+            msg.type = Message.MESSAGE_TYPE_PAYLOAD_REQUEST;
+        } else {
+            throw ERR_TYPE;
+        }
+    }
+
+    private void parseSenderId(Message msg) throws MalformedException {
+        expect('"');
+        scanString();
+        if (mStrEscaped || mStrEnd - mStrStart != 32) {
+            throw ERR_SENDER_ID;
+        }
+        msg.senderIdHigh = parseHex(mStrStart, ERR_SENDER_ID);
+        msg.senderIdLow = parseHex(mStrStart + 16, ERR_SENDER_ID);
+        msg.hasSenderId = true;
+        msg.senderId = null;
+    }
+
+    private void parsePayloadDigest(Message msg) throws MalformedException {
+        expect('"');
+        scanString();
+        if (mStrEscaped || mStrEnd - mStrStart != 16) {
+            throw ERR_PAYLOAD_DIGEST;
+        }
+        msg.payloadDigest = parseHex(mStrStart, ERR_PAYLOAD_DIGEST);
+        msg.hasPayloadDigest = true;
+    }
+
+    /**
+     * Parses a known-answer list. Answers past <code>KnownAnswers.MAX_ANSWERS</code> are skipped,
+     * and so is anything after the digest, in case later versions add to the answers.
+     */
+    private void parseKnownAnswers(Message msg) throws MalformedException {
+        if (msg.knownAnswers == null) {
+            msg.knownAnswers = new KnownAnswers();
+        }
+        KnownAnswers known = msg.knownAnswers;
+        known.clear();
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            mPos++;
+            return;
+        }
+        while (true) {
+            expect('[');
+            expect('"');
+            scanString();
+            if (mStrEscaped || mStrEnd - mStrStart != 32) {
+                throw ERR_KNOWN;
+            }
+            long idHigh = parseHex(mStrStart, ERR_KNOWN);
+            long idLow = parseHex(mStrStart + 16, ERR_KNOWN);
+            expect(',');
+            skipWhitespace();
+            int ttl = parseInt(ERR_KNOWN);
+            boolean hasDigest = false;
+            long digest = 0;
+            if (peekNonWhitespace() == ',') {
+                mPos++;
+                expect('"');
+                scanString();
+                if (mStrEscaped || mStrEnd - mStrStart != 16) {
+                    throw ERR_KNOWN;
+                }
+                digest = parseHex(mStrStart, ERR_KNOWN);
+                hasDigest = true;
+                while (peekNonWhitespace() == ',') {
+                    mPos++;
+                    skipWhitespace();
+                    skipValue(0);
+                }
+            }
+            expect(']');
+            known.add(idHigh, idLow, ttl, hasDigest, digest);
+
+            byte b = peekNonWhitespace();
+            mPos++;
+            if (b == ']') {
+                break;
+            }
+            if (b != ',') {
+                throw ERR_SYNTAX;
+            }
+        }
+    }
+
+    /**
+     * Parses the 16 hex digits starting at absolute index <code>start</code>.
+     * @param error thrown if any of them isn't a hex digit
+     */
+    private long parseHex(int start, MalformedException error) throws MalformedException {
+        long value = 0;
+        for (int i=start; i<start+16; i++) {
+            int c = mBuf.get(i);
+            int nibble;
+            if (c >= '0' && c <= '9') {
+                nibble = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                nibble = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                nibble = c - 'A' + 10;
+            } else {
+                throw error;
+            }
+            value = (value << 4) | nibble;
+        }
+        return value;
+    }
+
+    private void parseServiceName(Message msg) throws MalformedException {
+        expect('"');
+        scanString();
+        int length = mStrEnd - mStrStart;
+        if (mStrEscaped || length > MAX_SERVICE_NAME_BYTES) {
+            throw ERR_SERVICE_NAME;
+        }
+        if (length == 0) {
+            msg.serviceName = null;
+            return;
+        }
+        if (length == 1 && mBuf.get(mStrStart) == '*') {
+            msg.serviceName = "*";
+            return;
+        }
+        for (int i=mStrStart; i<mStrEnd; i++) {
+            if (!Chirp.isValidServiceNameChar(mBuf.get(i))) {
+                throw ERR_SERVICE_NAME;
+            }
+        }
+        msg.serviceName = mServiceNames.intern(mBuf, mStrStart, length);
+    }
+
+    /**
+     * Parses the list of service names (or prefix patterns, ending with "*") in a query.
+     */
+    private void parseServiceNames(Message msg) throws MalformedException {
+        msg.serviceNameCount = 0;
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            mPos++;
+            return;
+        }
+        while (true) {
+            expect('"');
+            scanString();
+            int length = mStrEnd - mStrStart;
+            if (mStrEscaped || length == 0 || length > MAX_SERVICE_NAME_BYTES) {
+                throw ERR_SERVICE_NAME;
+            }
+            int nameEnd = mStrEnd;
+            if (mBuf.get(nameEnd - 1) == '*') {
+                nameEnd--;
+            }
+            for (int i=mStrStart; i<nameEnd; i++) {
+                if (!Chirp.isValidServiceNameChar(mBuf.get(i))) {
+                    throw ERR_SERVICE_NAME;
+                }
+            }
+            if (msg.serviceNameCount < ChirpBrowser.MAX_SERVICE_NAMES) {
+                if (msg.serviceNames == null) {
+                    msg.serviceNames = new String[ChirpBrowser.MAX_SERVICE_NAMES];
+                }
+                msg.serviceNames[msg.serviceNameCount++] = mServiceNames.intern(mBuf, mStrStart, length);
+            }
+
+            byte b = peekNonWhitespace();
+            mPos++;
+            if (b == ']') {
+                break;
+            }
+            if (b != ',') {
+                throw ERR_SYNTAX;
+            }
+        }
+    }
+
+    private void parsePayload(Message msg) throws MalformedException {
+        int start = mPos;
+        if (peek() == 'n') {
+            expectLiteral(LITERAL_NULL);
+            msg.payloadLength = 0;
+            return;
+        }
+        if (peek() != '{') {
+            throw ERR_SYNTAX;
+        }
+        skipValue(0);
+        int length = mPos - start;
+        if (msg.payloadBytes == null || msg.payloadBytes.length < length) {
+            msg.payloadBytes = new byte[Math.max(length, 256)];
+        }
+        for (int i=0; i<length; i++) {
+            msg.payloadBytes[i] = mBuf.get(start + i);
+        }
+        msg.payloadLength = length;
+        msg.payload = null;
+    }
+
+    /**
+     * Parses <code>true</code> or <code>false</code>. Any other value is skipped and treated as
+     * <code>false</code>.
+     */
+    private boolean parseBoolean() throws MalformedException {
+        if (peek() == 't') {
+            expectLiteral(LITERAL_TRUE);
+            return true;
+        }
+        skipValue(0);
+        return false;
+    }
+
+    private void parseSeq(Message msg) throws MalformedException {
+        int seq = parseInt(ERR_SEQ);
+        if (seq < 0) {
+            throw ERR_SEQ;
+        }
+        msg.seq = seq;
+        msg.hasSeq = true;
+    }
+
+    /**
+     * Parses a JSON number that must have an integral value that fits in an <code>int</code>.
+     * @param err what to throw if it doesn't, for the field being parsed
+     */
+    private int parseInt(MalformedException err) throws MalformedException {
+        int start = mPos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            mPos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (mPos < mLimit) {
+            byte b = mBuf.get(mPos);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw err;
+            }
+            digits++;
+            mPos++;
+        }
+        if (digits == 0) {
+            throw err;
+        }
+        if (mPos < mLimit) {
+            byte b = mBuf.get(mPos);
+            if (b == '.' || b == 'e' || b == 'E') {
+                // rare, so just take the slow path
+                mPos = start;
+                return parseFractionalInt(err);
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private int parseFractionalInt(MalformedException err) throws MalformedException {
+        int start = mPos;
+        skipNumber();
+        StringBuilder sb = new StringBuilder(mPos - start);
+        for (int i=start; i<mPos; i++) {
+            sb.append((char) mBuf.get(i));
+        }
+        double d;
+        try {
+            d = Double.parseDouble(sb.toString());
+        } catch (NumberFormatException e) {
+            throw err;
+        }
+        int i = (int) d;
+        if (i != d) {
+            throw err;
+        }
+        return i;
+    }
+
+    /**
+     * Skips over a value of any type, including nested objects and arrays.
+     */
+    private void skipValue(int depth) throws MalformedException {
+        if (depth > MAX_DEPTH) {
+            throw ERR_SYNTAX;
+        }
+        byte b = peek();
+        switch (b) {
+            case '"':
+                mPos++;
+                scanString();
+                break;
+            case '{':
+                mPos++;
+                if (peekNonWhitespace() == '}') {
+                    mPos++;
+                    break;
+                }
+                while (true) {
+                    expect('"');
+                    scanString();
+                    expect(':');
+                    skipWhitespace();
+                    skipValue(depth + 1);
+                    byte next = peekNonWhitespace();
+                    mPos++;
+                    if (next == '}') {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw ERR_SYNTAX;
+                    }
+                }
+                break;
+            case '[':
+                mPos++;
+                if (peekNonWhitespace() == ']') {
+                    mPos++;
+                    break;
+                }
+                while (true) {
+                    skipWhitespace();
+                    skipValue(depth + 1);
+                    byte next = peekNonWhitespace();
+                    mPos++;
+                    if (next == ']') {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw ERR_SYNTAX;
+                    }
+                }
+                break;
+            case 't':
+                expectLiteral(LITERAL_TRUE);
+                break;
+            case 'f':
+                expectLiteral(LITERAL_FALSE);
+                break;
+            case 'n':
+                expectLiteral(LITERAL_NULL);
+                break;
+            default:
+                skipNumber();
+        }
+    }
+
+    private void skipNumber() throws MalformedException {
+        int start = mPos;
+        while (mPos < mLimit) {
+            byte b = mBuf.get(mPos);
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                mPos++;
+            } else {
+                break;
+            }
+        }
+        if (mPos == start) {
+            throw ERR_SYNTAX;
+        }
+    }
+
+    /**
+     * Scans a string whose opening quote has already been consumed, leaving <code>mPos</code>
+     * just past the closing quote. The bounds of the raw (still escaped) contents are recorded in
+     * <code>mStrStart</code> and <code>mStrEnd</code>. Multi-byte UTF-8 sequences never contain a
+     * quote or backslash byte, so they can be stepped over one byte at a time.
+     */
+    private void scanString() throws MalformedException {
+        mStrStart = mPos;
+        mStrEscaped = false;
+        while (mPos < mLimit) {
+            byte b = mBuf.get(mPos++);
+            if (b == '"') {
+                mStrEnd = mPos - 1;
+                return;
+            }
+            if (b == '\\') {
+                mStrEscaped = true;
+                mPos++;
+            } else if (b >= 0 && b < 0x20) {
+                // control characters must be escaped
+                throw ERR_SYNTAX;
+            }
+        }
+        throw ERR_SYNTAX;
+    }
+
+    /**
+     * @return true if the last scanned string equals <code>expected</code>. Escape sequences in
+     * the string are decoded on the fly, so no copy of the string is ever made.
+     */
+    private boolean stringEquals(byte[] expected) throws MalformedException {
+        if (!mStrEscaped) {
+            if (mStrEnd - mStrStart != expected.length) {
+                return false;
+            }
+            for (int i=0; i<expected.length; i++) {
+                if (mBuf.get(mStrStart + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int pos = mStrStart;
+        int i = 0;
+        while (pos < mStrEnd) {
+            int c = mBuf.get(pos++);
+            if (c == '\\') {
+                c = mBuf.get(pos++);
+                switch (c) {
+                    case 'u':
+                        if (pos + 4 > mStrEnd) {
+                            throw ERR_SYNTAX;
+                        }
+                        int cp = 0;
+                        for (int j=0; j<4; j++) {
+                            int h = Character.digit(mBuf.get(pos++), 16);
+                            if (h == -1) {
+                                throw ERR_SYNTAX;
+                            }
+                            cp = (cp << 4) | h;
+                        }
+                        c = cp;
+                        break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    default:
+                        // \" \\ and \/ stand for themselves
+                        break;
+                }
+            }
+            if (i >= expected.length || c != expected[i]) {
+                return false;
+            }
+            i++;
+        }
+        return i == expected.length;
+    }
+
+    private void expectLiteral(byte[] literal) throws MalformedException {
+        if (mPos + literal.length > mLimit) {
+            throw ERR_SYNTAX;
+        }
+        for (byte b : literal) {
+            if (mBuf.get(mPos++) != b) {
+                throw ERR_SYNTAX;
+            }
+        }
+    }
+
+    private void expect(char c) throws MalformedException {
+        if (peekNonWhitespace() != c) {
+            throw ERR_SYNTAX;
+        }
+        mPos++;
+    }
+
+    private byte peek() throws MalformedException {
+        if (mPos >= mLimit) {
+            throw ERR_SYNTAX;
+        }
+        return mBuf.get(mPos);
+    }
+
+    private byte peekNonWhitespace() throws MalformedException {
+        skipWhitespace();
+        return peek();
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLimit) {
+            byte b = mBuf.get(mPos);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+}
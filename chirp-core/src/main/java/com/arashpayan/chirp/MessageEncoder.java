@@ -0,0 +1,229 @@
+package com.arashpayan.chirp;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes outgoing messages as JSON directly into a <code>ByteBuffer</code>. The constant parts of
+ * each message type are encoded once up front, so encoding a message is just a handful of bulk
+ * copies plus the sender id, service name and ttl. A publisher's payload is serialized once
+ * when it's set, and the encoder copies those bytes in as-is.
+ */
+class MessageEncoder {
+
+    private static final byte[] PUBLISH_HEAD = Message.ascii("{\"type\":\"publish\",\"sender_id\":\"");
+    private static final byte[] NEW_LISTENER_HEAD = Message.ascii("{\"type\":\"new_listener\",\"sender_id\":\"");
+    private static final byte[] REMOVE_SERVICE_HEAD = Message.ascii("{\"type\":\"remove_service\",\"sender_id\":\"");
+    private static final byte[] PAYLOAD_REQUEST_HEAD = Message.ascii("{\"type\":\"payload_request\",\"sender_id\":\"");
+    private static final byte[] PUBLISH_BATCH_HEAD = Message.ascii("{\"type\":\"publish_batch\",\"sender_id\":\"");
+    private static final byte[] SERVICES = Message.ascii("\",\"services\":[");
+    private static final byte[] BATCH_SEQ = Message.ascii("\",\"seq\":");
+    private static final byte[] BATCH_SEQ_SERVICES = Message.ascii(",\"services\":[");
+    private static final byte[] SEQ = Message.ascii(",\"seq\":");
+    // the longest a sequence number can be in decimal
+    private static final int MAX_SEQ_DIGITS = 10;
+    private static final byte[] SERVICES_TAIL = Message.ascii("]}");
+    private static final byte[] ENTRY_HEAD = Message.ascii("{\"sender_id\":\"");
+    private static final byte[] SERVICE_NAME = Message.ascii("\",\"service_name\":\"");
+    private static final byte[] TTL = Message.ascii("\",\"ttl\":");
+    private static final byte[] PAYLOAD = Message.ascii(",\"payload\":");
+    private static final byte[] PAYLOAD_DIGEST = Message.ascii(",\"payload_digest\":\"");
+    private static final byte[] ACCEPTS_COMPACT = Message.ascii(",\"compact\":true");
+    private static final byte[] ACCEPTS_DIGESTS = Message.ascii(",\"digests\":true");
+    private static final byte[] KNOWN = Message.ascii(",\"known\":[");
+    private static final byte[] ACCEPTS_UNICAST = Message.ascii(",\"unicast\":true");
+    private static final byte[] SERVICE_NAMES = Message.ascii(",\"service_names\":[");
+    private static final byte[] STRING_TAIL = Message.ascii("\"}");
+    private static final byte[] HEX = Message.ascii("0123456789abcdef");
+
+    private MessageEncoder() {
+    }
+
+    /**
+     * Encodes <code>msg</code> into <code>out</code>, starting at its current position. Messages
+     * flagged as <code>compact</code> are handed off to {@link CompactMessageEncoder}.
+     * @throws java.nio.BufferOverflowException if the message doesn't fit
+     * @throws IllegalArgumentException if the message type can't be sent
+     */
+    static void encode(@Nonnull Message msg, @Nonnull ByteBuffer out) {
+        if (msg.compact) {
+            CompactMessageEncoder.encode(msg, out);
+            return;
+        }
+        switch (msg.type) {
+            case Message.MESSAGE_TYPE_PUBLISH:
+                out.put(PUBLISH_HEAD);
+                putPublishFields(msg, out);
+                break;
+            case Message.MESSAGE_TYPE_NEW_LISTENER:
+                out.put(NEW_LISTENER_HEAD);
+                putSenderAndName(msg, out);
+                out.put((byte) '"');
+                if (msg.acceptsCompact) {
+                    out.put(ACCEPTS_COMPACT);
+                }
+                if (msg.acceptsDigests) {
+                    out.put(ACCEPTS_DIGESTS);
+                }
+                if (msg.acceptsUnicast) {
+                    out.put(ACCEPTS_UNICAST);
+                }
+                if (msg.serviceNameCount > 0) {
+                    out.put(SERVICE_NAMES);
+                    for (int i=0; i<msg.serviceNameCount; i++) {
+                        if (i > 0) {
+                            out.put((byte) ',');
+                        }
+                        out.put((byte) '"');
+                        putAscii(msg.serviceNames[i], out);
+                        out.put((byte) '"');
+                    }
+                    out.put((byte) ']');
+                }
+                if (msg.knownAnswers != null && msg.knownAnswers.count > 0) {
+                    putKnownAnswers(msg.knownAnswers, out);
+                }
+                out.put((byte) '}');
+                break;
+            case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+                out.put(REMOVE_SERVICE_HEAD);
+                putSenderAndName(msg, out);
+                out.put((byte) '"');
+                putSeq(msg, out);
+                out.put((byte) '}');
+                break;
+            case Message.MESSAGE_TYPE_PUBLISH_BATCH:
+                // the entries were encoded ahead of time with encodeBatchEntry
+                out.put(PUBLISH_BATCH_HEAD);
+                putHex(msg.senderIdHigh, out);
+                putHex(msg.senderIdLow, out);
+                if (msg.hasSeq) {
+                    out.put(BATCH_SEQ);
+                    putInt(msg.seq, out);
+                    out.put(BATCH_SEQ_SERVICES);
+                } else {
+                    out.put(SERVICES);
+                }
+                out.put(msg.payloadBytes, 0, msg.payloadLength);
+                out.put(SERVICES_TAIL);
+                break;
+            case Message.MESSAGE_TYPE_PAYLOAD_REQUEST:
+                out.put(PAYLOAD_REQUEST_HEAD);
+                putSenderAndName(msg, out);
+                out.put((byte) '"');
+                out.put(PAYLOAD_DIGEST);
+                putHex(msg.payloadDigest, out);
+                out.put(STRING_TAIL);
+                break;
+            default:
+                throw new IllegalArgumentException("Can't encode message of type " + msg.type);
+        }
+    }
+
+    /**
+     * Encodes a <code>publish</code> message as an entry of a batch's <code>services</code>
+     * array. Entries are separated by a comma, which the caller is responsible for.
+     * @throws java.nio.BufferOverflowException if the entry doesn't fit
+     */
+    static void encodeBatchEntry(@Nonnull Message msg, @Nonnull ByteBuffer out) {
+        out.put(ENTRY_HEAD);
+        putPublishFields(msg, out);
+    }
+
+    /**
+     * @return the number of bytes a <code>publish_batch</code> message adds around its entries
+     */
+    static int batchOverhead() {
+        return PUBLISH_BATCH_HEAD.length + 32 + BATCH_SEQ.length + MAX_SEQ_DIGITS +
+                BATCH_SEQ_SERVICES.length + SERVICES_TAIL.length;
+    }
+
+    /**
+     * Writes everything in a publish message that comes after the opening of its sender id,
+     * including the closing brace. A short form message has a digest, but no payload.
+     */
+    private static void putPublishFields(Message msg, ByteBuffer out) {
+        putSenderAndName(msg, out);
+        out.put(TTL);
+        putInt(msg.ttl, out);
+        putSeq(msg, out);
+        if (msg.hasPayloadDigest) {
+            out.put(PAYLOAD_DIGEST);
+            putHex(msg.payloadDigest, out);
+            out.put((byte) '"');
+        }
+        if (msg.payloadLength > 0) {
+            out.put(PAYLOAD);
+            out.put(msg.payloadBytes, 0, msg.payloadLength);
+        }
+        out.put((byte) '}');
+    }
+
+    private static void putSeq(Message msg, ByteBuffer out) {
+        if (msg.hasSeq) {
+            out.put(SEQ);
+            putInt(msg.seq, out);
+        }
+    }
+
+    private static void putKnownAnswers(KnownAnswers known, ByteBuffer out) {
+        out.put(KNOWN);
+        for (int i=0; i<known.count; i++) {
+            if (i > 0) {
+                out.put((byte) ',');
+            }
+            out.put((byte) '[');
+            out.put((byte) '"');
+            putHex(known.idsHigh[i], out);
+            putHex(known.idsLow[i], out);
+            out.put((byte) '"');
+            out.put((byte) ',');
+            putInt(known.ttls[i], out);
+            if (known.hasDigest[i]) {
+                out.put((byte) ',');
+                out.put((byte) '"');
+                putHex(known.digests[i], out);
+                out.put((byte) '"');
+            }
+            out.put((byte) ']');
+        }
+        out.put((byte) ']');
+    }
+
+    private static void putSenderAndName(Message msg, ByteBuffer out) {
+        putHex(msg.senderIdHigh, out);
+        putHex(msg.senderIdLow, out);
+        out.put(SERVICE_NAME);
+        putAscii(msg.serviceName, out);
+    }
+
+    private static void putAscii(String s, ByteBuffer out) {
+        // service names are restricted to ASCII
+        for (int i=0; i<s.length(); i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    private static void putHex(long value, ByteBuffer out) {
+        for (int shift=60; shift>=0; shift-=4) {
+            out.put(HEX[(int) ((value >>> shift) & 0x0F)]);
+        }
+    }
+
+    private static void putInt(int value, ByteBuffer out) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.arashpayan.chirp;
+
+import java.net.Inet6Address;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A bounded queue of received messages, between the transport's I/O thread and a browser's
+ * tasks. The slots are allocated up front, so handing a message off doesn't allocate, and the
+ * consumer drains everything that's waiting in one go instead of taking the lock once per message.
+ * The queue doesn't block: <code>offer()</code> says when the consumer needs to be told that
+ * there's something to drain, which is only once per trip from empty to drained.
+ *
+ * When the queue is full, the <code>OverflowPolicy</code> decides which message is lost. Messages
+ * offered to the queue belong to it from then on, and dropped messages are recycled.
+ *
+ * Any number of threads can offer messages, but only one thread at a time may drain them.
+ */
+class MessageRing {
+
+    private final Message[] mSlots;
+    private final int mMask;
+    private final ChirpBrowser.OverflowPolicy mPolicy;
+    // index of the oldest message, and the number of messages waiting
+    private int mHead;
+    private int mSize;
+    // true from the time a message is offered to an empty queue until it's drained empty again
+    private boolean mDrainPending;
+    private int mMaxDepth;
+    private long mDropped;
+    private long mCoalesced;
+
+    /**
+     * @param capacity the most messages that can wait in the queue, rounded up to a power of two
+     */
+    MessageRing(int capacity, @Nonnull ChirpBrowser.OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mSlots = new Message[size];
+        mMask = size - 1;
+        mPolicy = policy;
+    }
+
+    /**
+     * Adds a message to the end of the queue, making room for it according to the overflow
+     * policy if the queue is full.
+     * @return true if the consumer needs to schedule a call to <code>drain()</code>. It's false if
+     * a drain is already pending, and when the message was dropped instead.
+     */
+    synchronized boolean offer(@Nonnull Message msg) {
+        if (mSize == mSlots.length) {
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mDropped++;
+                    ChirpStats.recordMessageDropped();
+                    msg.recycle();
+                    return false;
+                case COALESCE_BY_SENDER:
+                    if (replaceFromSameSender(msg)) {
+                        mCoalesced++;
+                        ChirpStats.recordMessageDropped();
+                        return false;
+                    }
+                    // nothing to coalesce with, so the oldest message goes
+                    dropOldest();
+                    break;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+            }
+        }
+        mSlots[(mHead + mSize) & mMask] = msg;
+        mSize++;
+        if (mSize > mMaxDepth) {
+            mMaxDepth = mSize;
+        }
+        if (mDrainPending) {
+            return false;
+        }
+        mDrainPending = true;
+        return true;
+    }
+
+    /**
+     * Replaces the newest waiting message of the same type from the same sender and address
+     * family, since the newer message supersedes it. A message of another type isn't superseded
+     * (a publish doesn't undo a removal), so it's left alone.
+     */
+    private boolean replaceFromSameSender(Message msg) {
+        for (int i=mSize-1; i>=0; i--) {
+            int slot = (mHead + i) & mMask;
+            Message queued = mSlots[slot];
+            if (queued.isFrom(msg.senderIdHigh, msg.senderIdLow) && queued.type.equals(msg.type) &&
+                    queued.address instanceof Inet6Address == msg.address instanceof Inet6Address) {
+                queued.recycle();
+                mSlots[slot] = msg;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropOldest() {
+        mSlots[mHead].recycle();
+        mSlots[mHead] = null;
+        mHead = (mHead + 1) & mMask;
+        mSize--;
+        mDropped++;
+        ChirpStats.recordMessageDropped();
+    }
+
+    /**
+     * Moves the waiting messages, oldest first, into <code>out</code>. If that empties the queue,
+     * the next message offered will ask for another drain. Otherwise, it's up to the consumer to
+     * drain again.
+     * @param out receives up to <code>out.length</code> messages, which belong to the caller
+     * @return the number of messages moved into <code>out</code>
+     */
+    synchronized int drain(@Nonnull Message[] out) {
+        int count = Math.min(mSize, out.length);
+        for (int i=0; i<count; i++) {
+            out[i] = mSlots[mHead];
+            mSlots[mHead] = null;
+            mHead = (mHead + 1) & mMask;
+        }
+        mSize -= count;
+        if (mSize == 0) {
+            mDrainPending = false;
+        }
+        return count;
+    }
+
+    /**
+     * Recycles every waiting message.
+     */
+    synchronized void clear() {
+        while (mSize > 0) {
+            mSlots[mHead].recycle();
+            mSlots[mHead] = null;
+            mHead = (mHead + 1) & mMask;
+            mSize--;
+        }
+        mDrainPending = false;
+    }
+
+    synchronized int depth() {
+        return mSize;
+    }
+
+    synchronized int maxDepth() {
+        return mMaxDepth;
+    }
+
+    synchronized long dropped() {
+        return mDropped;
+    }
+
+    synchronized long coalesced() {
+        return mCoalesced;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.arashpayan.chirp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import javax.annotation.Nonnull;
+
+/**
+ * What <code>ChirpTransport</code> sends and receives messages through. On a real network that's
+ * a <code>ChirpSocket</code>, but a platform that implements <code>MessageSocket.Factory</code>
+ * can supply its own, e.g. the in-memory network of <code>SimulatedNetwork</code>.
+ */
+interface MessageSocket {
+
+    /**
+     * Receives messages read by the socket. Implementations should hand the message off and
+     * return quickly. Messages come from the <code>Message</code> pool, so the receiver is
+     * responsible for recycling them.
+     */
+    interface Listener {
+        void onMessage(@Nonnull Message msg);
+
+        /**
+         * Called once the socket has written out any queued messages and closed.
+         */
+        void onClosed();
+    }
+
+    /**
+     * Implemented by a <code>ChirpPlatform</code> that brings its own network.
+     */
+    interface Factory {
+        @Nonnull
+        MessageSocket createSocket(@Nonnull Listener listener, int receiveBufferSize);
+    }
+
+    /**
+     * @throws IOException if the socket couldn't be opened
+     */
+    void open() throws IOException;
+
+    /**
+     * Closes the socket once the messages already handed to <code>send</code> have been written.
+     */
+    void close();
+
+    /**
+     * Queues a message to be multicast. The message must not be modified after being passed in.
+     */
+    void send(@Nonnull Message msg);
+
+    /**
+     * Queues a message to be sent straight to one address.
+     * @param to the destination, or <code>null</code> to multicast it
+     */
+    void send(@Nonnull Message msg, InetSocketAddress to);
+
+    /**
+     * @return true if replies can be sent straight to this socket
+     */
+    boolean supportsUnicast();
+
+    /**
+     * Changes the size requested for <code>SO_RCVBUF</code>.
+     */
+    void setReceiveBufferSize(int bytes);
+
+    /**
+     * @return the fraction of datagrams from other senders that never arrived, between 0 and 1
+     */
+    double getEstimatedPacketLoss();
+
+}
@@ -0,0 +1,301 @@
+package com.arashpayan.chirp;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * A service's payload, kept as the raw JSON it arrived in. The typed getters read single values
+ * from an index of the top-level keys, which is built the first time one of them is called, and
+ * numbers are only converted to the type that's asked for. The full map is only decoded if it's
+ * read as a <code>Map</code>, in which case (as with Gson) every number is a <code>Double</code>.
+ * Read-only, and safe to share between threads.
+ */
+final class Payload extends AbstractMap<String, Object> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Type PAYLOAD_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+    // the index's value for an object or array, which only the full map has
+    private static final Object NESTED = new Object();
+
+    private final byte[] mJson;
+    // the top-level keys and their values: a String, Boolean, Number literal, NESTED, or null
+    private volatile Index mIndex;
+    private volatile Map<String, Object> mMap;
+
+    private static final class Index {
+        final String[] keys;
+        final Object[] values;
+
+        Index(String[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The text of a JSON number, converted when it's read.
+     */
+    private static final class Literal {
+        final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param json the payload's JSON object, which is kept, so it must not be modified afterwards
+     */
+    Payload(@Nonnull byte[] json) {
+        mJson = json;
+    }
+
+    private Index index() {
+        Index index = mIndex;
+        if (index == null) {
+            index = buildIndex();
+            mIndex = index;
+        }
+        return index;
+    }
+
+    private Index buildIndex() {
+        String[] keys = new String[8];
+        Object[] values = new Object[8];
+        int count = 0;
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(mJson), UTF8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (count == keys.length) {
+                    String[] moreKeys = new String[count * 2];
+                    Object[] moreValues = new Object[count * 2];
+                    System.arraycopy(keys, 0, moreKeys, 0, count);
+                    System.arraycopy(values, 0, moreValues, 0, count);
+                    keys = moreKeys;
+                    values = moreValues;
+                }
+                keys[count] = reader.nextName();
+                JsonToken token = reader.peek();
+                switch (token) {
+                    case STRING:
+                        values[count] = reader.nextString();
+                        break;
+                    case NUMBER:
+                        values[count] = new Literal(reader.nextString());
+                        break;
+                    case BOOLEAN:
+                        values[count] = reader.nextBoolean();
+                        break;
+                    case NULL:
+                        reader.nextNull();
+                        values[count] = null;
+                        break;
+                    default:
+                        reader.skipValue();
+                        values[count] = NESTED;
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            logw("malformed payload", e);
+            count = 0;
+        } catch (IllegalStateException e) {
+            // not an object
+            logw("malformed payload", e);
+            count = 0;
+        }
+        String[] k = new String[count];
+        Object[] v = new Object[count];
+        System.arraycopy(keys, 0, k, 0, count);
+        System.arraycopy(values, 0, v, 0, count);
+        return new Index(k, v);
+    }
+
+    /**
+     * @return the index's value for the key, or <code>NESTED</code> if the key isn't there
+     */
+    private Object lookup(String key) {
+        Index index = index();
+        for (int i=0; i<index.keys.length; i++) {
+            if (index.keys[i].equals(key)) {
+                return index.values[i];
+            }
+        }
+        return NESTED;
+    }
+
+    /**
+     * @return the string value of the key, or <code>null</code> if the key is missing or its value
+     * isn't a string
+     */
+    String getString(@Nonnull String key) {
+        Object value = lookup(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return the value of the key, if it's a whole number that fits in an <code>int</code>, or
+     * <code>defaultValue</code>
+     */
+    int getInt(@Nonnull String key, int defaultValue) {
+        Object value = lookup(key);
+        if (!(value instanceof Literal)) {
+            return defaultValue;
+        }
+        long l = toLong((Literal) value, Long.MIN_VALUE);
+        if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+            return defaultValue;
+        }
+        return (int) l;
+    }
+
+    /**
+     * @return the value of the key, if it's a whole number that fits in a <code>long</code>, or
+     * <code>defaultValue</code>
+     */
+    long getLong(@Nonnull String key, long defaultValue) {
+        Object value = lookup(key);
+        if (!(value instanceof Literal)) {
+            return defaultValue;
+        }
+        return toLong((Literal) value, defaultValue);
+    }
+
+    private static long toLong(Literal literal, long defaultValue) {
+        try {
+            return Long.parseLong(literal.text);
+        } catch (NumberFormatException e) {
+            // e.g. 1e3 or 1337.0
+            double d = Double.parseDouble(literal.text);
+            if (d == Math.rint(d) && d >= Long.MIN_VALUE && d < Long.MAX_VALUE) {
+                return (long) d;
+            }
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the value of the key, if it's a number, or <code>defaultValue</code>
+     */
+    double getDouble(@Nonnull String key, double defaultValue) {
+        Object value = lookup(key);
+        if (!(value instanceof Literal)) {
+            return defaultValue;
+        }
+        return Double.parseDouble(((Literal) value).text);
+    }
+
+    /**
+     * @return the value of the key, if it's <code>true</code> or <code>false</code>, or
+     * <code>defaultValue</code>
+     */
+    boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        Object value = lookup(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * @return true if the payload has the key, whatever its value
+     */
+    boolean has(@Nonnull String key) {
+        Index index = index();
+        for (String k : index.keys) {
+            if (k.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key's value as a term that's equal to another value's term only if the values
+     * are equal, e.g. <code>1337</code> and <code>1.337e3</code> have the same term. Used by
+     * <code>ServiceQuery</code> to compare values, and to index them.
+     * @return the term, or <code>null</code> if the key is missing or its value is an object or
+     * an array
+     */
+    String term(@Nonnull String key) {
+        Object value = lookup(key);
+        if (value instanceof String) {
+            return stringTerm((String) value);
+        }
+        if (value instanceof Boolean) {
+            return booleanTerm((Boolean) value);
+        }
+        if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            double d = Double.parseDouble(literal.text);
+            if (d == Math.rint(d) && d >= Long.MIN_VALUE && d < Long.MAX_VALUE) {
+                return numberTerm(toLong(literal, (long) d));
+            }
+            return "d" + d;
+        }
+        return value == null ? "z" : null;
+    }
+
+    static String stringTerm(@Nonnull String value) {
+        return "s" + value;
+    }
+
+    static String numberTerm(long value) {
+        return "n" + value;
+    }
+
+    static String booleanTerm(boolean value) {
+        return "b" + value;
+    }
+
+    private Map<String, Object> map() {
+        Map<String, Object> map = mMap;
+        if (map == null) {
+            InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(mJson), UTF8);
+            try {
+                map = Chirp.sGson.fromJson(reader, PAYLOAD_TYPE);
+            } catch (JsonParseException e) {
+                logw("malformed payload", e);
+            }
+            map = map == null ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(map);
+            mMap = map;
+        }
+        return map;
+    }
+
+    @Override
+    @Nonnull
+    public Set<Entry<String, Object>> entrySet() {
+        return map().entrySet();
+    }
+
+    @Override
+    public Object get(Object key) {
+        return map().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map().containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return map().size();
+    }
+
+}
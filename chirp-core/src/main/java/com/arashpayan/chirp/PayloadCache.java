@@ -0,0 +1,42 @@
+package com.arashpayan.chirp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, least recently used cache of payloads, keyed by the digest of their raw JSON. It lets
+ * a browser make sense of announcements that leave out a payload it has already seen, and means a
+ * payload shared by many services is only kept (and decoded) once. Not thread safe.
+ */
+class PayloadCache {
+
+    private final LinkedHashMap<Long, Payload> mPayloads;
+
+    /**
+     * @param maxEntries the number of payloads to hold on to. Payloads can be up to
+     *                   <code>Chirp.MAX_PAYLOAD_BYTES</code> each, so keep this small.
+     */
+    PayloadCache(final int maxEntries) {
+        mPayloads = new LinkedHashMap<Long, Payload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Payload> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the payload with the digest, or <code>null</code> if it isn't cached
+     */
+    @Nullable
+    Payload get(long digest) {
+        return mPayloads.get(digest);
+    }
+
+    void put(long digest, Payload payload) {
+        mPayloads.put(digest, payload);
+    }
+
+}
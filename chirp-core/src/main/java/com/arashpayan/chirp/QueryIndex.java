@@ -0,0 +1,385 @@
+package com.arashpayan.chirp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A browser's subscriptions, and the secondary indexes that answer their queries: the services
+ * with each name, and, for every payload key a query has a condition on, the services with each
+ * value of the key. The indexes are built from the registry when the first subscription is made,
+ * and kept up to date with every change after that, so a new subscription finds its services
+ * without looking at the ones that can't match. Subscriptions themselves are kept by the name
+ * they're for, so a change is only checked against the queries that could match it.
+ *
+ * Only touched by tasks on the browser's serial executor.
+ */
+final class QueryIndex {
+
+    static final int DISCOVERED = 0;
+    static final int UPDATED = 1;
+    static final int REMOVED = 2;
+
+    /**
+     * Receives the changes to each subscription's matches.
+     */
+    interface Events {
+        void onMatchChanged(@Nonnull Subscriber subscriber, int change, @Nonnull Service service);
+    }
+
+    /**
+     * A subscription, along with the services that match it.
+     */
+    static final class Subscriber {
+        final ServiceQuery query;
+        final ChirpBrowserListener listener;
+        final IntSet matches = new IntSet();
+        // set on the caller's thread, so callbacks that are already posted can be dropped
+        volatile boolean cancelled;
+
+        Subscriber(@Nonnull ServiceQuery query, @Nonnull ChirpBrowserListener listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+    }
+
+    private final Events mEvents;
+    // every service, by its index in the registry
+    private Service[] mServices;
+    private final HashMap<String, IntSet> mByName = new HashMap<>();
+    // payload key -> value term -> services, for the keys in mKeyUses
+    private final HashMap<String, HashMap<String, IntSet>> mByValue = new HashMap<>();
+    // the number of subscriptions with a condition on each key's value
+    private final HashMap<String, Integer> mKeyUses = new HashMap<>();
+    // subscriptions for a single name, and the ones for a prefix or every name
+    private final HashMap<String, ArrayList<Subscriber>> mSubscribersByName = new HashMap<>();
+    private final ArrayList<Subscriber> mOtherSubscribers = new ArrayList<>();
+    private int mSubscriberCount;
+
+    QueryIndex(@Nonnull ServiceRegistry registry, @Nonnull Events events) {
+        mEvents = events;
+        mServices = new Service[Math.max(16, registry.end())];
+        for (int i=0; i<registry.end(); i++) {
+            if (registry.contains(i)) {
+                Service s = registry.toService(i);
+                mServices[i] = s;
+                add(mByName, s.name, i);
+            }
+        }
+    }
+
+    /**
+     * @return true if there are no subscriptions left
+     */
+    boolean isEmpty() {
+        return mSubscriberCount == 0;
+    }
+
+    /**
+     * Adds the subscription, and reports the services that already match it as discovered.
+     */
+    void subscribe(@Nonnull Subscriber subscriber) {
+        ServiceQuery query = subscriber.query;
+        String name = query.getExactName();
+        if (name != null) {
+            ArrayList<Subscriber> subscribers = mSubscribersByName.get(name);
+            if (subscribers == null) {
+                subscribers = new ArrayList<>();
+                mSubscribersByName.put(name, subscribers);
+            }
+            subscribers.add(subscriber);
+        } else {
+            mOtherSubscribers.add(subscriber);
+        }
+        mSubscriberCount++;
+
+        // start with the smallest index entry the query's conditions point at
+        IntSet candidates = null;
+        boolean all = true;
+        if (name != null) {
+            candidates = mByName.get(name);
+            all = false;
+        }
+        for (int c=0; c<query.getConditionCount(); c++) {
+            String term = query.getConditionTerm(c);
+            if (term == null) {
+                continue;
+            }
+            String key = query.getConditionKey(c);
+            IntSet services = useKey(key).get(term);
+            if (all || candidates != null && (services == null || services.size() < candidates.size())) {
+                candidates = services;
+                all = false;
+            }
+        }
+
+        if (all) {
+            for (int i=0; i<mServices.length; i++) {
+                if (mServices[i] != null) {
+                    check(subscriber, i, mServices[i]);
+                }
+            }
+        } else if (candidates != null) {
+            int[] table = candidates.table;
+            for (int entry : table) {
+                if (entry != 0) {
+                    check(subscriber, entry - 1, mServices[entry - 1]);
+                }
+            }
+        }
+    }
+
+    private void check(Subscriber subscriber, int service, Service s) {
+        if (subscriber.query.matches(s)) {
+            subscriber.matches.add(service);
+            mEvents.onMatchChanged(subscriber, DISCOVERED, s);
+        }
+    }
+
+    void unsubscribe(@Nonnull Subscriber subscriber) {
+        ServiceQuery query = subscriber.query;
+        String name = query.getExactName();
+        boolean removed;
+        if (name != null) {
+            ArrayList<Subscriber> subscribers = mSubscribersByName.get(name);
+            removed = subscribers != null && subscribers.remove(subscriber);
+            if (removed && subscribers.isEmpty()) {
+                mSubscribersByName.remove(name);
+            }
+        } else {
+            removed = mOtherSubscribers.remove(subscriber);
+        }
+        if (!removed) {
+            return;
+        }
+        mSubscriberCount--;
+        for (int c=0; c<query.getConditionCount(); c++) {
+            if (query.getConditionTerm(c) != null) {
+                releaseKey(query.getConditionKey(c));
+            }
+        }
+    }
+
+    /**
+     * @return the index of the key's values, which is built if no other subscription uses it
+     */
+    private HashMap<String, IntSet> useKey(String key) {
+        Integer uses = mKeyUses.get(key);
+        mKeyUses.put(key, uses == null ? 1 : uses + 1);
+        HashMap<String, IntSet> values = mByValue.get(key);
+        if (values == null) {
+            values = new HashMap<>();
+            for (int i=0; i<mServices.length; i++) {
+                if (mServices[i] != null) {
+                    String term = term(mServices[i], key);
+                    if (term != null) {
+                        add(values, term, i);
+                    }
+                }
+            }
+            mByValue.put(key, values);
+        }
+        return values;
+    }
+
+    private void releaseKey(String key) {
+        int uses = mKeyUses.get(key) - 1;
+        if (uses == 0) {
+            mKeyUses.remove(key);
+            mByValue.remove(key);
+        } else {
+            mKeyUses.put(key, uses);
+        }
+    }
+
+    /**
+     * Updates the indexes with a service that was discovered or updated, and tells the
+     * subscriptions it now matches, or no longer matches.
+     */
+    void onServiceChanged(int service, @Nonnull Service s) {
+        if (service >= mServices.length) {
+            mServices = Arrays.copyOf(mServices, Math.max(service + 1, mServices.length * 2));
+        }
+        Service old = mServices[service];
+        mServices[service] = s;
+        if (old == null) {
+            add(mByName, s.name, service);
+        }
+        if (old == null || old.mPayload != s.mPayload) {
+            for (Map.Entry<String, HashMap<String, IntSet>> e : mByValue.entrySet()) {
+                String key = e.getKey();
+                String oldTerm = old == null ? null : term(old, key);
+                String newTerm = term(s, key);
+                if (oldTerm != null ? oldTerm.equals(newTerm) : newTerm == null) {
+                    continue;
+                }
+                if (oldTerm != null) {
+                    remove(e.getValue(), oldTerm, service);
+                }
+                if (newTerm != null) {
+                    add(e.getValue(), newTerm, service);
+                }
+            }
+        }
+        route(service, s, false);
+    }
+
+    /**
+     * Takes a service out of the indexes, and tells the subscriptions it matched that it's gone.
+     * Must be called before the service is removed from the registry.
+     */
+    void onServiceRemoved(int service) {
+        if (service >= mServices.length || mServices[service] == null) {
+            return;
+        }
+        Service old = mServices[service];
+        mServices[service] = null;
+        remove(mByName, old.name, service);
+        for (Map.Entry<String, HashMap<String, IntSet>> e : mByValue.entrySet()) {
+            String term = term(old, e.getKey());
+            if (term != null) {
+                remove(e.getValue(), term, service);
+            }
+        }
+        route(service, old, true);
+    }
+
+    private void route(int service, Service s, boolean removed) {
+        ArrayList<Subscriber> subscribers = mSubscribersByName.get(s.name);
+        if (subscribers != null) {
+            for (Subscriber subscriber : subscribers) {
+                update(subscriber, service, s, removed);
+            }
+        }
+        for (Subscriber subscriber : mOtherSubscribers) {
+            update(subscriber, service, s, removed);
+        }
+    }
+
+    private void update(Subscriber subscriber, int service, Service s, boolean removed) {
+        boolean matched = subscriber.matches.contains(service);
+        boolean matches = !removed && subscriber.query.matches(s);
+        if (matches) {
+            if (matched) {
+                mEvents.onMatchChanged(subscriber, UPDATED, s);
+            } else {
+                subscriber.matches.add(service);
+                mEvents.onMatchChanged(subscriber, DISCOVERED, s);
+            }
+        } else if (matched) {
+            subscriber.matches.remove(service);
+            mEvents.onMatchChanged(subscriber, REMOVED, s);
+        }
+    }
+
+    private static String term(Service s, String key) {
+        return s.mPayload == null ? null : s.mPayload.term(key);
+    }
+
+    private static void add(HashMap<String, IntSet> index, String key, int service) {
+        IntSet services = index.get(key);
+        if (services == null) {
+            services = new IntSet();
+            index.put(key, services);
+        }
+        services.add(service);
+    }
+
+    private static void remove(HashMap<String, IntSet> index, String key, int service) {
+        IntSet services = index.get(key);
+        if (services != null && services.remove(service) && services.size() == 0) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * A set of service indexes, in an open addressing table. An index entry usually holds a few
+     * services, and can hold them all, so it starts small and grows as needed.
+     */
+    static final class IntSet {
+        // each service's index plus 1, or 0 for an empty slot
+        int[] table = new int[4];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        private static int slot(int value, int mask) {
+            int h = value * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        boolean contains(int value) {
+            int mask = table.length - 1;
+            for (int i = slot(value, mask); table[i] != 0; i = (i + 1) & mask) {
+                if (table[i] == value + 1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean add(int value) {
+            if (contains(value)) {
+                return false;
+            }
+            // keep the table at most half full
+            if ((mSize + 1) * 2 > table.length) {
+                int[] old = table;
+                table = new int[old.length * 2];
+                for (int entry : old) {
+                    if (entry != 0) {
+                        insert(entry);
+                    }
+                }
+            }
+            insert(value + 1);
+            mSize++;
+            return true;
+        }
+
+        private void insert(int entry) {
+            int mask = table.length - 1;
+            int i = slot(entry - 1, mask);
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+
+        boolean remove(int value) {
+            int mask = table.length - 1;
+            int i = slot(value, mask);
+            while (table[i] != value + 1) {
+                if (table[i] == 0) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            // shift back the entries that probed past the one being removed, as in
+            // ServiceRegistry
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                int entry = table[j];
+                if (entry == 0) {
+                    break;
+                }
+                int home = slot(entry - 1, mask);
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    table[i] = entry;
+                    i = j;
+                }
+            }
+            table[i] = 0;
+            mSize--;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.arashpayan.chirp;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a publisher answers queries (<code>new_listener</code> and
+ * <code>payload_request</code> messages), along the lines of multicast DNS. Instead of every
+ * publisher on the network answering a new listener in the same instant, each reply waits a random
+ * 20-500ms. Queries that arrive while a reply is pending are answered by that same reply, a
+ * multicast announcement that goes out after a query arrived answers it too, and the full
+ * announcement is never multicast more than once a second.
+ *
+ * A query can ask for a unicast reply. If it's the only query the pending reply answers, the reply
+ * goes straight to its sender, so the rest of the network doesn't have to wake up for it. Once a
+ * second query joins in, the reply is multicast instead.
+ *
+ * Times are in milliseconds from the publisher's <code>ChirpScheduler</code>. Not thread safe.
+ */
+class ReplyScheduler {
+
+    static final long MIN_REPLY_DELAY_MS = 20;
+    static final long MAX_REPLY_DELAY_MS = 500;
+    // the shortest time between two multicasts of the full announcement
+    static final long REPLY_INTERVAL_MS = 1000;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private long mReplyAt = NONE;
+    private long mLastAnnounce = NONE;
+    private InetSocketAddress mReplyTo;
+    private long mQuerierHigh;
+    private long mQuerierLow;
+
+    /**
+     * Schedules a multicast reply to a query that just arrived, unless one is already pending.
+     */
+    void onQuery(long now) {
+        onQuery(now, null, 0, 0);
+    }
+
+    /**
+     * Schedules a reply to a query that just arrived, unless one is already pending.
+     * @param replyTo where the sender asked the reply to go, or <code>null</code> to multicast it
+     * @param senderIdHigh the sender's id, so that the copies of its query that arrive over IPv4
+     *                     and IPv6 are treated as one
+     */
+    void onQuery(long now, InetSocketAddress replyTo, long senderIdHigh, long senderIdLow) {
+        if (mReplyAt == NONE) {
+            mReplyAt = now + ThreadLocalRandom.current().nextLong(MIN_REPLY_DELAY_MS, MAX_REPLY_DELAY_MS + 1);
+            mReplyTo = replyTo;
+            mQuerierHigh = senderIdHigh;
+            mQuerierLow = senderIdLow;
+        } else if (mReplyTo != null && (replyTo == null || senderIdHigh != mQuerierHigh || senderIdLow != mQuerierLow)) {
+            // the pending reply has to answer more than one sender now
+            mReplyTo = null;
+        } else {
+            // the pending reply answers this query too
+            return;
+        }
+        if (mReplyTo == null && mLastAnnounce != NONE) {
+            // we've just announced, but the new listener may not have been listening yet
+            mReplyAt = Math.max(mReplyAt, mLastAnnounce + REPLY_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * @return where the pending reply should be sent, or <code>null</code> if it should be
+     * multicast
+     */
+    InetSocketAddress getReplyAddress() {
+        return mReplyTo;
+    }
+
+    /**
+     * Records that the pending reply was sent straight to <code>getReplyAddress()</code>. Unlike
+     * <code>onAnnounced</code>, this doesn't count towards the multicast rate limit.
+     */
+    void onUnicastReplySent() {
+        mReplyAt = NONE;
+        mReplyTo = null;
+    }
+
+    /**
+     * Records that the full announcement, or a reply that answers every query received so far,
+     * was just multicast, so any pending reply is cancelled.
+     */
+    void onAnnounced(long now) {
+        mLastAnnounce = now;
+        mReplyAt = NONE;
+        mReplyTo = null;
+    }
+
+    boolean hasPendingReply() {
+        return mReplyAt != NONE;
+    }
+
+    /**
+     * @return true if the pending reply should be sent now
+     */
+    boolean isReplyDue(long now) {
+        return mReplyAt != NONE && now >= mReplyAt;
+    }
+
+    /**
+     * @return milliseconds until the pending reply is due (0 if it's overdue), or -1 if there is
+     * no pending reply
+     */
+    long timeUntilReply(long now) {
+        if (mReplyAt == NONE) {
+            return -1;
+        }
+        return Math.max(0, mReplyAt - now);
+    }
+
+}
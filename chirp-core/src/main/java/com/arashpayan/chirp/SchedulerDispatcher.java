@@ -0,0 +1,78 @@
+package com.arashpayan.chirp;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A <code>CallbackDispatcher</code> that runs callbacks as tasks on a <code>ChirpScheduler</code>,
+ * one at a time and in order, without a thread of its own.
+ */
+final class SchedulerDispatcher implements CallbackDispatcher {
+
+    private final SerialExecutor mSerial;
+    // posts that haven't run yet, so they can be cancelled by their runnable
+    private final HashSet<Post> mPending = new HashSet<>();
+
+    private class Post implements Runnable {
+
+        final Runnable runnable;
+        ChirpScheduler.Cancellable timer;
+
+        Post(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mPending) {
+                if (!mPending.remove(this)) {
+                    // cancelled after it was already on its way
+                    return;
+                }
+            }
+            runnable.run();
+        }
+    }
+
+    SchedulerDispatcher(@Nonnull ChirpScheduler scheduler) {
+        mSerial = new SerialExecutor();
+        mSerial.start(scheduler);
+    }
+
+    @Override
+    public void post(@Nonnull Runnable r) {
+        postDelayed(r, 0);
+    }
+
+    @Override
+    public void postDelayed(@Nonnull Runnable r, long delayMs) {
+        Post post = new Post(r);
+        synchronized (mPending) {
+            mPending.add(post);
+            if (delayMs <= 0) {
+                mSerial.execute(post);
+            } else {
+                post.timer = mSerial.schedule(post, delayMs);
+            }
+        }
+    }
+
+    @Override
+    public void cancel(@Nonnull Runnable r) {
+        synchronized (mPending) {
+            Iterator<Post> it = mPending.iterator();
+            while (it.hasNext()) {
+                Post post = it.next();
+                if (post.runnable == r) {
+                    it.remove();
+                    if (post.timer != null) {
+                        post.timer.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.arashpayan.chirp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * How many copies of each type of message <code>ChirpSocket</code> sends, and how far apart.
+ * Multicast is unreliable, Wi-Fi especially so, and a second copy a few milliseconds later makes
+ * it much more likely that everyone hears a message. The copies after the first are sent from the
+ * socket's I/O thread on a timer, so sending never blocks the caller.
+ *
+ * Settings are shared by every socket in the process. <code>publish_batch</code> messages use the
+ * settings for <code>publish</code>.
+ */
+final class SendRedundancy {
+
+    static final int DEFAULT_COPIES = 2;
+    static final long DEFAULT_INTERVAL_MS = 20;
+    static final int MAX_COPIES = 8;
+    static final long MAX_INTERVAL_MS = 5000;
+
+    private static final SendRedundancy DEFAULT = new SendRedundancy(DEFAULT_COPIES, DEFAULT_INTERVAL_MS);
+    private static final ConcurrentHashMap<String, SendRedundancy> sByType = new ConcurrentHashMap<>();
+
+    final int copies;
+    final long intervalMs;
+
+    private SendRedundancy(int copies, long intervalMs) {
+        this.copies = copies;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * @return the settings for messages of the type
+     */
+    @Nonnull
+    static SendRedundancy forType(String type) {
+        if (Message.MESSAGE_TYPE_PUBLISH_BATCH.equals(type)) {
+            type = Message.MESSAGE_TYPE_PUBLISH;
+        }
+        SendRedundancy redundancy = sByType.get(type);
+        return redundancy == null ? DEFAULT : redundancy;
+    }
+
+    /**
+     * @see Chirp#setSendRedundancy(String, int, long)
+     */
+    static void set(@Nonnull String type, int copies, long intervalMs) {
+        switch (type) {
+            case Message.MESSAGE_TYPE_NEW_LISTENER:
+            case Message.MESSAGE_TYPE_PUBLISH:
+            case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+            case Message.MESSAGE_TYPE_PAYLOAD_REQUEST:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+        if (copies < 1 || copies > MAX_COPIES) {
+            throw new IllegalArgumentException("copies must be between 1 and " + MAX_COPIES);
+        }
+        if (intervalMs < 1 || intervalMs > MAX_INTERVAL_MS) {
+            throw new IllegalArgumentException("intervalMs must be between 1 and " + MAX_INTERVAL_MS);
+        }
+        sByType.put(type, new SendRedundancy(copies, intervalMs));
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.arashpayan.chirp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a <code>ChirpScheduler</code>.
+ * Every browser and publisher has one, so its state is only ever touched by one task at a time,
+ * and it doesn't hold on to a thread while it has nothing to do.
+ *
+ * Tasks submitted before <code>start()</code> wait until it's called.
+ */
+final class SerialExecutor implements Executor {
+
+    // how many tasks run before the thread is handed back, so a busy executor can't starve the
+    // others sharing the scheduler
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    // both guarded by mTasks
+    private ChirpScheduler mScheduler;
+    private boolean mRunning;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Starts running tasks, including any that were submitted before now.
+     */
+    void start(@Nonnull ChirpScheduler scheduler) {
+        synchronized (mTasks) {
+            if (mScheduler != null) {
+                return;
+            }
+            mScheduler = scheduler;
+            if (mTasks.isEmpty()) {
+                return;
+            }
+            mRunning = true;
+        }
+        scheduler.execute(mDrain);
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        ChirpScheduler scheduler;
+        synchronized (mTasks) {
+            mTasks.add(task);
+            if (mRunning || mScheduler == null) {
+                return;
+            }
+            mRunning = true;
+            scheduler = mScheduler;
+        }
+        scheduler.execute(mDrain);
+    }
+
+    /**
+     * Runs <code>task</code> on this executor once <code>delayMs</code> milliseconds have passed.
+     * May only be called once the executor has been started. Cancelling the task doesn't stop it
+     * if its time has come and it's waiting behind other tasks, so tasks that are cancelled have
+     * to check whether they still have work to do.
+     */
+    @Nonnull
+    ChirpScheduler.Cancellable schedule(@Nonnull final Runnable task, long delayMs) {
+        ChirpScheduler scheduler;
+        synchronized (mTasks) {
+            scheduler = mScheduler;
+        }
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        }, delayMs);
+    }
+
+    private void drain() {
+        ChirpScheduler scheduler;
+        for (int i=0; i<MAX_TASKS_PER_TURN; i++) {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logw("error running task", t);
+            }
+        }
+        synchronized (mTasks) {
+            scheduler = mScheduler;
+        }
+        // let the others have a turn before running the rest
+        scheduler.execute(mDrain);
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.arashpayan.chirp;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An object that represents a Chirp service on the network. A <code>Service</code> is immutable:
+ * listeners get a new one with every event, holding the service's state at the time of the event,
+ * and it can be shared between threads freely.
+ */
+public class Service {
+
+    @Nonnull
+    protected final String publisherId;
+    // the publisher id in binary form
+    final long idHigh;
+    final long idLow;
+    protected final InetAddress v4Address;
+    protected final InetAddress v6Address;
+    public final String name;
+    /**
+     * The payload, which can't be modified. <code>null</code> if the service does not have a
+     * payload. It's only decoded into a map when it's read as one, so prefer the typed getters,
+     * e.g. <code>getInt("port")</code>, for reading a value or two.
+     */
+    public final Map<String, Object> payload;
+    // the same payload, for the typed getters and ServiceQuery
+    final Payload mPayload;
+
+    Service(long idHigh, long idLow, @Nonnull String name, InetAddress v4Address, InetAddress v6Address, Payload payload) {
+        this.publisherId = Chirp.idString(idHigh, idLow);
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.name = name;
+        this.v4Address = v4Address;
+        this.v6Address = v6Address;
+        this.payload = payload;
+        this.mPayload = payload;
+    }
+
+    /**
+     * Returns the IPv4 address of the host running the service.
+     * @return the IPv4 address, or <code>null</code> if an IPv4 address has not been discovered yet
+     */
+    public String getIpv4() {
+        return Message.hostAddress(v4Address);
+    }
+
+    /**
+     * Returns the IPv6 address of the host running the service.
+     * @return the IPv6 address, or <code>null</code> if an IPv6 address has not been discovered yet
+     */
+    public String getIpv6() {
+        return Message.hostAddress(v6Address);
+    }
+
+    /**
+     * @return the name of the service
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the payload of the service, which can't be modified. <code>null</code> if the
+     * service does not have a payload
+     */
+    public Map<String, Object> getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or <code>null</code> if there's no such
+     * key or its value isn't a string
+     */
+    public String getString(@Nonnull String key) {
+        return mPayload == null ? null : mPayload.getString(key);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or 0 if there's no such key or its value
+     * isn't a whole number that fits in an <code>int</code>
+     */
+    public int getInt(@Nonnull String key) {
+        return getInt(key, 0);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or <code>defaultValue</code> if there's no
+     * such key or its value isn't a whole number that fits in an <code>int</code>
+     */
+    public int getInt(@Nonnull String key, int defaultValue) {
+        return mPayload == null ? defaultValue : mPayload.getInt(key, defaultValue);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or 0 if there's no such key or its value
+     * isn't a whole number that fits in a <code>long</code>
+     */
+    public long getLong(@Nonnull String key) {
+        return getLong(key, 0);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or <code>defaultValue</code> if there's no
+     * such key or its value isn't a whole number that fits in a <code>long</code>
+     */
+    public long getLong(@Nonnull String key, long defaultValue) {
+        return mPayload == null ? defaultValue : mPayload.getLong(key, defaultValue);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or 0 if there's no such key or its value
+     * isn't a number
+     */
+    public double getDouble(@Nonnull String key) {
+        return getDouble(key, 0);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or <code>defaultValue</code> if there's no
+     * such key or its value isn't a number
+     */
+    public double getDouble(@Nonnull String key, double defaultValue) {
+        return mPayload == null ? defaultValue : mPayload.getDouble(key, defaultValue);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or false if there's no such key or its
+     * value isn't a boolean
+     */
+    public boolean getBoolean(@Nonnull String key) {
+        return getBoolean(key, false);
+    }
+
+    /**
+     * @return the payload's value for <code>key</code>, or <code>defaultValue</code> if there's no
+     * such key or its value isn't a boolean
+     */
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        return mPayload == null ? defaultValue : mPayload.getBoolean(key, defaultValue);
+    }
+
+    /**
+     * @return the unique identifier for the publisher responsible for publishing this service.
+     */
+    public String getPublisherId() {
+        return publisherId;
+    }
+
+    @Override
+    public String toString() {
+        return "Service{" +
+                "publisherId='" + publisherId + '\'' +
+                ", v4Ip='" + getIpv4() + '\'' +
+                ", v6Ip='" + getIpv6() + '\'' +
+                ", name='" + name + '\'' +
+                ", payload=" + payload +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Service service = (Service) o;
+
+        return publisherId.equals(service.publisherId);
+
+    }
+
+    @Override
+    public int hashCode() {
+        return publisherId.hashCode();
+    }
+}
@@ -0,0 +1,118 @@
+package com.arashpayan.chirp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Collects service events for a <code>ChirpBrowserBatchListener</code> and delivers them through a
+ * <code>CallbackDispatcher</code>, either once the batch interval has elapsed since the first
+ * event in the batch, or as soon as the batch reaches its maximum size, whichever comes first.
+ * Events for the same publisher are collapsed into a single entry.
+ */
+class ServiceEventBatcher {
+
+    private final ChirpBrowserBatchListener mListener;
+    private final CallbackDispatcher mDispatcher;
+    private final long mIntervalMs;
+    private final int mMaxBatchSize;
+    private final Object mLock = new Object();
+    // all keyed by publisher id, guarded by mLock
+    private LinkedHashMap<String, Service> mAdded = new LinkedHashMap<>();
+    private LinkedHashMap<String, Service> mUpdated = new LinkedHashMap<>();
+    private LinkedHashMap<String, Service> mRemoved = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ServiceEventBatcher(@Nonnull ChirpBrowserBatchListener listener, @Nonnull CallbackDispatcher dispatcher, long intervalMs, int maxBatchSize) {
+        mListener = listener;
+        mDispatcher = dispatcher;
+        mIntervalMs = intervalMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    void onServiceDiscovered(@Nonnull Service service) {
+        synchronized (mLock) {
+            if (mRemoved.remove(service.publisherId) != null) {
+                // the listener already knows about it, so this is effectively an update
+                mUpdated.put(service.publisherId, service);
+            } else {
+                mAdded.put(service.publisherId, service);
+            }
+            scheduleFlush();
+        }
+    }
+
+    void onServiceUpdated(@Nonnull Service service) {
+        synchronized (mLock) {
+            if (mAdded.containsKey(service.publisherId)) {
+                mAdded.put(service.publisherId, service);
+            } else {
+                mUpdated.put(service.publisherId, service);
+            }
+            scheduleFlush();
+        }
+    }
+
+    void onServiceRemoved(@Nonnull Service service) {
+        synchronized (mLock) {
+            if (mAdded.remove(service.publisherId) == null) {
+                mUpdated.remove(service.publisherId);
+                mRemoved.put(service.publisherId, service);
+            }
+            // else the listener never heard about it, so there's nothing to tell
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Delivers whatever is pending right away.
+     */
+    void flushNow() {
+        synchronized (mLock) {
+            mDispatcher.cancel(mFlushRunnable);
+            mFlushScheduled = true;
+            mDispatcher.post(mFlushRunnable);
+        }
+    }
+
+    // must hold mLock
+    private void scheduleFlush() {
+        int size = mAdded.size() + mUpdated.size() + mRemoved.size();
+        if (size >= mMaxBatchSize) {
+            mDispatcher.cancel(mFlushRunnable);
+            mFlushScheduled = true;
+            mDispatcher.post(mFlushRunnable);
+        } else if (!mFlushScheduled && size > 0) {
+            mFlushScheduled = true;
+            mDispatcher.postDelayed(mFlushRunnable, mIntervalMs);
+        }
+    }
+
+    private void flush() {
+        ArrayList<Service> added;
+        ArrayList<Service> updated;
+        ArrayList<Service> removed;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mAdded.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty()) {
+                return;
+            }
+            added = new ArrayList<>(mAdded.values());
+            updated = new ArrayList<>(mUpdated.values());
+            removed = new ArrayList<>(mRemoved.values());
+            mAdded.clear();
+            mUpdated.clear();
+            mRemoved.clear();
+        }
+        mListener.onServicesChanged(added, updated, removed);
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.arashpayan.chirp;
+
+import java.util.ArrayList;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A query over a browser's services, on their name and the values in their payloads. Pass one to
+ * <code>ChirpBrowser.subscribe</code> to hear about only the services that match it:
+ * <pre>
+ *     ServiceQuery lamps = new ServiceQuery.Builder().
+ *                                 name("com.example.lamp").
+ *                                 where("model", "X100").
+ *                                 where("firmware", 3).
+ *                                 build();
+ *     browser.subscribe(lamps, listener);
+ * </pre>
+ *
+ * A service matches if it matches the name pattern, every condition on its payload, and the
+ * filter, if there is one. Conditions on the name and on payload values are answered from indexes
+ * the browser keeps, so they're cheap no matter how many services there are. The filter is only
+ * asked about services that meet the other conditions. Queries are immutable, and can be shared
+ * between threads and browsers.
+ */
+public final class ServiceQuery {
+
+    /**
+     * A condition that can't be expressed with the builder's other methods.
+     */
+    public interface Filter {
+        /**
+         * Called on the browser's thread, so it must not block, and must give the same answer
+         * for the same service.
+         * @return true if the service matches
+         */
+        boolean matches(@Nonnull Service service);
+    }
+
+    private final String mNamePattern;
+    // the payload keys with conditions, and the term each key's value must have (null if the key
+    // only has to be there)
+    private final String[] mKeys;
+    private final String[] mTerms;
+    private final Filter mFilter;
+
+    /**
+     * Used to chain configuration calls for creating a <code>ServiceQuery</code>.
+     */
+    public static class Builder {
+
+        private String mNamePattern = "*";
+        private final ArrayList<String> mKeys = new ArrayList<>();
+        private final ArrayList<String> mTerms = new ArrayList<>();
+        private Filter mFilter;
+
+        /**
+         * Matches services with the name, or with a name starting with the prefix if the pattern
+         * ends in "*". Default is "*", which matches every service the browser finds.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder name(@Nonnull String pattern) {
+            if (!Chirp.isValidServiceNamePattern(pattern)) {
+                throw new IllegalArgumentException("Invalid service name pattern");
+            }
+            mNamePattern = pattern;
+            return this;
+        }
+
+        /**
+         * Matches services whose payload has the key, with a string value equal to
+         * <code>value</code>.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder where(@Nonnull String key, @Nonnull String value) {
+            return condition(key, Payload.stringTerm(value));
+        }
+
+        /**
+         * Matches services whose payload has the key, with a number value equal to
+         * <code>value</code>, however it's written, e.g. <code>1337</code> or <code>1.337e3</code>.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder where(@Nonnull String key, long value) {
+            return condition(key, Payload.numberTerm(value));
+        }
+
+        /**
+         * Matches services whose payload has the key, with the boolean value.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder where(@Nonnull String key, boolean value) {
+            return condition(key, Payload.booleanTerm(value));
+        }
+
+        /**
+         * Matches services whose payload has the key, whatever its value.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder has(@Nonnull String key) {
+            return condition(key, null);
+        }
+
+        private Builder condition(@Nonnull String key, String term) {
+            mKeys.add(key);
+            mTerms.add(term);
+            return this;
+        }
+
+        /**
+         * Matches only the services the filter accepts, of those that meet the other conditions.
+         * @return the same <code>Builder</code> object for method chaining
+         */
+        @SuppressWarnings("unused")
+        public Builder filter(Filter filter) {
+            mFilter = filter;
+            return this;
+        }
+
+        public ServiceQuery build() {
+            return new ServiceQuery(this);
+        }
+
+    }
+
+    private ServiceQuery(Builder builder) {
+        mNamePattern = builder.mNamePattern;
+        mKeys = builder.mKeys.toArray(new String[builder.mKeys.size()]);
+        mTerms = builder.mTerms.toArray(new String[builder.mTerms.size()]);
+        mFilter = builder.mFilter;
+    }
+
+    /**
+     * @return true if the service matches the query
+     */
+    public boolean matches(@Nonnull Service service) {
+        return Chirp.serviceNameMatches(mNamePattern, service.name) &&
+                matchesPayload(service.mPayload) &&
+                (mFilter == null || mFilter.matches(service));
+    }
+
+    private boolean matchesPayload(Payload payload) {
+        if (mKeys.length == 0) {
+            return true;
+        }
+        if (payload == null) {
+            return false;
+        }
+        for (int i=0; i<mKeys.length; i++) {
+            if (mTerms[i] == null ? !payload.has(mKeys[i]) : !mTerms[i].equals(payload.term(mKeys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the name the query matches, or <code>null</code> if it matches a prefix or any name
+     */
+    String getExactName() {
+        return mNamePattern.endsWith("*") ? null : mNamePattern;
+    }
+
+    /**
+     * @return the number of conditions on the payload
+     */
+    int getConditionCount() {
+        return mKeys.length;
+    }
+
+    String getConditionKey(int condition) {
+        return mKeys[condition];
+    }
+
+    /**
+     * @return the term the key's value must have, or <code>null</code> if the key only has to be
+     * there
+     */
+    String getConditionTerm(int condition) {
+        return mTerms[condition];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ServiceQuery{name=").append(mNamePattern);
+        for (int i=0; i<mKeys.length; i++) {
+            sb.append(", ").append(mKeys[i]);
+            sb.append(mTerms[i] == null ? " exists" : "=" + mTerms[i].substring(1));
+        }
+        if (mFilter != null) {
+            sb.append(", filter=").append(mFilter);
+        }
+        return sb.append('}').toString();
+    }
+
+}
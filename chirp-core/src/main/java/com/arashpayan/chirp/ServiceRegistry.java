@@ -0,0 +1,481 @@
+package com.arashpayan.chirp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The services a browser knows about. A wildcard browser on a big network can know about tens of
+ * thousands of services, so rather than an object per service in a map keyed by hex strings,
+ * each service is a small integer index into parallel arrays. Sender ids are kept as two
+ * <code>long</code>s and found through an open-addressing table, service names are interned, and
+ * addresses are kept as their raw bytes. <code>Service</code> objects are only created for the
+ * browser's listeners and snapshot, with <code>toService</code>.
+ *
+ * A service can have an address of each family, and each address has its own deadline. The
+ * deadlines are kept in a binary min-heap of address slots (<code>service * 2 + family</code>),
+ * which works like <code>DeadlineHeap</code> without an entry object per address. Not thread
+ * safe.
+ */
+class ServiceRegistry {
+
+    static final int IPV4 = 0;
+    static final int IPV6 = 1;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
+
+    // the open-addressing table, twice the size of the service arrays. Each slot holds the index
+    // of a service + 1, or 0 if it's empty.
+    private int[] mTable;
+    private int mTableMask;
+
+    // the services, by index. An index that's not in use has a null name.
+    private long[] mIdHigh;
+    private long[] mIdLow;
+    private String[] mNames;
+    private int[] mTtls;
+    private long[] mPayloadDigests;
+    private boolean[] mHasPayloadDigest;
+    // payloads are shared with the browser's payload cache
+    private Payload[] mPayloads;
+    // indexes below mEnd that were freed, as a stack
+    private int[] mFree;
+    private int mFreeCount;
+    private int mEnd;
+    private int mSize;
+    // the canonical string for every service name we've seen
+    private final HashMap<String, String> mNamePool = new HashMap<>();
+
+    // the addresses and their deadlines, by address slot. mHeapIndex is the slot's position in
+    // mHeap, or NONE if the service has no address of that family.
+    private long[] mAddrHigh;
+    private long[] mAddrLow;
+    private long[] mDeadlines;
+    private int[] mHeapIndex;
+    private int[] mHeap;
+    private int mHeapSize;
+
+    ServiceRegistry() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mIdHigh = new long[capacity];
+        mIdLow = new long[capacity];
+        mNames = new String[capacity];
+        mTtls = new int[capacity];
+        mPayloadDigests = new long[capacity];
+        mHasPayloadDigest = new boolean[capacity];
+        mPayloads = new Payload[capacity];
+        mFree = new int[capacity];
+        mAddrHigh = new long[capacity * 2];
+        mAddrLow = new long[capacity * 2];
+        mDeadlines = new long[capacity * 2];
+        mHeapIndex = new int[capacity * 2];
+        Arrays.fill(mHeapIndex, NONE);
+        mHeap = new int[capacity * 2];
+        mTable = new int[capacity * 2];
+        mTableMask = mTable.length - 1;
+    }
+
+    private void grow() {
+        int capacity = mIdHigh.length * 2;
+        mIdHigh = Arrays.copyOf(mIdHigh, capacity);
+        mIdLow = Arrays.copyOf(mIdLow, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mTtls = Arrays.copyOf(mTtls, capacity);
+        mPayloadDigests = Arrays.copyOf(mPayloadDigests, capacity);
+        mHasPayloadDigest = Arrays.copyOf(mHasPayloadDigest, capacity);
+        mPayloads = Arrays.copyOf(mPayloads, capacity);
+        mFree = Arrays.copyOf(mFree, capacity);
+        mAddrHigh = Arrays.copyOf(mAddrHigh, capacity * 2);
+        mAddrLow = Arrays.copyOf(mAddrLow, capacity * 2);
+        mDeadlines = Arrays.copyOf(mDeadlines, capacity * 2);
+        int oldSlots = mHeapIndex.length;
+        mHeapIndex = Arrays.copyOf(mHeapIndex, capacity * 2);
+        Arrays.fill(mHeapIndex, oldSlots, mHeapIndex.length, NONE);
+        mHeap = Arrays.copyOf(mHeap, capacity * 2);
+
+        mTable = new int[capacity * 2];
+        mTableMask = mTable.length - 1;
+        for (int i=0; i<mEnd; i++) {
+            if (mNames[i] != null) {
+                insert(i);
+            }
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = (high ^ low) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the number of services
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return one past the highest index in use, for iterating over the services along with
+     * <code>contains</code>
+     */
+    int end() {
+        return mEnd;
+    }
+
+    /**
+     * @return true if <code>service</code> is the index of a service
+     */
+    boolean contains(int service) {
+        return mNames[service] != null;
+    }
+
+    /**
+     * @return the index of the service published by the given sender, or -1 if we don't know it
+     */
+    int find(long idHigh, long idLow) {
+        int i = hash(idHigh, idLow) & mTableMask;
+        int entry;
+        while ((entry = mTable[i]) != 0) {
+            int service = entry - 1;
+            if (mIdHigh[service] == idHigh && mIdLow[service] == idLow) {
+                return service;
+            }
+            i = (i + 1) & mTableMask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Adds a service without any addresses. The sender must not already be in the registry.
+     * @return the index of the new service
+     */
+    int add(long idHigh, long idLow, @Nonnull String name) {
+        int service;
+        if (mFreeCount > 0) {
+            service = mFree[--mFreeCount];
+        } else {
+            if (mEnd == mIdHigh.length) {
+                grow();
+            }
+            service = mEnd++;
+        }
+        String canonical = mNamePool.get(name);
+        if (canonical == null) {
+            canonical = name;
+            mNamePool.put(name, name);
+        }
+        mIdHigh[service] = idHigh;
+        mIdLow[service] = idLow;
+        mNames[service] = canonical;
+        insert(service);
+        mSize++;
+        return service;
+    }
+
+    private void insert(int service) {
+        int i = hash(mIdHigh[service], mIdLow[service]) & mTableMask;
+        while (mTable[i] != 0) {
+            i = (i + 1) & mTableMask;
+        }
+        mTable[i] = service + 1;
+    }
+
+    /**
+     * Removes a service, along with its addresses and their deadlines.
+     */
+    void remove(int service) {
+        int i = hash(mIdHigh[service], mIdLow[service]) & mTableMask;
+        while (mTable[i] != service + 1) {
+            i = (i + 1) & mTableMask;
+        }
+        // shift back the entries that probed past the one being removed, so lookups don't stop
+        // at the hole
+        int j = i;
+        while (true) {
+            j = (j + 1) & mTableMask;
+            int entry = mTable[j];
+            if (entry == 0) {
+                break;
+            }
+            int home = hash(mIdHigh[entry - 1], mIdLow[entry - 1]) & mTableMask;
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                mTable[i] = entry;
+                i = j;
+            }
+        }
+        mTable[i] = 0;
+
+        clearAddress(service * 2 + IPV4);
+        clearAddress(service * 2 + IPV6);
+        mNames[service] = null;
+        mPayloads[service] = null;
+        mHasPayloadDigest[service] = false;
+        mFree[mFreeCount++] = service;
+        mSize--;
+    }
+
+    @Nonnull
+    String getName(int service) {
+        return mNames[service];
+    }
+
+    int getTtl(int service) {
+        return mTtls[service];
+    }
+
+    void setTtl(int service, int ttl) {
+        mTtls[service] = ttl;
+    }
+
+    boolean hasPayloadDigest(int service) {
+        return mHasPayloadDigest[service];
+    }
+
+    long getPayloadDigest(int service) {
+        return mPayloadDigests[service];
+    }
+
+    void setPayload(int service, Payload payload, boolean hasDigest, long digest) {
+        mPayloads[service] = payload;
+        mHasPayloadDigest[service] = hasDigest;
+        mPayloadDigests[service] = digest;
+    }
+
+    long getIdHigh(int service) {
+        return mIdHigh[service];
+    }
+
+    long getIdLow(int service) {
+        return mIdLow[service];
+    }
+
+    /**
+     * Sets the service's address in the address's family, and when it expires.
+     * @return true if the service didn't have this address before
+     */
+    boolean setAddress(int service, @Nonnull InetAddress address, long deadline) {
+        byte[] raw = address.getAddress();
+        int slot;
+        long high;
+        long low;
+        if (raw.length == 16) {
+            slot = service * 2 + IPV6;
+            high = getLong(raw, 0);
+            low = getLong(raw, 8);
+        } else {
+            slot = service * 2 + IPV4;
+            high = 0;
+            low = getLong(raw, 0) >>> 32;
+        }
+        boolean changed = !hasAddress(slot) || mAddrHigh[slot] != high || mAddrLow[slot] != low;
+        mAddrHigh[slot] = high;
+        mAddrLow[slot] = low;
+        schedule(slot, deadline);
+        return changed;
+    }
+
+    /**
+     * @return true if the address slot holds an address
+     */
+    boolean hasAddress(int slot) {
+        return mHeapIndex[slot] != NONE;
+    }
+
+    /**
+     * @return true if the service has an address of either family
+     */
+    boolean hasAddresses(int service) {
+        return hasAddress(service * 2 + IPV4) || hasAddress(service * 2 + IPV6);
+    }
+
+    /**
+     * Forgets the address in the slot, along with its deadline.
+     */
+    void clearAddress(int slot) {
+        int i = mHeapIndex[slot];
+        if (i != NONE) {
+            removeAt(i);
+        }
+    }
+
+    /**
+     * @return when the address in the slot expires. Only meaningful if the slot has an address.
+     */
+    long getDeadline(int slot) {
+        return mDeadlines[slot];
+    }
+
+    /**
+     * @return milliseconds until the last of the service's addresses expires
+     */
+    long remainingTtl(int service, long now) {
+        long deadline = now;
+        for (int slot=service*2; slot<service*2+2; slot++) {
+            if (hasAddress(slot)) {
+                deadline = Math.max(deadline, mDeadlines[slot]);
+            }
+        }
+        return deadline - now;
+    }
+
+    /**
+     * @return the earliest deadline of any address, or <code>Long.MAX_VALUE</code> if there are no
+     * addresses
+     */
+    long nextDeadline() {
+        return mHeapSize == 0 ? Long.MAX_VALUE : mDeadlines[mHeap[0]];
+    }
+
+    /**
+     * Removes the address with the earliest deadline, if that deadline is at or before
+     * <code>now</code>. The service itself is left in the registry.
+     * @return the address slot that expired, or -1 if nothing has expired
+     */
+    int pollExpired(long now) {
+        if (mHeapSize == 0 || mDeadlines[mHeap[0]] > now) {
+            return NONE;
+        }
+        int slot = mHeap[0];
+        removeAt(0);
+        return slot;
+    }
+
+    /**
+     * @return a new <code>Service</code> with the current state of the service, to hand to
+     * listeners
+     */
+    @Nonnull
+    Service toService(int service) {
+        return new Service(mIdHigh[service],
+                mIdLow[service],
+                mNames[service],
+                getAddress(service * 2 + IPV4),
+                getAddress(service * 2 + IPV6),
+                mPayloads[service]);
+    }
+
+    private InetAddress getAddress(int slot) {
+        if (!hasAddress(slot)) {
+            return null;
+        }
+        try {
+            if ((slot & 1) == IPV6) {
+                byte[] raw = new byte[16];
+                putLong(raw, 0, mAddrHigh[slot]);
+                putLong(raw, 8, mAddrLow[slot]);
+                // InetAddress.getByAddress would turn an IPv4-mapped address into an IPv4 one
+                return Inet6Address.getByAddress(null, raw, -1);
+            }
+            byte[] raw = new byte[4];
+            int v4 = (int) mAddrLow[slot];
+            raw[0] = (byte) (v4 >>> 24);
+            raw[1] = (byte) (v4 >>> 16);
+            raw[2] = (byte) (v4 >>> 8);
+            raw[3] = (byte) v4;
+            return InetAddress.getByAddress(raw);
+        } catch (UnknownHostException e) {
+            // only thrown for an address of the wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return up to 8 bytes starting at <code>offset</code>, big-endian, in the high bytes of a
+     * <code>long</code>
+     */
+    private static long getLong(byte[] src, int offset) {
+        long value = 0;
+        int end = Math.min(src.length, offset + 8);
+        for (int i=offset; i<offset+8; i++) {
+            value = (value << 8) | (i < end ? src[i] & 0xff : 0);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i=offset+7; i>=offset; i--) {
+            dst[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void schedule(int slot, long deadline) {
+        int i = mHeapIndex[slot];
+        if (i != NONE) {
+            long old = mDeadlines[slot];
+            mDeadlines[slot] = deadline;
+            if (deadline < old) {
+                siftUp(i);
+            } else {
+                siftDown(i);
+            }
+            return;
+        }
+        mDeadlines[slot] = deadline;
+        mHeap[mHeapSize] = slot;
+        mHeapIndex[slot] = mHeapSize;
+        siftUp(mHeapSize++);
+    }
+
+    private void removeAt(int i) {
+        int removed = mHeap[i];
+        mHeapSize--;
+        int last = mHeap[mHeapSize];
+        mHeapIndex[removed] = NONE;
+        if (i == mHeapSize) {
+            return;
+        }
+        mHeap[i] = last;
+        mHeapIndex[last] = i;
+        siftUp(i);
+        siftDown(mHeapIndex[last]);
+    }
+
+    private void siftUp(int i) {
+        int slot = mHeap[i];
+        long deadline = mDeadlines[slot];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = mHeap[parent];
+            if (mDeadlines[p] <= deadline) {
+                break;
+            }
+            mHeap[i] = p;
+            mHeapIndex[p] = i;
+            i = parent;
+        }
+        mHeap[i] = slot;
+        mHeapIndex[slot] = i;
+    }
+
+    private void siftDown(int i) {
+        int slot = mHeap[i];
+        long deadline = mDeadlines[slot];
+        int half = mHeapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < mHeapSize && mDeadlines[mHeap[right]] < mDeadlines[mHeap[child]]) {
+                child = right;
+            }
+            if (deadline <= mDeadlines[mHeap[child]]) {
+                break;
+            }
+            mHeap[i] = mHeap[child];
+            mHeapIndex[mHeap[i]] = i;
+            i = child;
+        }
+        mHeap[i] = slot;
+        mHeapIndex[slot] = i;
+    }
+
+}
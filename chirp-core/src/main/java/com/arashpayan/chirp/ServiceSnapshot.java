@@ -0,0 +1,346 @@
+package com.arashpayan.chirp;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The services a <code>ChirpBrowser</code> knew about at one moment, from
+ * <code>ChirpBrowser.snapshot()</code>. A snapshot and its services never change, so it can be
+ * read from any thread without locking or copying:
+ * <pre>
+ *     ServiceSnapshot services = browser.snapshot();
+ *     for (Service service : services) {
+ *         ...
+ *     }
+ * </pre>
+ *
+ * The browser publishes a new snapshot with every change, with a higher version. The services are
+ * kept in a persistent hash trie, so a new snapshot shares everything that didn't change with the
+ * previous one, and making it costs a handful of small allocations no matter how many services
+ * there are.
+ */
+public final class ServiceSnapshot implements Iterable<Service> {
+
+    static final ServiceSnapshot EMPTY = new ServiceSnapshot(null, 0, 0);
+
+    // each level of the trie uses 5 bits of the hash
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // null, a Service, a Node, or a Collision
+    private final Object mRoot;
+    private final int mSize;
+    private final long mVersion;
+
+    /**
+     * A branch of the trie. <code>entries</code> holds a Service, Node or Collision for each bit
+     * that's set in <code>bitmap</code>, in bit order.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] entries;
+
+        Node(int bitmap, Object[] entries) {
+            this.bitmap = bitmap;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Services whose hashes are identical.
+     */
+    private static final class Collision {
+        final int hash;
+        final Service[] services;
+
+        Collision(int hash, Service[] services) {
+            this.hash = hash;
+            this.services = services;
+        }
+    }
+
+    private ServiceSnapshot(Object root, int size, long version) {
+        mRoot = root;
+        mSize = size;
+        mVersion = version;
+    }
+
+    /**
+     * @return the snapshot's version. Every change to the browser's services increases it.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the number of services
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param publisherId the id of a service's publisher, from <code>Service.getPublisherId()</code>
+     * @return the publisher's service, or <code>null</code> if it's not in the snapshot
+     */
+    @Nullable
+    public Service get(@Nonnull String publisherId) {
+        if (!Chirp.isValidSenderId(publisherId)) {
+            return null;
+        }
+        return get(Chirp.idHigh(publisherId), Chirp.idLow(publisherId));
+    }
+
+    @Nullable
+    Service get(long idHigh, long idLow) {
+        int hash = hash(idHigh, idLow);
+        Object entry = mRoot;
+        int shift = 0;
+        while (entry instanceof Node) {
+            Node node = (Node) entry;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            entry = node.entries[Integer.bitCount(node.bitmap & (bit - 1))];
+            shift += BITS;
+        }
+        if (entry instanceof Service) {
+            Service service = (Service) entry;
+            return service.idHigh == idHigh && service.idLow == idLow ? service : null;
+        }
+        if (entry instanceof Collision) {
+            for (Service service : ((Collision) entry).services) {
+                if (service.idHigh == idHigh && service.idLow == idLow) {
+                    return service;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a new snapshot with <code>service</code> added, or replacing the service from the
+     * same publisher
+     */
+    @Nonnull
+    ServiceSnapshot with(@Nonnull Service service) {
+        int size = get(service.idHigh, service.idLow) == null ? mSize + 1 : mSize;
+        return new ServiceSnapshot(put(mRoot, 0, hash(service), service), size, mVersion + 1);
+    }
+
+    /**
+     * @return a new snapshot without the publisher's service, or this one if it's not in it
+     */
+    @Nonnull
+    ServiceSnapshot without(long idHigh, long idLow) {
+        if (get(idHigh, idLow) == null) {
+            return this;
+        }
+        return new ServiceSnapshot(remove(mRoot, 0, hash(idHigh, idLow), idHigh, idLow), mSize - 1, mVersion + 1);
+    }
+
+    private static int hash(long idHigh, long idLow) {
+        long h = (idHigh ^ idLow) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(Service service) {
+        return hash(service.idHigh, service.idLow);
+    }
+
+    private static Object put(Object entry, int shift, int hash, Service service) {
+        if (entry == null) {
+            return service;
+        }
+        if (entry instanceof Service) {
+            Service existing = (Service) entry;
+            if (existing.idHigh == service.idHigh && existing.idLow == service.idLow) {
+                return service;
+            }
+            return branch(existing, hash(existing), service, hash, shift);
+        }
+        if (entry instanceof Collision) {
+            Collision collision = (Collision) entry;
+            if (collision.hash != hash) {
+                return branch(collision, collision.hash, service, hash, shift);
+            }
+            Service[] services = collision.services;
+            for (int i=0; i<services.length; i++) {
+                if (services[i].idHigh == service.idHigh && services[i].idLow == service.idLow) {
+                    services = services.clone();
+                    services[i] = service;
+                    return new Collision(hash, services);
+                }
+            }
+            Service[] grown = new Service[services.length + 1];
+            System.arraycopy(services, 0, grown, 0, services.length);
+            grown[services.length] = service;
+            return new Collision(hash, grown);
+        }
+
+        Node node = (Node) entry;
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int i = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] entries = new Object[node.entries.length + 1];
+            System.arraycopy(node.entries, 0, entries, 0, i);
+            entries[i] = service;
+            System.arraycopy(node.entries, i, entries, i + 1, node.entries.length - i);
+            return new Node(node.bitmap | bit, entries);
+        }
+        Object[] entries = node.entries.clone();
+        entries[i] = put(entries[i], shift + BITS, hash, service);
+        return new Node(node.bitmap, entries);
+    }
+
+    /**
+     * @return a node at <code>shift</code> that holds both entries, which have different
+     * publishers
+     */
+    private static Object branch(Object a, int hashA, Service b, int hashB, int shift) {
+        if (hashA == hashB) {
+            // a can't be a collision here, since put() only branches one with a different hash
+            return new Collision(hashA, new Service[]{(Service) a, b});
+        }
+        int indexA = (hashA >>> shift) & MASK;
+        int indexB = (hashB >>> shift) & MASK;
+        if (indexA == indexB) {
+            return new Node(1 << indexA, new Object[]{branch(a, hashA, b, hashB, shift + BITS)});
+        }
+        Object[] entries = indexA < indexB ? new Object[]{a, b} : new Object[]{b, a};
+        return new Node((1 << indexA) | (1 << indexB), entries);
+    }
+
+    /**
+     * @return the entry without the publisher's service. A node that's left with a single service
+     * or collision is replaced by it, and one that's left empty by <code>null</code>.
+     */
+    private static Object remove(Object entry, int shift, int hash, long idHigh, long idLow) {
+        if (entry instanceof Service) {
+            return null;
+        }
+        if (entry instanceof Collision) {
+            Service[] services = ((Collision) entry).services;
+            if (services.length == 2) {
+                return services[0].idHigh == idHigh && services[0].idLow == idLow ? services[1] : services[0];
+            }
+            Service[] shrunk = new Service[services.length - 1];
+            int j = 0;
+            for (Service service : services) {
+                if (service.idHigh != idHigh || service.idLow != idLow) {
+                    shrunk[j++] = service;
+                }
+            }
+            return new Collision(hash, shrunk);
+        }
+
+        Node node = (Node) entry;
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int i = Integer.bitCount(node.bitmap & (bit - 1));
+        Object child = remove(node.entries[i], shift + BITS, hash, idHigh, idLow);
+        if (child == null) {
+            if (node.entries.length == 1) {
+                return null;
+            }
+            if (node.entries.length == 2 && !(node.entries[1 - i] instanceof Node)) {
+                return node.entries[1 - i];
+            }
+            Object[] entries = new Object[node.entries.length - 1];
+            System.arraycopy(node.entries, 0, entries, 0, i);
+            System.arraycopy(node.entries, i + 1, entries, i, entries.length - i);
+            return new Node(node.bitmap & ~bit, entries);
+        }
+        if (node.entries.length == 1 && !(child instanceof Node)) {
+            return child;
+        }
+        Object[] entries = node.entries.clone();
+        entries[i] = child;
+        return new Node(node.bitmap, entries);
+    }
+
+    /**
+     * @return an iterator over the services, in no particular order. It doesn't support
+     * <code>remove()</code>.
+     */
+    @Override
+    @Nonnull
+    public Iterator<Service> iterator() {
+        return new Walker(mRoot);
+    }
+
+    /**
+     * Walks the trie depth first.
+     */
+    private static final class Walker implements Iterator<Service> {
+
+        // the arrays being walked at each level, and the position in each
+        private final Object[][] mArrays = new Object[64 / BITS + 2][];
+        private final int[] mPositions = new int[mArrays.length];
+        private int mDepth = -1;
+        private Service mNext;
+
+        Walker(Object root) {
+            if (root != null) {
+                push(new Object[]{root});
+                advance();
+            }
+        }
+
+        private void push(Object[] array) {
+            mDepth++;
+            mArrays[mDepth] = array;
+            mPositions[mDepth] = 0;
+        }
+
+        private void advance() {
+            mNext = null;
+            while (mDepth >= 0) {
+                Object[] array = mArrays[mDepth];
+                if (mPositions[mDepth] == array.length) {
+                    mArrays[mDepth--] = null;
+                    continue;
+                }
+                Object entry = array[mPositions[mDepth]++];
+                if (entry instanceof Service) {
+                    mNext = (Service) entry;
+                    return;
+                }
+                push(entry instanceof Node ? ((Node) entry).entries : ((Collision) entry).services);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public Service next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            Service next = mNext;
+            advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceSnapshot{version=" + mVersion + ", size=" + mSize + '}';
+    }
+
+}
@@ -0,0 +1,567 @@
+package com.arashpayan.chirp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+
+import static com.arashpayan.chirp.ChirpLog.logw;
+
+/**
+ * An in-memory network that browsers and publishers can run on, in virtual time, for testing how
+ * discovery behaves at a scale (or with a packet loss) that's impractical to set up for real.
+ * Each <code>Node</code> is a host on the network, and is the <code>ChirpPlatform</code> that
+ * browsers and publishers on that host are started with:
+ * <pre>
+ *     SimulatedNetwork network = new SimulatedNetwork(42);
+ *     network.setLoss(0.05);
+ *     network.setLatency(1, 30);
+ *     SimulatedNetwork.Node gateway = network.addNode();
+ *     for (int i=0; i&lt;10000; i++) {
+ *         Chirp.publish("com.example.sensor").start(gateway);
+ *     }
+ *     ChirpBrowser browser = Chirp.browseFor("com.example.sensor").
+ *                                  listener(listener).
+ *                                  start(network.addNode());
+ *     network.runFor(60 * 60 * 1000);
+ * </pre>
+ *
+ * Nothing happens outside of <code>runFor()</code>, which runs every task and timer that falls due
+ * in the given span of virtual time, and returns as soon as they're done. Browser callbacks are
+ * delivered from <code>runFor()</code> too.
+ *
+ * Datagrams are encoded and decoded exactly as they would be on a real network, and every copy
+ * called for by <code>Chirp.setSendRedundancy()</code> is sent. Each datagram is decoded once, and
+ * the same messages are handed to every node that receives it, which keeps networks with
+ * thousands of publishers cheap to run. Every multicast datagram reaches every node (including its
+ * sender, like multicast loopback), unless it's lost, and all arrive at once after a random
+ * latency. The network only has IPv4 addresses.
+ *
+ * Not thread safe. Nodes have to be added, and browsers and publishers started and stopped, on
+ * the thread that calls <code>runFor()</code>.
+ */
+public final class SimulatedNetwork {
+
+    private static final int CHIRP_PORT = 6464;
+    private static final int UNICAST_PORT = 49152;
+
+    private final Random mRandom;
+    private final VirtualScheduler mScheduler;
+    private final ArrayList<Node> mNodes;
+    private final HashMap<InetAddress, Node> mNodesByAddress;
+    private final ByteBuffer mSendBuf;
+    private final MessageDecoder mDecoder;
+    private final CompactMessageDecoder mCompactDecoder;
+    private double mLoss;
+    private long mMinLatencyMs;
+    private long mMaxLatencyMs;
+    private double mDuplication;
+    private long mDatagramsSent;
+    private long mBytesSent;
+    private long mDatagramsDelivered;
+    private long mDatagramsLost;
+    private long mDatagramsDuplicated;
+
+    /**
+     * A host on the simulated network. Browsers and publishers started with the same node share
+     * its transport, like they would in one process.
+     */
+    public final class Node implements ChirpPlatform, MessageSocket.Factory {
+
+        private final InetAddress mAddress;
+        private final CallbackDispatcher mDispatcher;
+        private final DuplicateFilter mDuplicates;
+        private SimulatedSocket mSocket;
+        private int mPartition;
+
+        private Node(InetAddress address) {
+            mAddress = address;
+            mDispatcher = new SchedulerDispatcher(mScheduler);
+            mDuplicates = new DuplicateFilter();
+        }
+
+        /**
+         * @return the node's address, which its datagrams are sent from
+         */
+        @Nonnull
+        public InetAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Cuts the node off from every node that isn't in the same partition. All nodes start out
+         * in partition 0.
+         */
+        public void setPartition(int partition) {
+            mPartition = partition;
+        }
+
+        public int getPartition() {
+            return mPartition;
+        }
+
+        /**
+         * @return the fraction of datagrams the node has noticed going missing, between 0 and 1
+         * @see DuplicateFilter
+         */
+        public double getEstimatedPacketLoss() {
+            return mDuplicates.estimatedLoss();
+        }
+
+        @Override
+        public void acquireMulticastLock() {
+        }
+
+        @Override
+        public void releaseMulticastLock() {
+        }
+
+        @Nonnull
+        @Override
+        public CallbackDispatcher getCallbackDispatcher() {
+            return mDispatcher;
+        }
+
+        @Nonnull
+        @Override
+        public ChirpScheduler getScheduler() {
+            return mScheduler;
+        }
+
+        @Nonnull
+        @Override
+        public MessageSocket createSocket(@Nonnull MessageSocket.Listener listener, int receiveBufferSize) {
+            return new SimulatedSocket(this, listener);
+        }
+
+    }
+
+    /**
+     * Creates a network with a random seed.
+     */
+    public SimulatedNetwork() {
+        this(new Random().nextLong());
+    }
+
+    /**
+     * @param seed seeds the random losses, latencies and duplications, so that runs can be
+     *             repeated. Publishers still pick random ids and reply delays of their own.
+     */
+    public SimulatedNetwork(long seed) {
+        mRandom = new Random(seed);
+        mScheduler = new VirtualScheduler();
+        mNodes = new ArrayList<>();
+        mNodesByAddress = new HashMap<>();
+        mSendBuf = ByteBuffer.allocate(ChirpSocket.MAX_MSG_LENGTH);
+        mDecoder = new MessageDecoder();
+        mCompactDecoder = new CompactMessageDecoder();
+        mMinLatencyMs = 1;
+        mMaxLatencyMs = 5;
+    }
+
+    /**
+     * Adds a host to the network, with an address of its own in 10.0.0.0/8.
+     */
+    @Nonnull
+    public Node addNode() {
+        int n = mNodes.size() + 1;
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(new byte[]{10, (byte) (n >> 16), (byte) (n >> 8), (byte) n});
+        } catch (UnknownHostException e) {
+            // only thrown for addresses of the wrong length
+            throw new IllegalStateException(e);
+        }
+        Node node = new Node(address);
+        mNodes.add(node);
+        mNodesByAddress.put(address, node);
+        return node;
+    }
+
+    /**
+     * Sets the chance that a node doesn't receive a datagram. Each receiver of a multicast
+     * datagram loses it independently. Default is 0.
+     * @param loss between 0 and 1
+     */
+    public void setLoss(double loss) {
+        if (loss < 0 || loss > 1) {
+            throw new IllegalArgumentException("loss must be between 0 and 1");
+        }
+        mLoss = loss;
+    }
+
+    /**
+     * Sets the range the time a datagram spends on the network is picked from. Default is 1-5ms.
+     */
+    public void setLatency(long minMs, long maxMs) {
+        if (minMs < 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("Invalid latency range");
+        }
+        mMinLatencyMs = minMs;
+        mMaxLatencyMs = maxMs;
+    }
+
+    /**
+     * Sets the chance that a datagram arrives twice, e.g. because of a misbehaving switch. Default
+     * is 0.
+     * @param duplication between 0 and 1
+     */
+    public void setDuplication(double duplication) {
+        if (duplication < 0 || duplication > 1) {
+            throw new IllegalArgumentException("duplication must be between 0 and 1");
+        }
+        mDuplication = duplication;
+    }
+
+    /**
+     * Puts every node back in partition 0.
+     */
+    public void heal() {
+        for (Node node : mNodes) {
+            node.mPartition = 0;
+        }
+    }
+
+    /**
+     * @return the current virtual time, in milliseconds since the network was created
+     */
+    public long now() {
+        return mScheduler.now();
+    }
+
+    /**
+     * Runs everything that falls due in the next <code>ms</code> milliseconds of virtual time, in
+     * order, and moves the clock to the end of that span.
+     */
+    public void runFor(long ms) {
+        mScheduler.runUntil(mScheduler.now() + ms);
+    }
+
+    /**
+     * @return the number of datagrams sent, counting every copy
+     */
+    public long getDatagramsSent() {
+        return mDatagramsSent;
+    }
+
+    /**
+     * @return the number of bytes sent, counting every copy
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return the number of datagrams nodes received, including the copies they recognized as
+     * duplicates
+     */
+    public long getDatagramsDelivered() {
+        return mDatagramsDelivered;
+    }
+
+    /**
+     * @return the number of datagrams nodes didn't receive because of loss or a partition
+     */
+    public long getDatagramsLost() {
+        return mDatagramsLost;
+    }
+
+    /**
+     * @return the number of datagrams the network delivered twice
+     */
+    public long getDatagramsDuplicated() {
+        return mDatagramsDuplicated;
+    }
+
+    /**
+     * Sets every traffic counter back to 0, e.g. to measure the steady state once discovery has
+     * settled.
+     */
+    public void resetCounters() {
+        mDatagramsSent = 0;
+        mBytesSent = 0;
+        mDatagramsDelivered = 0;
+        mDatagramsLost = 0;
+        mDatagramsDuplicated = 0;
+    }
+
+    /**
+     * Puts a datagram on the network.
+     * @param to the node to send it to, or <code>null</code> to multicast it
+     */
+    private void transmit(Node sender, byte[] packet, InetSocketAddress to, int port) {
+        mDatagramsSent++;
+        mBytesSent += packet.length;
+
+        ByteBuffer buf = ByteBuffer.wrap(packet);
+        Message msg;
+        if (CompactMessageDecoder.isCompact(buf)) {
+            msg = mCompactDecoder.decode(buf, sender.mAddress);
+        } else {
+            msg = mDecoder.decode(buf, sender.mAddress);
+        }
+        if (msg == null) {
+            return;
+        }
+        // a batch decodes to a chain of messages
+        ArrayList<Message> parts = new ArrayList<>(1);
+        while (msg != null) {
+            Message next = msg.batchNext;
+            msg.batchNext = null;
+            msg.port = port;
+            parts.add(msg);
+            msg = next;
+        }
+        Delivery delivery = new Delivery(sender, parts.toArray(new Message[parts.size()]), to);
+        if (mDuplication > 0 && mRandom.nextDouble() < mDuplication) {
+            mDatagramsDuplicated++;
+            for (Message part : delivery.parts) {
+                part.retain();
+            }
+            mScheduler.schedule(delivery, latency());
+        }
+        mScheduler.schedule(delivery, latency());
+    }
+
+    private long latency() {
+        return mMinLatencyMs + (long) (mRandom.nextDouble() * (mMaxLatencyMs - mMinLatencyMs + 1));
+    }
+
+    // a datagram arriving at its destination, or at every node if it was multicast. The datagram
+    // holds one reference to each of its messages, released once it has been delivered.
+    private final class Delivery implements Runnable {
+
+        final Node sender;
+        final Message[] parts;
+        final InetSocketAddress to;
+
+        Delivery(Node sender, Message[] parts, InetSocketAddress to) {
+            this.sender = sender;
+            this.parts = parts;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (to != null) {
+                    Node node = mNodesByAddress.get(to.getAddress());
+                    if (node != null) {
+                        deliver(node);
+                    }
+                    return;
+                }
+                for (int i=0; i<mNodes.size(); i++) {
+                    deliver(mNodes.get(i));
+                }
+            } finally {
+                for (Message part : parts) {
+                    part.recycle();
+                }
+            }
+        }
+
+        private void deliver(Node node) {
+            SimulatedSocket socket = node.mSocket;
+            if (socket == null) {
+                // nobody is listening
+                return;
+            }
+            if (node.mPartition != sender.mPartition || (mLoss > 0 && mRandom.nextDouble() < mLoss)) {
+                mDatagramsLost++;
+                return;
+            }
+            mDatagramsDelivered++;
+            Message head = parts[0];
+            if (head.hasSeq && node.mDuplicates.isDuplicate(head.seqIdHigh, head.seqIdLow, false, head.seq)) {
+                ChirpStats.recordDuplicate();
+                return;
+            }
+            for (Message part : parts) {
+                // the listener recycles it
+                part.retain();
+                socket.mListener.onMessage(part);
+            }
+        }
+    }
+
+    // a node's end of the network, opened by its transport
+    private final class SimulatedSocket implements MessageSocket {
+
+        final Node mNode;
+        final Listener mListener;
+        // the next sequence number for each sender, keyed by the high half of its id
+        private final HashMap<Long, int[]> mNextSeqs = new HashMap<>();
+
+        SimulatedSocket(Node node, Listener listener) {
+            mNode = node;
+            mListener = listener;
+        }
+
+        @Override
+        public void open() {
+            mNode.mSocket = this;
+        }
+
+        @Override
+        public void close() {
+            if (mNode.mSocket != this) {
+                return;
+            }
+            mNode.mSocket = null;
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onClosed();
+                }
+            });
+        }
+
+        @Override
+        public void send(@Nonnull Message msg) {
+            send(msg, null);
+        }
+
+        @Override
+        public void send(@Nonnull Message msg, final InetSocketAddress to) {
+            if (mNode.mSocket != this) {
+                return;
+            }
+            // stamped the same way ChirpSocket does it
+            msg.hasSeq = false;
+            if (to == null) {
+                switch (msg.type) {
+                    case Message.MESSAGE_TYPE_PUBLISH:
+                    case Message.MESSAGE_TYPE_REMOVE_SERVICE:
+                    case Message.MESSAGE_TYPE_PUBLISH_BATCH:
+                        msg.seq = nextSeq(msg.senderIdHigh);
+                        msg.hasSeq = true;
+                        break;
+                }
+            }
+
+            mSendBuf.clear();
+            try {
+                MessageEncoder.encode(msg, mSendBuf);
+            } catch (RuntimeException e) {
+                logw("unable to encode " + msg, e);
+                return;
+            }
+            final byte[] packet = new byte[mSendBuf.position()];
+            mSendBuf.flip();
+            mSendBuf.get(packet);
+            final int port = to == null && msg.acceptsUnicast ? UNICAST_PORT : CHIRP_PORT;
+            transmit(mNode, packet, to, port);
+
+            SendRedundancy redundancy = SendRedundancy.forType(msg.type);
+            for (int i=1; i<redundancy.copies; i++) {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        transmit(mNode, packet, to, port);
+                    }
+                }, i * redundancy.intervalMs);
+            }
+        }
+
+        private int nextSeq(long senderIdHigh) {
+            int[] next = mNextSeqs.get(senderIdHigh);
+            if (next == null) {
+                next = new int[1];
+                mNextSeqs.put(senderIdHigh, next);
+            }
+            int seq = next[0];
+            next[0] = (seq + 1) & Integer.MAX_VALUE;
+            return seq;
+        }
+
+        @Override
+        public boolean supportsUnicast() {
+            return true;
+        }
+
+        @Override
+        public void setReceiveBufferSize(int bytes) {
+        }
+
+        @Override
+        public double getEstimatedPacketLoss() {
+            return mNode.mDuplicates.estimatedLoss();
+        }
+    }
+
+    // runs tasks in virtual time, in the order they fall due
+    private static final class VirtualScheduler implements ChirpScheduler {
+
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+        private long mNow;
+        // breaks ties between events due at the same time, so they run in the order scheduled
+        private long mNextSeq;
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void execute(@Nonnull Runnable task) {
+            schedule(task, 0);
+        }
+
+        @Nonnull
+        @Override
+        public Cancellable schedule(@Nonnull Runnable task, long delayMs) {
+            Event event = new Event(mNow + Math.max(0, delayMs), mNextSeq++, task);
+            mEvents.add(event);
+            return event;
+        }
+
+        void runUntil(long end) {
+            Event event;
+            while ((event = mEvents.peek()) != null && event.time <= end) {
+                mEvents.poll();
+                mNow = event.time;
+                Runnable task = event.task;
+                if (task != null) {
+                    event.task = null;
+                    task.run();
+                }
+            }
+            mNow = end;
+        }
+    }
+
+    private static final class Event implements ChirpScheduler.Cancellable, Comparable<Event> {
+
+        final long time;
+        final long seq;
+        // null once the event has run or been cancelled
+        Runnable task;
+
+        Event(long time, long seq, Runnable task) {
+            this.time = time;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public void cancel() {
+            task = null;
+        }
+
+        @Override
+        public int compareTo(@Nonnull Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+}
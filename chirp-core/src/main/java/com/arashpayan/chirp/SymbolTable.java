@@ -0,0 +1,65 @@
+package com.arashpayan.chirp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A small, fixed size cache that maps ASCII byte sequences to canonical <code>String</code>s, so
+ * that the same service name read over and over off the network only gets allocated once. On a
+ * collision the older entry is simply replaced. Not thread safe.
+ */
+class SymbolTable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final byte[][] mKeys;
+    private final String[] mValues;
+    private final int mMask;
+
+    /**
+     * @param capacity the number of slots in the table. Rounded up to a power of 2.
+     */
+    SymbolTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mKeys = new byte[size][];
+        mValues = new String[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Returns the canonical string for the <code>length</code> bytes starting at absolute index
+     * <code>offset</code> in <code>buf</code>, creating and remembering it if it's not already
+     * in the table.
+     */
+    String intern(ByteBuffer buf, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i=0; i<length; i++) {
+            hash = (hash ^ buf.get(offset + i)) * 0x01000193;
+        }
+        int slot = (hash ^ (hash >>> 16)) & mMask;
+
+        byte[] key = mKeys[slot];
+        if (key != null && key.length == length) {
+            boolean match = true;
+            for (int i=0; i<length; i++) {
+                if (key[i] != buf.get(offset + i)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return mValues[slot];
+            }
+        }
+
+        key = new byte[length];
+        for (int i=0; i<length; i++) {
+            key[i] = buf.get(offset + i);
+        }
+        String value = new String(key, ASCII);
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        return value;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AndroidCompatTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void androidOverloadsNeedTheAndroidLibrary() {
+        try {
+            Chirp.browseFor("com.example.lamp").start(new Object());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            Chirp.browseFor("com.example.lamp").looper(new Object());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // a null handler still means the default looper
+        Chirp.browseFor("com.example.lamp").looper(null);
+    }
+
+    @Test
+    public void platformsStillPickThePlatformOverload() {
+        SimulatedNetwork network = new SimulatedNetwork(1);
+        ChirpBrowser browser = Chirp.browseFor("com.example.lamp").start(network.addNode());
+        browser.stop();
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.arashpayan.chirp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.*;
+
+public class ChirpMultiPublisherTest {
+
+    private static final String LISTENER_ID = "0123456789abcdef0123456789abcdef";
+
+    private SimulatedNetwork mNetwork;
+    private SimulatedNetwork.Node mPublisherNode;
+    private MessageSocket mSocket;
+    // the services announced by mPublisherNode, as heard by mSocket
+    private final List<String> mAnnounced = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = new SimulatedNetwork(1);
+        mPublisherNode = mNetwork.addNode();
+        mSocket = mNetwork.addNode().createSocket(new MessageSocket.Listener() {
+            @Override
+            public void onMessage(@Nonnull Message msg) {
+                if (msg.type.equals(Message.MESSAGE_TYPE_PUBLISH) &&
+                        msg.address.equals(mPublisherNode.getAddress())) {
+                    mAnnounced.add(msg.serviceName);
+                }
+                msg.recycle();
+            }
+
+            @Override
+            public void onClosed() {
+            }
+        }, 0);
+        mSocket.open();
+
+        ChirpMultiPublisher publisher = Chirp.publishMany().start(mPublisherNode);
+        publisher.addService("com.example.lamp", null);
+        publisher.addService("com.example.fan", null);
+        publisher.addService("org.example.tv", null);
+        // past the first announcement, and the second after it when replies are held back
+        mNetwork.runFor(2000);
+        assertEquals(3, mAnnounced.size());
+        mAnnounced.clear();
+    }
+
+    private void query(String... serviceNames) {
+        Message query = new Message();
+        query.type = Message.MESSAGE_TYPE_NEW_LISTENER;
+        query.setSenderId(LISTENER_ID);
+        if (serviceNames.length == 1 && !serviceNames[0].endsWith("*")) {
+            query.serviceName = serviceNames[0];
+        } else {
+            // the way a browser asks for more than one name, or a prefix
+            query.serviceName = "*";
+            query.serviceNames = serviceNames;
+            query.serviceNameCount = serviceNames.length;
+        }
+        mSocket.send(query);
+        mNetwork.runFor(ReplyScheduler.MAX_REPLY_DELAY_MS + 100);
+    }
+
+    @Test
+    public void repliesWithOnlyTheServicesAskedFor() {
+        query("com.example.lamp");
+        assertEquals(Collections.singletonList("com.example.lamp"), mAnnounced);
+    }
+
+    @Test
+    public void repliesToAPrefixWithTheServicesItMatches() {
+        query("com.example.*");
+        Collections.sort(mAnnounced);
+        assertEquals(Arrays.asList("com.example.fan", "com.example.lamp"), mAnnounced);
+    }
+
+    @Test
+    public void repliesToSeveralNames() {
+        query("com.example.fan", "org.example.tv");
+        Collections.sort(mAnnounced);
+        assertEquals(Arrays.asList("com.example.fan", "org.example.tv"), mAnnounced);
+    }
+
+    @Test
+    public void doesNotReplyForOtherServices() {
+        query("net.example.printer");
+        assertTrue(mAnnounced.isEmpty());
+    }
+
+}
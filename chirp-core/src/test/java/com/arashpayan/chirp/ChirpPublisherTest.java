@@ -0,0 +1,124 @@
+package com.arashpayan.chirp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.*;
+
+public class ChirpPublisherTest {
+
+    private static final String LISTENER_ID = "0123456789abcdef0123456789abcdef";
+
+    private SimulatedNetwork mNetwork;
+    private MessageSocket mSocket;
+    private SimulatedNetwork.Node mPublisherNode;
+    // whether each publish message heard by mSocket carried the payload
+    private final List<Boolean> mPayloads = new ArrayList<>();
+    // the number of publish messages mSocket heard from mPublisherNode
+    private int mAnnouncements;
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = new SimulatedNetwork(1);
+        mSocket = mNetwork.addNode().createSocket(new MessageSocket.Listener() {
+            @Override
+            public void onMessage(@Nonnull Message msg) {
+                if (msg.type.equals(Message.MESSAGE_TYPE_PUBLISH)) {
+                    mPayloads.add(msg.payloadLength > 0);
+                    if (msg.address.equals(mPublisherNode.getAddress())) {
+                        mAnnouncements++;
+                    }
+                }
+                msg.recycle();
+            }
+
+            @Override
+            public void onClosed() {
+            }
+        }, 0);
+        mSocket.open();
+    }
+
+    private ChirpPublisher publish() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("port", 1337);
+        mPublisherNode = mNetwork.addNode();
+        return Chirp.publish("com.example.lamp").payload(payload).ttl(10).start(mPublisherNode);
+    }
+
+    private void sendNewListener(boolean acceptsDigests) {
+        Message query = new Message();
+        query.type = Message.MESSAGE_TYPE_NEW_LISTENER;
+        query.setSenderId(LISTENER_ID);
+        query.serviceName = "*";
+        query.acceptsDigests = acceptsDigests;
+        mSocket.send(query);
+    }
+
+    /**
+     * @return whether the last announcement carried the payload, after a few re-announcements
+     */
+    private boolean lastAnnouncementHadPayload() {
+        mPayloads.clear();
+        mNetwork.runFor(30 * 1000);
+        assertFalse(mPayloads.isEmpty());
+        return mPayloads.get(mPayloads.size() - 1);
+    }
+
+    @Test
+    public void keepsSendingThePayloadToListenersItHasNotHeardFrom() {
+        publish();
+        mNetwork.runFor(1000);
+        assertTrue(lastAnnouncementHadPayload());
+        // every re-announcement, not just the last
+        assertFalse(mPayloads.contains(false));
+    }
+
+    @Test
+    public void leavesThePayloadOutOnceListenersCacheIt() {
+        publish();
+        sendNewListener(true);
+        assertFalse(lastAnnouncementHadPayload());
+    }
+
+    @Test
+    public void sendsThePayloadAgainForANonCachingListener() {
+        publish();
+        sendNewListener(true);
+        assertFalse(lastAnnouncementHadPayload());
+
+        sendNewListener(false);
+        assertTrue(lastAnnouncementHadPayload());
+    }
+
+    @Test
+    public void repliesToAQuery() {
+        publish();
+        mNetwork.runFor(2000);
+        mAnnouncements = 0;
+        sendNewListener(true);
+        mNetwork.runFor(ReplyScheduler.MAX_REPLY_DELAY_MS + 100);
+        assertEquals(1, mAnnouncements);
+    }
+
+    @Test
+    public void defersTheReplyRightAfterAnnouncing() {
+        publish();
+        mNetwork.runFor(500);
+        mAnnouncements = 0;
+        sendNewListener(true);
+        // answered once the announcement can be multicast again, a second after it went out
+        mNetwork.runFor(400);
+        assertEquals(0, mAnnouncements);
+        mNetwork.runFor(ReplyScheduler.MAX_REPLY_DELAY_MS);
+        assertEquals(1, mAnnouncements);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChirpStatsTest {
+
+    @Test
+    public void countsUpdatesFromEveryThread() throws Exception {
+        // the counters are process-wide, so only what this test adds is checked
+        final long duplicates = ChirpStats.snapshot().getDuplicates();
+        final long parseFailures = ChirpStats.snapshot().getParseFailures();
+        Thread[] threads = new Thread[8];
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n=0; n<10000; n++) {
+                        ChirpStats.recordDuplicate();
+                        ChirpStats.recordParseFailure();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        ChirpStats.Snapshot snapshot = ChirpStats.snapshot();
+        assertEquals(duplicates + 80000, snapshot.getDuplicates());
+        assertEquals(parseFailures + 80000, snapshot.getParseFailures());
+    }
+
+    @Test
+    public void countsRejectionsByReason() {
+        ChirpError reason = new ChirpError("stats test");
+        Long before = ChirpStats.snapshot().getRejections().get(reason.toString());
+        ChirpStats.recordRejected(reason);
+        ChirpStats.recordRejected(new ChirpError("stats test"));
+        long after = ChirpStats.snapshot().getRejections().get(reason.toString());
+        assertEquals((before == null ? 0 : before) + 2, after);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.*;
+
+public class ChirpTransportTest {
+
+    // counts the multicast lock's holders, the way a reference counted lock does
+    private static class CountingPlatform implements ChirpPlatform, MessageSocket.Factory {
+        final SimulatedNetwork.Node node;
+        int holds;
+
+        CountingPlatform(SimulatedNetwork.Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void acquireMulticastLock() {
+            holds++;
+        }
+
+        @Override
+        public void releaseMulticastLock() {
+            holds--;
+            assertTrue("released more times than acquired", holds >= 0);
+        }
+
+        @Nonnull
+        @Override
+        public CallbackDispatcher getCallbackDispatcher() {
+            return node.getCallbackDispatcher();
+        }
+
+        @Nonnull
+        @Override
+        public ChirpScheduler getScheduler() {
+            return node.getScheduler();
+        }
+
+        @Nonnull
+        @Override
+        public MessageSocket createSocket(@Nonnull MessageSocket.Listener listener, int receiveBufferSize) {
+            return node.createSocket(listener, receiveBufferSize);
+        }
+    }
+
+    private static final ChirpTransport.Subscriber SUBSCRIBER = new ChirpTransport.Subscriber() {
+        @Override
+        public void onMessage(@Nonnull Message msg) {
+        }
+    };
+
+    @Test
+    public void holdsTheLockWhileOpen() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(1);
+        CountingPlatform platform = new CountingPlatform(network.addNode());
+
+        ChirpTransport transport = ChirpTransport.attach(platform, SUBSCRIBER, 0);
+        assertEquals(1, platform.holds);
+        transport.detach(SUBSCRIBER);
+        network.runFor(100);
+        assertEquals(0, platform.holds);
+    }
+
+    @Test
+    public void keepsTheLockThroughARestart() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(1);
+        CountingPlatform platform = new CountingPlatform(network.addNode());
+
+        ChirpTransport transport = ChirpTransport.attach(platform, SUBSCRIBER, 0);
+        transport.detach(SUBSCRIBER);
+        // a new transport opens before the old one has finished closing
+        ChirpTransport next = ChirpTransport.attach(platform, SUBSCRIBER, 0);
+        assertNotSame(transport, next);
+        network.runFor(100);
+        assertEquals(1, platform.holds);
+
+        next.detach(SUBSCRIBER);
+        network.runFor(100);
+        assertEquals(0, platform.holds);
+    }
+
+}
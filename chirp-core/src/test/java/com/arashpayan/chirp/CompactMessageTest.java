@@ -0,0 +1,159 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompactMessageTest {
+
+    private static final String SENDER = "0123456789abcdef0123456789abcdef";
+
+    private final CompactMessageDecoder mDecoder = new CompactMessageDecoder();
+
+    private static Message message(String type) {
+        Message msg = Message.obtain();
+        msg.type = type;
+        msg.compact = true;
+        msg.setSenderId(SENDER);
+        msg.serviceName = "com.example.lamp";
+        return msg;
+    }
+
+    private static ByteBuffer encode(Message msg) {
+        ByteBuffer buf = ByteBuffer.allocate(ChirpSocket.MAX_MSG_LENGTH);
+        MessageEncoder.encode(msg, buf);
+        buf.flip();
+        msg.recycle();
+        return buf;
+    }
+
+    @Test
+    public void roundTripsPublish() {
+        Message out = message(Message.MESSAGE_TYPE_PUBLISH);
+        out.ttl = 60;
+        byte[] payload = "{\"port\":1337,\"name\":\"café\"}".getBytes(Charset.forName("UTF-8"));
+        out.payloadBytes = payload;
+        out.payloadLength = payload.length;
+        out.payloadDigest = Message.digest(payload, payload.length);
+        out.hasPayloadDigest = true;
+        out.seq = Integer.MAX_VALUE;
+        out.hasSeq = true;
+        out.acceptsCompact = true;
+        long digest = out.payloadDigest;
+        ByteBuffer buf = encode(out);
+
+        assertTrue(CompactMessageDecoder.isCompact(buf));
+        Message msg = mDecoder.decode(buf, null);
+        assertNotNull(String.valueOf(mDecoder.getLastError()), msg);
+        assertEquals(Message.MESSAGE_TYPE_PUBLISH, msg.type);
+        assertEquals(SENDER, msg.getSenderId());
+        assertEquals("com.example.lamp", msg.serviceName);
+        assertEquals(60, msg.ttl);
+        assertArrayEquals(payload, Arrays.copyOf(msg.payloadBytes, msg.payloadLength));
+        assertEquals(1337.0, msg.getPayload().get("port"));
+        assertTrue(msg.hasPayloadDigest);
+        assertEquals(digest, msg.payloadDigest);
+        assertTrue(msg.hasSeq);
+        assertEquals(Integer.MAX_VALUE, msg.seq);
+        assertTrue(msg.acceptsCompact);
+        assertFalse(msg.acceptsDigests);
+        msg.recycle();
+    }
+
+    @Test
+    public void roundTripsOtherTypes() {
+        Message out = message(Message.MESSAGE_TYPE_NEW_LISTENER);
+        out.serviceName = "*";
+        out.acceptsCompact = true;
+        out.acceptsDigests = true;
+        Message msg = mDecoder.decode(encode(out), null);
+        assertNotNull(msg);
+        assertEquals(Message.MESSAGE_TYPE_NEW_LISTENER, msg.type);
+        assertEquals("*", msg.serviceName);
+        assertTrue(msg.acceptsCompact);
+        assertTrue(msg.acceptsDigests);
+        msg.recycle();
+
+        out = message(Message.MESSAGE_TYPE_REMOVE_SERVICE);
+        out.seq = 3;
+        out.hasSeq = true;
+        msg = mDecoder.decode(encode(out), null);
+        assertNotNull(msg);
+        assertEquals(Message.MESSAGE_TYPE_REMOVE_SERVICE, msg.type);
+        assertEquals(3, msg.seq);
+        msg.recycle();
+
+        out = message(Message.MESSAGE_TYPE_PAYLOAD_REQUEST);
+        out.payloadDigest = 0x1234567890abcdefL;
+        out.hasPayloadDigest = true;
+        msg = mDecoder.decode(encode(out), null);
+        assertNotNull(msg);
+        assertEquals(Message.MESSAGE_TYPE_PAYLOAD_REQUEST, msg.type);
+        assertEquals(0x1234567890abcdefL, msg.payloadDigest);
+        msg.recycle();
+    }
+
+    @Test
+    public void ignoresTrailingBytes() {
+        Message out = message(Message.MESSAGE_TYPE_REMOVE_SERVICE);
+        ByteBuffer buf = encode(out);
+        ByteBuffer longer = ByteBuffer.allocate(buf.remaining() + 5);
+        longer.put(buf).put(new byte[]{1, 2, 3, 4, 5}).flip();
+
+        Message msg = mDecoder.decode(longer, null);
+        assertNotNull(msg);
+        msg.recycle();
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        Message out = message(Message.MESSAGE_TYPE_PUBLISH);
+        out.ttl = 60;
+        byte[] payload = "{\"a\":1}".getBytes(Charset.forName("UTF-8"));
+        out.payloadBytes = payload;
+        out.payloadLength = payload.length;
+        out.payloadDigest = 1;
+        out.hasPayloadDigest = true;
+        out.seq = 1;
+        out.hasSeq = true;
+        ByteBuffer buf = encode(out);
+
+        for (int length=1; length<buf.limit(); length++) {
+            ByteBuffer truncated = buf.duplicate();
+            truncated.limit(length);
+            assertNull("length " + length, mDecoder.decode(truncated, null));
+            assertNotNull(mDecoder.getLastError());
+        }
+    }
+
+    @Test
+    public void rejectsBadHeaders() {
+        ByteBuffer buf = encode(message(Message.MESSAGE_TYPE_REMOVE_SERVICE));
+
+        ByteBuffer version = ByteBuffer.allocate(buf.limit());
+        version.put(buf.duplicate()).flip();
+        version.put(1, (byte) 2);
+        assertNull(mDecoder.decode(version, null));
+
+        ByteBuffer type = ByteBuffer.allocate(buf.limit());
+        type.put(buf.duplicate()).flip();
+        type.put(2, (byte) 99);
+        assertNull(mDecoder.decode(type, null));
+
+        ByteBuffer name = ByteBuffer.allocate(buf.limit());
+        name.put(buf.duplicate()).flip();
+        name.put(21, (byte) ' ');
+        assertNull(mDecoder.decode(name, null));
+    }
+
+    @Test
+    public void jsonIsNotCompact() {
+        assertFalse(CompactMessageDecoder.isCompact(ByteBuffer.wrap("{}".getBytes(Charset.forName("UTF-8")))));
+        assertFalse(CompactMessageDecoder.isCompact(ByteBuffer.allocate(0)));
+    }
+
+}
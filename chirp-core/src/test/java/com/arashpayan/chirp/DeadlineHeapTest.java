@@ -0,0 +1,93 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeadlineHeapTest {
+
+    @Test
+    public void pollsInDeadlineOrder() {
+        DeadlineHeap<String> heap = new DeadlineHeap<>();
+        DeadlineHeap.Entry<String> a = new DeadlineHeap.Entry<>("a");
+        DeadlineHeap.Entry<String> b = new DeadlineHeap.Entry<>("b");
+        DeadlineHeap.Entry<String> c = new DeadlineHeap.Entry<>("c");
+        heap.schedule(b, 20);
+        heap.schedule(c, 30);
+        heap.schedule(a, 10);
+
+        assertSame(a, heap.peek());
+        assertNull(heap.pollExpired(9));
+        assertSame(a, heap.pollExpired(10));
+        assertFalse(a.isScheduled());
+        assertSame(b, heap.pollExpired(100));
+        assertSame(c, heap.pollExpired(100));
+        assertNull(heap.pollExpired(100));
+        assertNull(heap.peek());
+    }
+
+    @Test
+    public void reschedulesAndCancels() {
+        DeadlineHeap<String> heap = new DeadlineHeap<>();
+        DeadlineHeap.Entry<String> a = new DeadlineHeap.Entry<>("a");
+        DeadlineHeap.Entry<String> b = new DeadlineHeap.Entry<>("b");
+        heap.schedule(a, 10);
+        heap.schedule(b, 20);
+
+        heap.schedule(a, 30);
+        assertEquals(2, heap.size());
+        assertSame(b, heap.peek());
+
+        heap.cancel(b);
+        assertFalse(b.isScheduled());
+        assertSame(a, heap.peek());
+        // cancelling twice is harmless
+        heap.cancel(b);
+        assertEquals(1, heap.size());
+    }
+
+    @Test
+    public void matchesASortedListThroughRandomChanges() {
+        Random random = new Random(7);
+        DeadlineHeap<Integer> heap = new DeadlineHeap<>();
+        List<DeadlineHeap.Entry<Integer>> entries = new ArrayList<>();
+        for (int i=0; i<500; i++) {
+            entries.add(new DeadlineHeap.Entry<>(i));
+        }
+        for (int step=0; step<20000; step++) {
+            DeadlineHeap.Entry<Integer> entry = entries.get(random.nextInt(entries.size()));
+            if (random.nextInt(4) == 0) {
+                heap.cancel(entry);
+            } else {
+                heap.schedule(entry, random.nextInt(10000));
+            }
+            if (step % 100 == 0) {
+                long earliest = Long.MAX_VALUE;
+                int scheduled = 0;
+                for (DeadlineHeap.Entry<Integer> e : entries) {
+                    if (e.isScheduled()) {
+                        earliest = Math.min(earliest, e.deadline);
+                        scheduled++;
+                    }
+                }
+                assertEquals(scheduled, heap.size());
+                if (scheduled > 0) {
+                    assertEquals(earliest, heap.peek().deadline);
+                }
+            }
+        }
+
+        long last = Long.MIN_VALUE;
+        DeadlineHeap.Entry<Integer> entry;
+        while ((entry = heap.pollExpired(Long.MAX_VALUE)) != null) {
+            assertTrue(entry.deadline >= last);
+            last = entry.deadline;
+        }
+        assertEquals(0, heap.size());
+    }
+
+}
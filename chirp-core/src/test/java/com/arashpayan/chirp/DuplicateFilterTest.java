@@ -0,0 +1,87 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+
+    private static final long HIGH = 0x0123456789abcdefL;
+    private static final long LOW = 0x0fedcba987654321L;
+
+    private final DuplicateFilter mFilter = new DuplicateFilter();
+
+    private boolean seen(int seq) {
+        return mFilter.isDuplicate(HIGH, LOW, false, seq);
+    }
+
+    @Test
+    public void dropsCopies() {
+        assertFalse(seen(10));
+        assertTrue(seen(10));
+        assertFalse(seen(11));
+        assertTrue(seen(10));
+        assertTrue(seen(11));
+    }
+
+    @Test
+    public void acceptsLateDatagramsOnce() {
+        assertFalse(seen(10));
+        assertFalse(seen(14));
+        assertEquals(3.0 / 5, mFilter.estimatedLoss(), 1e-9);
+
+        assertFalse(seen(12));
+        assertTrue(seen(12));
+        assertFalse(seen(11));
+        assertFalse(seen(13));
+        assertEquals(0, mFilter.estimatedLoss(), 1e-9);
+    }
+
+    @Test
+    public void wrapsAround() {
+        assertEquals(1, DuplicateFilter.seqDiff(0, Integer.MAX_VALUE));
+        assertEquals(-1, DuplicateFilter.seqDiff(Integer.MAX_VALUE, 0));
+        assertEquals(3, DuplicateFilter.seqDiff(1, Integer.MAX_VALUE - 1));
+
+        assertFalse(seen(Integer.MAX_VALUE - 1));
+        assertFalse(seen(1));
+        assertTrue(seen(1));
+        // the numbers skipped on either side of the wrap are still recognized
+        assertFalse(seen(Integer.MAX_VALUE));
+        assertTrue(seen(Integer.MAX_VALUE));
+        assertFalse(seen(0));
+        assertTrue(seen(0));
+        assertTrue(seen(Integer.MAX_VALUE - 1));
+        assertEquals(0, mFilter.estimatedLoss(), 1e-9);
+    }
+
+    @Test
+    public void startsOverWhenTheSenderDoes() {
+        for (int seq=1000; seq<1010; seq++) {
+            assertFalse(seen(seq));
+        }
+        // the sender's socket was reopened, and it's counting from 0 again
+        assertFalse(seen(0));
+        assertFalse(seen(1));
+        assertTrue(seen(0));
+    }
+
+    @Test
+    public void forgetsDatagramsOutsideTheWindow() {
+        assertFalse(seen(0));
+        assertFalse(seen(64));
+        assertTrue(seen(0));
+        // a jump past the window is a new start, not 64 lost datagrams
+        assertFalse(seen(200));
+        assertEquals(63.0 / 66, mFilter.estimatedLoss(), 1e-9);
+    }
+
+    @Test
+    public void tracksAddressFamiliesAndSendersSeparately() {
+        assertFalse(mFilter.isDuplicate(HIGH, LOW, false, 5));
+        assertFalse(mFilter.isDuplicate(HIGH, LOW, true, 5));
+        assertFalse(mFilter.isDuplicate(HIGH + 1, LOW, false, 5));
+        assertTrue(mFilter.isDuplicate(HIGH, LOW, true, 5));
+    }
+
+}
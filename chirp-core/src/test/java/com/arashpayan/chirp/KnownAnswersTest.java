@@ -0,0 +1,57 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class KnownAnswersTest {
+
+    // the UDP payload that fits in a 1500 byte Ethernet frame over IPv6
+    private static final int MAX_UNFRAGMENTED = 1500 - 40 - 8;
+
+    @Test
+    public void stopsAtTheLimit() {
+        KnownAnswers known = new KnownAnswers();
+        for (int i=0; i<KnownAnswers.MAX_ANSWERS; i++) {
+            assertTrue(known.add(i, i, 60, false, 0));
+        }
+        assertFalse(known.add(-1, -1, 60, false, 0));
+        assertEquals(KnownAnswers.MAX_ANSWERS, known.count);
+    }
+
+    @Test
+    public void aFullQueryIsNotFragmented() {
+        Message query = Message.obtain();
+        query.type = Message.MESSAGE_TYPE_NEW_LISTENER;
+        query.setSenderId(Chirp.getRandomId());
+        query.serviceName = "*";
+        query.serviceNames = new String[]{"com.example.lamp", "com.example.fan.*"};
+        query.serviceNameCount = 2;
+        query.acceptsCompact = true;
+        query.acceptsDigests = true;
+        query.acceptsUnicast = true;
+        query.knownAnswers = new KnownAnswers();
+        // the longest answers there can be
+        while (query.knownAnswers.add(-1, -1, Integer.MAX_VALUE, true, -1)) {
+        }
+        ByteBuffer buf = ByteBuffer.allocate(ChirpSocket.MAX_MSG_LENGTH);
+        MessageEncoder.encode(query, buf);
+        query.recycle();
+        assertTrue(buf.position() + " bytes", buf.position() <= MAX_UNFRAGMENTED);
+    }
+
+    @Test
+    public void onlyCountsAnswersWithHalfTheirTtlLeft() {
+        KnownAnswers known = new KnownAnswers();
+        known.add(1, 2, 30, true, 0xabc);
+        known.add(3, 4, 29, false, 0);
+        assertTrue(known.isKnown(1, 2, 60, true, 0xabc));
+        // a different payload
+        assertFalse(known.isKnown(1, 2, 60, true, 0xabd));
+        assertFalse(known.isKnown(3, 4, 60, false, 0));
+        assertFalse(known.isKnown(5, 6, 60, false, 0));
+    }
+
+}
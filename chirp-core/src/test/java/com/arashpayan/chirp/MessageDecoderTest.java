@@ -0,0 +1,226 @@
+package com.arashpayan.chirp;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MessageDecoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Type MAP_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+    private static final String SENDER = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER = "fedcba9876543210fedcba9876543210";
+
+    private final MessageDecoder mDecoder = new MessageDecoder();
+
+    private Message decode(String json) {
+        return mDecoder.decode(ByteBuffer.wrap(json.getBytes(UTF8)), null);
+    }
+
+    private static Map<String, Object> publish() {
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("type", "publish");
+        msg.put("sender_id", SENDER);
+        msg.put("service_name", "com.example.lamp");
+        msg.put("ttl", 60);
+        return msg;
+    }
+
+    private static Map<String, Object> payload() {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("port", 1337);
+        payload.put("ratio", 0.25);
+        payload.put("name", "café \"quoted\" \\ \n\t☃");
+        payload.put("on", true);
+        payload.put("nothing", null);
+        payload.put("list", Arrays.asList(1, "two", false));
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("deep", Arrays.asList(Arrays.asList(), new LinkedHashMap<String, Object>()));
+        payload.put("nested", nested);
+        return payload;
+    }
+
+    @Test
+    public void decodesGsonPublish() {
+        Gson gson = new GsonBuilder().serializeNulls().create();
+        Map<String, Object> fields = publish();
+        fields.put("payload", payload());
+        Message msg = decode(gson.toJson(fields));
+
+        assertNotNull(String.valueOf(mDecoder.getLastError()), msg);
+        assertEquals(Message.MESSAGE_TYPE_PUBLISH, msg.type);
+        assertEquals(SENDER, msg.getSenderId());
+        assertEquals("com.example.lamp", msg.serviceName);
+        assertEquals(60, msg.ttl);
+        // the raw payload bytes decode to what Gson makes of the same JSON
+        Map<String, Object> expected = gson.fromJson(gson.toJson(payload()), MAP_TYPE);
+        assertEquals(expected, msg.getPayload());
+        msg.recycle();
+    }
+
+    @Test
+    public void decodesPrettyPrintedGson() {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Map<String, Object> fields = publish();
+        fields.put("payload", payload());
+        Message msg = decode(gson.toJson(fields));
+
+        assertNotNull(msg);
+        assertEquals("com.example.lamp", msg.serviceName);
+        assertEquals(gson.fromJson(gson.toJson(payload()), MAP_TYPE), msg.getPayload());
+        msg.recycle();
+    }
+
+    @Test
+    public void decodesNewListener() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("type", "new_listener");
+        fields.put("sender_id", SENDER);
+        fields.put("service_name", "*");
+        fields.put("compact", true);
+        fields.put("digests", true);
+        fields.put("unicast", true);
+        fields.put("service_names", Arrays.asList("com.example.lamp", "com.example.fan.*"));
+        List<Object> known = new ArrayList<>();
+        known.add(Arrays.asList(OTHER, 120, "00000000000000ff"));
+        known.add(Arrays.asList(SENDER, 30));
+        fields.put("known", known);
+        fields.put("unknown_field", Arrays.asList(1, 2, 3));
+        Message msg = decode(new Gson().toJson(fields));
+
+        assertNotNull(msg);
+        assertEquals(Message.MESSAGE_TYPE_NEW_LISTENER, msg.type);
+        assertTrue(msg.acceptsCompact);
+        assertTrue(msg.acceptsDigests);
+        assertTrue(msg.acceptsUnicast);
+        assertEquals(2, msg.serviceNameCount);
+        assertEquals("com.example.fan.*", msg.serviceNames[1]);
+        assertEquals(2, msg.knownAnswers.count);
+        assertTrue(msg.knownAnswers.isKnown(Chirp.idHigh(OTHER), Chirp.idLow(OTHER), 120, true, 0xff));
+        assertTrue(msg.knownAnswers.isKnown(Chirp.idHigh(SENDER), Chirp.idLow(SENDER), 30, false, 0));
+        msg.recycle();
+    }
+
+    @Test
+    public void decodesBatch() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("type", "publish_batch");
+        fields.put("sender_id", SENDER);
+        fields.put("seq", 7);
+        List<Object> services = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("sender_id", i == 1 ? OTHER : SENDER.substring(0, 31) + i);
+            entry.put("service_name", "com.example.s" + i);
+            entry.put("ttl", 30 + i);
+            services.add(entry);
+        }
+        // an invalid entry is skipped without losing the others
+        Map<String, Object> bad = new LinkedHashMap<>();
+        bad.put("sender_id", SENDER);
+        bad.put("service_name", "com.example.bad");
+        bad.put("ttl", 1);
+        services.add(bad);
+        fields.put("services", services);
+        Message msg = decode(new Gson().toJson(fields));
+
+        int count = 0;
+        for (Message e = msg; e != null; e = e.batchNext) {
+            assertEquals(Message.MESSAGE_TYPE_PUBLISH, e.type);
+            assertEquals("com.example.s" + count, e.serviceName);
+            assertEquals(30 + count, e.ttl);
+            assertEquals(7, e.seq);
+            assertTrue(e.hasSeq);
+            assertEquals(Chirp.idHigh(SENDER), e.seqIdHigh);
+            count++;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void decodesEncoderOutput() {
+        Message out = Message.obtain();
+        out.type = Message.MESSAGE_TYPE_REMOVE_SERVICE;
+        out.setSenderId(SENDER);
+        out.serviceName = "com.example.lamp";
+        out.seq = 12345;
+        out.hasSeq = true;
+        ByteBuffer buf = ByteBuffer.allocate(ChirpSocket.MAX_MSG_LENGTH);
+        MessageEncoder.encode(out, buf);
+        buf.flip();
+        out.recycle();
+
+        Message msg = mDecoder.decode(buf, null);
+        assertNotNull(msg);
+        assertEquals(Message.MESSAGE_TYPE_REMOVE_SERVICE, msg.type);
+        assertEquals(SENDER, msg.getSenderId());
+        assertEquals("com.example.lamp", msg.serviceName);
+        assertEquals(12345, msg.seq);
+        msg.recycle();
+    }
+
+    @Test
+    public void acceptsIntegralFractionalTtl() {
+        Message msg = decode("{\"type\":\"publish\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a.b\",\"ttl\":6.0e1}");
+        assertNotNull(msg);
+        assertEquals(60, msg.ttl);
+        msg.recycle();
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String head = "{\"type\":\"publish\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a.b\"";
+        String[] bad = {
+                "",
+                "[]",
+                "{",
+                "{}",
+                head + ",\"ttl\":60",
+                head + ",\"ttl\":60}}",
+                head + ",\"ttl\":60,}",
+                head + ",\"ttl\":\"60\"}",
+                head + ",\"ttl\":60.5}",
+                head + ",\"ttl\":60,\"payload\":{\"a\":}}",
+                head + ",\"ttl\":60,\"payload\":{\"a\":[1,2}}",
+                head + ",\"ttl\":60,\"payload\":{\"a\":tru}}",
+                head + ",\"ttl\":60,\"payload\":\"unterminated}",
+                head + ",\"ttl\":5}",
+                "{\"type\":\"publish\",\"sender_id\":\"0123\",\"service_name\":\"a.b\",\"ttl\":60}",
+                "{\"type\":\"publish\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a b\",\"ttl\":60}",
+                "{\"type\":\"shout\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a.b\",\"ttl\":60}",
+                "{\"type\":\"payload_request\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a.b\"}",
+        };
+        for (String json : bad) {
+            assertNull(json, decode(json));
+            assertNotNull(json, mDecoder.getLastError());
+        }
+    }
+
+    @Test
+    public void reportsTheFieldThatOverflowed() {
+        String head = "{\"type\":\"publish\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"a.b\"";
+        assertNull(decode(head + ",\"ttl\":99999999999}"));
+        assertEquals("invalid 'ttl'", mDecoder.getLastError().toString());
+
+        assertNull(decode(head + ",\"ttl\":60,\"seq\":99999999999}"));
+        assertEquals("invalid 'seq'", mDecoder.getLastError().toString());
+
+        String listener = "{\"type\":\"new_listener\",\"sender_id\":\"" + SENDER + "\",\"service_name\":\"*\"";
+        assertNull(decode(listener + ",\"known\":[[\"" + OTHER + "\",99999999999]]}"));
+        assertEquals("invalid 'known'", mDecoder.getLastError().toString());
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+public class MessageRingTest {
+
+    private static final String A = "0123456789abcdef0123456789abcdef";
+    private static final String B = "fedcba9876543210fedcba9876543210";
+
+    private static Message message(String type, String sender, int ttl) {
+        Message msg = Message.obtain();
+        msg.type = type;
+        msg.setSenderId(sender);
+        msg.serviceName = "com.example.lamp";
+        msg.ttl = ttl;
+        try {
+            msg.address = InetAddress.getByName("10.0.0.2");
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+        return msg;
+    }
+
+    private static Message publish(String sender, int ttl) {
+        return message(Message.MESSAGE_TYPE_PUBLISH, sender, ttl);
+    }
+
+    private static int[] drainTtls(MessageRing ring) {
+        Message[] out = new Message[16];
+        int count = ring.drain(out);
+        int[] ttls = new int[count];
+        for (int i=0; i<count; i++) {
+            ttls[i] = out[i].ttl;
+            out[i].recycle();
+        }
+        return ttls;
+    }
+
+    @Test
+    public void asksForOneDrainPerTripFromEmpty() {
+        MessageRing ring = new MessageRing(4, ChirpBrowser.OverflowPolicy.DROP_OLDEST);
+        assertTrue(ring.offer(publish(A, 1)));
+        assertFalse(ring.offer(publish(A, 2)));
+        assertArrayEquals(new int[]{1, 2}, drainTtls(ring));
+        assertEquals(0, ring.depth());
+        assertEquals(2, ring.maxDepth());
+        assertTrue(ring.offer(publish(A, 3)));
+    }
+
+    @Test
+    public void leavesTheRestForAnotherDrain() {
+        MessageRing ring = new MessageRing(8, ChirpBrowser.OverflowPolicy.DROP_OLDEST);
+        for (int i=0; i<5; i++) {
+            ring.offer(publish(A, i));
+        }
+        Message[] out = new Message[3];
+        assertEquals(3, ring.drain(out));
+        for (Message msg : out) {
+            msg.recycle();
+        }
+        // still not empty, so it's up to the consumer to drain again
+        assertFalse(ring.offer(publish(A, 5)));
+        assertArrayEquals(new int[]{3, 4, 5}, drainTtls(ring));
+    }
+
+    @Test
+    public void dropsTheOldest() {
+        MessageRing ring = new MessageRing(4, ChirpBrowser.OverflowPolicy.DROP_OLDEST);
+        for (int i=0; i<6; i++) {
+            ring.offer(publish(A, i));
+        }
+        assertEquals(2, ring.dropped());
+        assertArrayEquals(new int[]{2, 3, 4, 5}, drainTtls(ring));
+    }
+
+    @Test
+    public void dropsTheNewest() {
+        MessageRing ring = new MessageRing(4, ChirpBrowser.OverflowPolicy.DROP_NEWEST);
+        for (int i=0; i<6; i++) {
+            ring.offer(publish(A, i));
+        }
+        assertEquals(2, ring.dropped());
+        assertArrayEquals(new int[]{0, 1, 2, 3}, drainTtls(ring));
+    }
+
+    @Test
+    public void coalescesBySender() {
+        MessageRing ring = new MessageRing(4, ChirpBrowser.OverflowPolicy.COALESCE_BY_SENDER);
+        ring.offer(publish(A, 0));
+        ring.offer(publish(B, 1));
+        ring.offer(publish(A, 2));
+        ring.offer(publish(B, 3));
+        // replaces the newest waiting publish from A
+        ring.offer(publish(A, 4));
+        assertEquals(1, ring.coalesced());
+        assertEquals(0, ring.dropped());
+        assertArrayEquals(new int[]{0, 1, 4, 3}, drainTtls(ring));
+    }
+
+    @Test
+    public void onlyCoalescesMessagesOfTheSameType() {
+        MessageRing ring = new MessageRing(2, ChirpBrowser.OverflowPolicy.COALESCE_BY_SENDER);
+        ring.offer(publish(A, 0));
+        ring.offer(message(Message.MESSAGE_TYPE_REMOVE_SERVICE, A, 1));
+        // the removal must survive, so the publish can only replace the other publish
+        ring.offer(publish(A, 2));
+        assertEquals(1, ring.coalesced());
+
+        Message[] out = new Message[2];
+        assertEquals(2, ring.drain(out));
+        assertEquals(Message.MESSAGE_TYPE_PUBLISH, out[0].type);
+        assertEquals(2, out[0].ttl);
+        assertEquals(Message.MESSAGE_TYPE_REMOVE_SERVICE, out[1].type);
+        out[0].recycle();
+        out[1].recycle();
+    }
+
+    @Test
+    public void dropsTheOldestWhenThereIsNothingToCoalesce() {
+        MessageRing ring = new MessageRing(2, ChirpBrowser.OverflowPolicy.COALESCE_BY_SENDER);
+        ring.offer(publish(A, 0));
+        ring.offer(message(Message.MESSAGE_TYPE_REMOVE_SERVICE, A, 1));
+        ring.offer(publish(B, 2));
+        assertEquals(0, ring.coalesced());
+        assertEquals(1, ring.dropped());
+        assertArrayEquals(new int[]{1, 2}, drainTtls(ring));
+    }
+
+    @Test
+    public void clearEmptiesTheQueue() {
+        MessageRing ring = new MessageRing(4, ChirpBrowser.OverflowPolicy.DROP_OLDEST);
+        ring.offer(publish(A, 0));
+        ring.offer(publish(A, 1));
+        ring.clear();
+        assertEquals(0, ring.depth());
+        assertTrue(ring.offer(publish(A, 2)));
+    }
+
+}
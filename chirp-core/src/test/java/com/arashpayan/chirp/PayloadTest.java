@@ -0,0 +1,89 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class PayloadTest {
+
+    private static Payload payload(String json) {
+        return new Payload(json.getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void readsWholeNumbers() {
+        Payload p = payload("{\"port\":1337,\"exp\":1e3,\"point\":1337.0,\"neg\":-42,\"zero\":-0.0}");
+        assertEquals(1337, p.getInt("port", -1));
+        assertEquals(1000, p.getInt("exp", -1));
+        assertEquals(1337, p.getInt("point", -1));
+        assertEquals(-42, p.getLong("neg", 0));
+        assertEquals(0, p.getInt("zero", -1));
+    }
+
+    @Test
+    public void onlyReadsNumbersThatFit() {
+        Payload p = payload("{\"half\":1.5,\"big\":3000000000,\"max\":9223372036854775807," +
+                "\"over\":9223372036854775808,\"huge\":1e400,\"text\":\"12\",\"list\":[1]}");
+        assertEquals(-1, p.getInt("half", -1));
+        assertEquals(-1, p.getLong("half", -1));
+        assertEquals(1.5, p.getDouble("half", 0), 0);
+        assertEquals(-1, p.getInt("big", -1));
+        assertEquals(3000000000L, p.getLong("big", -1));
+        assertEquals(Long.MAX_VALUE, p.getLong("max", -1));
+        assertEquals(-1, p.getLong("over", -1));
+        assertEquals(-1, p.getLong("huge", -1));
+        assertEquals(-1, p.getInt("text", -1));
+        assertEquals(-1, p.getInt("list", -1));
+        assertEquals(-1, p.getInt("missing", -1));
+        assertEquals(2.5, p.getDouble("text", 2.5), 0);
+    }
+
+    @Test
+    public void readsOtherTypes() {
+        Payload p = payload("{\"name\":\"lamp\",\"on\":true,\"nothing\":null,\"nested\":{\"a\":1}}");
+        assertEquals("lamp", p.getString("name"));
+        assertNull(p.getString("on"));
+        assertTrue(p.getBoolean("on", false));
+        assertTrue(p.getBoolean("name", true));
+        assertTrue(p.has("nothing"));
+        assertTrue(p.has("nested"));
+        assertFalse(p.has("missing"));
+    }
+
+    @Test
+    public void equalNumbersHaveTheSameTerm() {
+        Payload p = payload("{\"a\":1337,\"b\":1.337e3,\"c\":1337.0,\"d\":0.5,\"e\":5e-1," +
+                "\"f\":\"1337\",\"g\":true,\"h\":null,\"i\":[],\"zero\":0,\"negzero\":-0.0}");
+        assertEquals(p.term("a"), p.term("b"));
+        assertEquals(p.term("a"), p.term("c"));
+        assertEquals(Payload.numberTerm(1337), p.term("a"));
+        assertEquals(p.term("d"), p.term("e"));
+        assertNotEquals(p.term("a"), p.term("d"));
+        assertEquals(Payload.stringTerm("1337"), p.term("f"));
+        assertNotEquals(p.term("a"), p.term("f"));
+        assertEquals(Payload.booleanTerm(true), p.term("g"));
+        assertNotNull(p.term("h"));
+        assertNull(p.term("i"));
+        assertNull(p.term("missing"));
+        assertEquals(p.term("zero"), p.term("negzero"));
+    }
+
+    @Test
+    public void mapHasDoublesLikeGson() {
+        Payload p = payload("{\"port\":1337,\"name\":\"lamp\"}");
+        assertEquals(2, p.size());
+        assertEquals(1337.0, p.get("port"));
+        assertEquals("lamp", p.get("name"));
+        assertTrue(p.containsKey("name"));
+    }
+
+    @Test
+    public void malformedPayloadIsEmpty() {
+        Payload p = payload("[1,2]");
+        assertEquals(-1, p.getInt("port", -1));
+        assertFalse(p.has("port"));
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.*;
+
+public class QueryIndexTest {
+
+    private static final ChirpBrowserListener LISTENER = new ChirpBrowserListener() {
+        @Override
+        public void onServiceDiscovered(@Nonnull Service service) {
+        }
+
+        @Override
+        public void onServiceUpdated(@Nonnull Service service) {
+        }
+
+        @Override
+        public void onServiceRemoved(@Nonnull Service service) {
+        }
+    };
+
+    private final ServiceRegistry mRegistry = new ServiceRegistry();
+    // "<change> <service name>:<port>" for each event
+    private final List<String> mEvents = new ArrayList<>();
+    private final QueryIndex.Events mRecorder = new QueryIndex.Events() {
+        @Override
+        public void onMatchChanged(@Nonnull QueryIndex.Subscriber subscriber, int change, @Nonnull Service service) {
+            mEvents.add(change + " " + service.name + ":" + service.getInt("port", -1));
+        }
+    };
+
+    private int add(long id, String name, int port) {
+        int service = mRegistry.add(id, id, name);
+        setPort(service, port);
+        return service;
+    }
+
+    private void setPort(int service, int port) {
+        byte[] json = ("{\"port\":" + port + "}").getBytes(Charset.forName("UTF-8"));
+        mRegistry.setPayload(service, new Payload(json), false, 0);
+    }
+
+    private static QueryIndex.Subscriber subscriber(ServiceQuery query) {
+        return new QueryIndex.Subscriber(query, LISTENER);
+    }
+
+    @Test
+    public void findsTheServicesThatAlreadyMatch() {
+        add(1, "com.example.lamp", 80);
+        add(2, "com.example.lamp", 81);
+        add(3, "com.example.fan", 80);
+        QueryIndex index = new QueryIndex(mRegistry, mRecorder);
+
+        QueryIndex.Subscriber lamps = subscriber(new ServiceQuery.Builder().name("com.example.lamp").where("port", 80).build());
+        index.subscribe(lamps);
+        assertEquals(1, lamps.matches.size());
+        assertEquals("0 com.example.lamp:80", mEvents.get(0));
+
+        QueryIndex.Subscriber all = subscriber(new ServiceQuery.Builder().name("com.example.*").build());
+        index.subscribe(all);
+        assertEquals(3, all.matches.size());
+
+        QueryIndex.Subscriber none = subscriber(new ServiceQuery.Builder().where("port", 99).build());
+        index.subscribe(none);
+        assertEquals(0, none.matches.size());
+    }
+
+    @Test
+    public void followsChanges() {
+        int lamp = add(1, "com.example.lamp", 80);
+        QueryIndex index = new QueryIndex(mRegistry, mRecorder);
+        QueryIndex.Subscriber sub = subscriber(new ServiceQuery.Builder().where("port", 80).build());
+        index.subscribe(sub);
+        mEvents.clear();
+
+        setPort(lamp, 81);
+        index.onServiceChanged(lamp, mRegistry.toService(lamp));
+        setPort(lamp, 80);
+        index.onServiceChanged(lamp, mRegistry.toService(lamp));
+        index.onServiceChanged(lamp, mRegistry.toService(lamp));
+        int fan = add(2, "com.example.fan", 80);
+        index.onServiceChanged(fan, mRegistry.toService(fan));
+        index.onServiceRemoved(lamp);
+        mRegistry.remove(lamp);
+
+        List<String> expected = new ArrayList<>();
+        expected.add(QueryIndex.REMOVED + " com.example.lamp:81");
+        expected.add(QueryIndex.DISCOVERED + " com.example.lamp:80");
+        expected.add(QueryIndex.UPDATED + " com.example.lamp:80");
+        expected.add(QueryIndex.DISCOVERED + " com.example.fan:80");
+        expected.add(QueryIndex.REMOVED + " com.example.lamp:80");
+        assertEquals(expected, mEvents);
+
+        index.unsubscribe(sub);
+        assertTrue(index.isEmpty());
+        mEvents.clear();
+        index.onServiceRemoved(fan);
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void matchesABruteForceSearch() {
+        Random random = new Random(3);
+        String[] names = {"com.example.lamp", "com.example.fan", "org.example.tv"};
+        QueryIndex index = null;
+        List<QueryIndex.Subscriber> subscribers = new ArrayList<>();
+        long nextId = 1;
+        for (int step=0; step<5000; step++) {
+            if (step == 100) {
+                // the index is built from the services that are already known
+                index = new QueryIndex(mRegistry, mRecorder);
+            }
+            int op = random.nextInt(10);
+            if (index != null && op == 0) {
+                ServiceQuery.Builder query = new ServiceQuery.Builder();
+                if (random.nextBoolean()) {
+                    query.name(random.nextBoolean() ? names[random.nextInt(names.length)] : "com.*");
+                }
+                if (random.nextBoolean()) {
+                    query.where("port", random.nextInt(5));
+                }
+                if (random.nextInt(4) == 0) {
+                    query.has("port");
+                }
+                QueryIndex.Subscriber sub = subscriber(query.build());
+                index.subscribe(sub);
+                subscribers.add(sub);
+            } else if (index != null && op == 1 && !subscribers.isEmpty()) {
+                index.unsubscribe(subscribers.remove(random.nextInt(subscribers.size())));
+            } else if (op < 6 || mRegistry.size() == 0) {
+                long id = nextId++;
+                int service = add(id, names[random.nextInt(names.length)], random.nextInt(5));
+                if (index != null) {
+                    index.onServiceChanged(service, mRegistry.toService(service));
+                }
+            } else {
+                int service = random.nextInt(mRegistry.end());
+                if (!mRegistry.contains(service)) {
+                    continue;
+                }
+                if (random.nextBoolean()) {
+                    setPort(service, random.nextInt(5));
+                    if (index != null) {
+                        index.onServiceChanged(service, mRegistry.toService(service));
+                    }
+                } else {
+                    if (index != null) {
+                        index.onServiceRemoved(service);
+                    }
+                    mRegistry.remove(service);
+                }
+            }
+
+            for (QueryIndex.Subscriber sub : subscribers) {
+                for (int i=0; i<mRegistry.end(); i++) {
+                    boolean expected = mRegistry.contains(i) && sub.query.matches(mRegistry.toService(i));
+                    assertEquals(sub.query + " service " + i, expected, sub.matches.contains(i));
+                }
+            }
+        }
+        assertFalse(subscribers.isEmpty());
+    }
+
+    @Test
+    public void intSetMatchesAHashSet() {
+        Random random = new Random(9);
+        QueryIndex.IntSet set = new QueryIndex.IntSet();
+        Set<Integer> model = new HashSet<>();
+        for (int step=0; step<50000; step++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(model.add(value), set.add(value));
+            } else {
+                assertEquals(model.remove(value), set.remove(value));
+            }
+            assertEquals(model.size(), set.size());
+        }
+        for (int value=0; value<500; value++) {
+            assertEquals(model.contains(value), set.contains(value));
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class ReplySchedulerTest {
+
+    private static final InetSocketAddress QUERIER = new InetSocketAddress("10.0.0.2", 5353);
+
+    @Test
+    public void delaysTheReply() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onQuery(1000);
+        assertTrue(replies.hasPendingReply());
+        long wait = replies.timeUntilReply(1000);
+        assertTrue(wait >= ReplyScheduler.MIN_REPLY_DELAY_MS && wait <= ReplyScheduler.MAX_REPLY_DELAY_MS);
+        assertFalse(replies.isReplyDue(1000 + wait - 1));
+        assertTrue(replies.isReplyDue(1000 + wait));
+    }
+
+    @Test
+    public void coalescesQueriesIntoThePendingReply() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onQuery(1000);
+        long due = 1000 + replies.timeUntilReply(1000);
+        replies.onQuery(1010);
+        assertEquals(due, 1010 + replies.timeUntilReply(1010));
+    }
+
+    @Test
+    public void defersMulticastRepliesRightAfterAnAnnouncement() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onAnnounced(1000);
+        // the new listener may not have been listening yet, so it's answered, but not until the
+        // announcement can be multicast again
+        replies.onQuery(1100);
+        assertTrue(replies.hasPendingReply());
+        assertFalse(replies.isReplyDue(1000 + ReplyScheduler.REPLY_INTERVAL_MS - 1));
+        assertTrue(replies.isReplyDue(1000 + ReplyScheduler.REPLY_INTERVAL_MS));
+    }
+
+    @Test
+    public void doesNotDeferUnicastReplies() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onAnnounced(1000);
+        replies.onQuery(1100, QUERIER, 1, 2);
+        assertTrue(replies.timeUntilReply(1100) <= ReplyScheduler.MAX_REPLY_DELAY_MS);
+        // until a second querier makes it a multicast reply
+        replies.onQuery(1150, new InetSocketAddress("10.0.0.3", 5353), 3, 4);
+        assertFalse(replies.isReplyDue(1000 + ReplyScheduler.REPLY_INTERVAL_MS - 1));
+        assertTrue(replies.isReplyDue(1000 + ReplyScheduler.REPLY_INTERVAL_MS));
+    }
+
+    @Test
+    public void anAnnouncementAnswersThePendingReply() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onQuery(1000, QUERIER, 1, 2);
+        replies.onAnnounced(1010);
+        assertFalse(replies.hasPendingReply());
+        assertEquals(-1, replies.timeUntilReply(1010));
+    }
+
+    @Test
+    public void unicastsOnlyToASingleQuerier() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onQuery(1000, QUERIER, 1, 2);
+        assertEquals(QUERIER, replies.getReplyAddress());
+        // the same querier's query, arriving over the other address family
+        replies.onQuery(1001, QUERIER, 1, 2);
+        assertEquals(QUERIER, replies.getReplyAddress());
+
+        replies.onQuery(1002, new InetSocketAddress("10.0.0.3", 5353), 3, 4);
+        assertNull(replies.getReplyAddress());
+        assertTrue(replies.hasPendingReply());
+    }
+
+    @Test
+    public void unicastRepliesDoNotCountAsAnnouncements() {
+        ReplyScheduler replies = new ReplyScheduler();
+        replies.onQuery(1000, QUERIER, 1, 2);
+        replies.onUnicastReplySent();
+        assertFalse(replies.hasPendingReply());
+        replies.onQuery(1100);
+        assertTrue(replies.timeUntilReply(1100) <= ReplyScheduler.MAX_REPLY_DELAY_MS);
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ServiceRegistryTest {
+
+    @Test
+    public void findsWhatWasAdded() {
+        ServiceRegistry services = new ServiceRegistry();
+        int a = services.add(1, 2, "com.example.lamp");
+        int b = services.add(3, 4, "com.example.fan");
+        assertEquals(2, services.size());
+        assertEquals(a, services.find(1, 2));
+        assertEquals(b, services.find(3, 4));
+        assertEquals(-1, services.find(1, 4));
+        assertEquals("com.example.fan", services.getName(b));
+        assertEquals(3, services.getIdHigh(b));
+        assertEquals(4, services.getIdLow(b));
+
+        services.remove(a);
+        assertEquals(1, services.size());
+        assertFalse(services.contains(a));
+        assertEquals(-1, services.find(1, 2));
+        assertEquals(b, services.find(3, 4));
+        // the freed index is reused
+        assertEquals(a, services.add(5, 6, "com.example.lamp"));
+    }
+
+    @Test
+    public void internsNames() {
+        ServiceRegistry services = new ServiceRegistry();
+        int a = services.add(1, 2, new String("com.example.lamp"));
+        int b = services.add(3, 4, new String("com.example.lamp"));
+        assertSame(services.getName(a), services.getName(b));
+    }
+
+    @Test
+    public void matchesAMapThroughRandomChanges() {
+        Random random = new Random(11);
+        ServiceRegistry services = new ServiceRegistry();
+        Map<Long, Integer> model = new HashMap<>();
+        for (int step=0; step<50000; step++) {
+            // a small id space, so ids come back after they're removed
+            long id = random.nextInt(3000);
+            // ids that only differ in the high half, to exercise the probing
+            long high = id * 0x100000001L;
+            Integer service = model.get(id);
+            if (service == null) {
+                assertEquals(-1, services.find(high, ~id));
+                service = services.add(high, ~id, "s" + id);
+                model.put(id, service);
+            } else if (random.nextBoolean()) {
+                assertEquals((int) service, services.find(high, ~id));
+                services.remove(service);
+                model.remove(id);
+            }
+            assertEquals(model.size(), services.size());
+        }
+        for (int id=0; id<3000; id++) {
+            Integer service = model.get((long) id);
+            int found = services.find(id * 0x100000001L, ~(long) id);
+            assertEquals(service == null ? -1 : service, found);
+            if (service != null) {
+                assertEquals("s" + id, services.getName(found));
+            }
+        }
+    }
+
+    @Test
+    public void keepsAddressesThroughGrowing() throws Exception {
+        ServiceRegistry services = new ServiceRegistry();
+        InetAddress v4 = InetAddress.getByName("10.0.0.7");
+        InetAddress v6 = InetAddress.getByName("fe80::1234");
+        int first = services.add(1, 1, "com.example.lamp");
+        assertTrue(services.setAddress(first, v4, 1000));
+        assertTrue(services.setAddress(first, v6, 2000));
+        // the same address again only moves the deadline
+        assertFalse(services.setAddress(first, v4, 1500));
+
+        for (int i=2; i<1000; i++) {
+            int service = services.add(i, i, "com.example.lamp");
+            services.setAddress(service, v4, 10000 + i);
+        }
+        assertEquals(first, services.find(1, 1));
+        Service service = services.toService(first);
+        assertEquals("10.0.0.7", service.getIpv4());
+        assertNotNull(service.getIpv6());
+        assertEquals(1500, services.getDeadline(first * 2 + ServiceRegistry.IPV4));
+        assertEquals(2000, services.remainingTtl(first, 0));
+    }
+
+    @Test
+    public void expiresAddressesInDeadlineOrder() throws Exception {
+        ServiceRegistry services = new ServiceRegistry();
+        InetAddress v4 = InetAddress.getByName("10.0.0.7");
+        InetAddress v6 = InetAddress.getByName("fe80::1234");
+        int a = services.add(1, 1, "com.example.lamp");
+        int b = services.add(2, 2, "com.example.lamp");
+        services.setAddress(a, v4, 300);
+        services.setAddress(a, v6, 100);
+        services.setAddress(b, v4, 200);
+        assertEquals(100, services.nextDeadline());
+
+        assertEquals(-1, services.pollExpired(99));
+        assertEquals(a * 2 + ServiceRegistry.IPV6, services.pollExpired(250));
+        assertEquals(b * 2 + ServiceRegistry.IPV4, services.pollExpired(250));
+        assertEquals(-1, services.pollExpired(250));
+        assertTrue(services.hasAddresses(a));
+        assertFalse(services.hasAddresses(b));
+        // expiring an address leaves the service for the browser to remove
+        assertEquals(b, services.find(2, 2));
+
+        services.remove(a);
+        assertEquals(Long.MAX_VALUE, services.nextDeadline());
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.arashpayan.chirp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ServiceSnapshotTest {
+
+    private static Service service(long idHigh, long idLow, String name) {
+        return new Service(idHigh, idLow, name, null, null, null);
+    }
+
+    private static Set<Service> contents(ServiceSnapshot snapshot) {
+        Set<Service> services = new HashSet<>();
+        for (Service s : snapshot) {
+            assertTrue("iterated twice: " + s, services.add(s));
+        }
+        assertEquals(snapshot.size(), services.size());
+        return services;
+    }
+
+    @Test
+    public void isPersistent() {
+        Service lamp = service(1, 2, "com.example.lamp");
+        ServiceSnapshot empty = ServiceSnapshot.EMPTY;
+        ServiceSnapshot one = empty.with(lamp);
+        ServiceSnapshot two = one.with(service(3, 4, "com.example.fan"));
+
+        assertTrue(empty.isEmpty());
+        assertEquals(1, one.size());
+        assertEquals(2, two.size());
+        assertSame(lamp, two.get(lamp.getPublisherId()));
+        assertNull(one.get(3, 4));
+        assertTrue(two.getVersion() > one.getVersion());
+
+        ServiceSnapshot removed = two.without(1, 2);
+        assertNull(removed.get(1, 2));
+        assertSame(lamp, two.get(1, 2));
+        // removing what isn't there changes nothing
+        assertSame(removed, removed.without(1, 2));
+        assertNull(removed.get("not an id"));
+    }
+
+    @Test
+    public void replacesThePublishersService() {
+        ServiceSnapshot snapshot = ServiceSnapshot.EMPTY.with(service(1, 2, "com.example.lamp"));
+        Service updated = service(1, 2, "com.example.lamp");
+        snapshot = snapshot.with(updated);
+        assertEquals(1, snapshot.size());
+        assertSame(updated, snapshot.get(1, 2));
+    }
+
+    @Test
+    public void handlesIdenticalHashes() {
+        // the hash only depends on idHigh ^ idLow, so these all collide
+        ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+        for (long k=0; k<5; k++) {
+            snapshot = snapshot.with(service(0x1234 ^ k, 0x5678 ^ k, "s" + k));
+        }
+        snapshot = snapshot.with(service(99, 100, "other"));
+        assertEquals(6, snapshot.size());
+        for (long k=0; k<5; k++) {
+            assertEquals("s" + k, snapshot.get(0x1234 ^ k, 0x5678 ^ k).getName());
+        }
+        assertEquals(6, contents(snapshot).size());
+
+        for (long k=0; k<5; k++) {
+            snapshot = snapshot.without(0x1234 ^ k, 0x5678 ^ k);
+            assertNull(snapshot.get(0x1234 ^ k, 0x5678 ^ k));
+            assertEquals(5 - k, snapshot.size());
+        }
+        assertEquals("other", snapshot.get(99, 100).getName());
+    }
+
+    @Test
+    public void matchesAMapThroughRandomChanges() {
+        Random random = new Random(5);
+        ServiceSnapshot snapshot = ServiceSnapshot.EMPTY;
+        Map<Long, Service> model = new HashMap<>();
+        for (int step=0; step<20000; step++) {
+            long id = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                snapshot = snapshot.without(id, ~id);
+                model.remove(id);
+            } else {
+                Service s = service(id, ~id, "s" + step);
+                snapshot = snapshot.with(s);
+                model.put(id, s);
+            }
+            assertEquals(model.size(), snapshot.size());
+        }
+        for (long id=0; id<2000; id++) {
+            assertSame(model.get(id), snapshot.get(id, ~id));
+        }
+        assertEquals(new HashSet<>(model.values()), contents(snapshot));
+    }
+
+    @Test
+    public void iteratorEnds() {
+        Iterator<Service> it = ServiceSnapshot.EMPTY.with(service(1, 2, "a")).iterator();
+        assertTrue(it.hasNext());
+        it.next();
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+}
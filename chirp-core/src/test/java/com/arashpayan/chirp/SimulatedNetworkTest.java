@@ -0,0 +1,98 @@
+package com.arashpayan.chirp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SimulatedNetworkTest {
+
+    private static final int TTL = 10;
+    private static final int BROWSERS = 4;
+
+    private SimulatedNetwork mNetwork;
+    private final List<ChirpPublisher> mPublishers = new ArrayList<>();
+    private ChirpMultiPublisher mMultiPublisher;
+    private final List<SimulatedNetwork.Node> mBrowserNodes = new ArrayList<>();
+    private final List<ChirpBrowser> mBrowsers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = new SimulatedNetwork(7);
+        mNetwork.setLoss(0.1);
+        mNetwork.setDuplication(0.05);
+        mNetwork.setLatency(1, 30);
+        for (int i=0; i<3; i++) {
+            mPublishers.add(Chirp.publish("com.example.lamp").ttl(TTL).start(mNetwork.addNode()));
+        }
+        mMultiPublisher = Chirp.publishMany().ttl(TTL).start(mNetwork.addNode());
+        mMultiPublisher.addService("com.example.fan", null);
+        mMultiPublisher.addService("com.example.tv", null);
+        mMultiPublisher.addService("org.example.heater", null);
+        for (int i=0; i<BROWSERS; i++) {
+            SimulatedNetwork.Node node = mNetwork.addNode();
+            mBrowserNodes.add(node);
+            mBrowsers.add(Chirp.browseFor("com.example.*").start(node));
+        }
+    }
+
+    /**
+     * @return the publisher ids of the services a browser knows about
+     */
+    private static Set<String> servicesOf(ChirpBrowser browser) {
+        Set<String> ids = new HashSet<>();
+        for (Service service : browser.snapshot()) {
+            ids.add(service.getPublisherId());
+        }
+        return ids;
+    }
+
+    private void assertConverged(int services) {
+        Set<String> expected = servicesOf(mBrowsers.get(0));
+        assertEquals(services, expected.size());
+        for (ChirpBrowser browser : mBrowsers) {
+            assertEquals(expected, servicesOf(browser));
+        }
+    }
+
+    @Test
+    public void browsersConvergeDespiteLossAndAPartition() {
+        mNetwork.runFor(5 * 1000);
+        // the three lamps, the fan and the tv, but not the heater
+        assertConverged(5);
+
+        // half the browsers drop off the network while a lamp goes away and a radio shows up
+        mBrowserNodes.get(0).setPartition(1);
+        mBrowserNodes.get(1).setPartition(1);
+        mPublishers.get(0).stop();
+        String radio = mMultiPublisher.addService("com.example.radio", null);
+        mNetwork.runFor(5 * 1000);
+        assertFalse(servicesOf(mBrowsers.get(0)).contains(radio));
+        assertTrue(servicesOf(mBrowsers.get(2)).contains(radio));
+
+        // the stranded browsers find the radio, and let the lamp they missed the removal of expire
+        mNetwork.heal();
+        mNetwork.runFor(2 * TTL * 1000);
+        assertConverged(5);
+        assertTrue(servicesOf(mBrowsers.get(0)).contains(radio));
+    }
+
+    @Test
+    public void settlesIntoPeriodicAnnouncements() {
+        mNetwork.runFor(10 * 1000);
+        assertConverged(5);
+        mNetwork.resetCounters();
+        mNetwork.runFor(60 * 1000);
+        assertConverged(5);
+        // a few re-announcements per TTL from each of the four publishers, and no reply storms
+        // from the browsers re-querying for what was lost
+        long perTtl = mNetwork.getDatagramsSent() / (60 / TTL);
+        assertTrue(perTtl + " datagrams per TTL", perTtl <= 4 * 4);
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.arashpayan.chirp;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Runs Chirp on Android. Browsers and publishers are started with it like so:
+ * <pre>
+ *     ChirpBrowser browser = Chirp.browseFor("com.example.service").
+ *                                  listener(this).
+ *                                  start(AndroidPlatform.get(getApplication()));
+ * </pre>
+ *
+ * While the transport is open, it holds a <code>WifiManager.MulticastLock</code>, since most
+ * devices filter out multicast traffic otherwise. The lock is reference counted, so a transport
+ * that's still finishing up after the last browser or publisher stopped doesn't release it out from
+ * under the next transport. Browser callbacks are delivered on the main
+ * looper, and everything else runs on the default <code>ChirpRuntime</code>. Chirp's log goes to
+ * logcat, under the "Chirp" tag.
+ */
+public final class AndroidPlatform implements ChirpPlatform {
+
+    private static final String TAG = "Chirp";
+    private static AndroidPlatform sShared;
+
+    private final WifiManager.MulticastLock mMulticastLock;
+    private final CallbackDispatcher mDispatcher;
+
+    private AndroidPlatform(Context appContext) {
+        WifiManager wifiMgr = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE);
+        mMulticastLock = wifiMgr.createMulticastLock("Chirp Multicast Lock");
+        // every transport releases the lock once for the one time it acquired it
+        mMulticastLock.setReferenceCounted(true);
+        mDispatcher = new HandlerDispatcher(new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param context only its application context is kept, so an <code>Activity</code> can be
+     *                passed in without leaking it
+     * @return the platform for this process
+     */
+    @NonNull
+    public static synchronized AndroidPlatform get(@NonNull Context context) {
+        if (sShared == null) {
+            sShared = new AndroidPlatform(context.getApplicationContext());
+            ChirpLog.setLogger(new ChirpLog.Logger() {
+                @Override
+                public void info(String msg) {
+                    Log.i(TAG, msg);
+                }
+
+                @Override
+                public void warn(String msg, Throwable t) {
+                    Log.w(TAG, msg, t);
+                }
+            });
+        }
+        return sShared;
+    }
+
+    /**
+     * @return a dispatcher that runs browser callbacks on <code>handler</code>'s looper, for use
+     * with <code>ChirpBrowser.Builder.dispatcher()</code>
+     */
+    @NonNull
+    public static CallbackDispatcher dispatcherFor(@NonNull Handler handler) {
+        return new HandlerDispatcher(handler);
+    }
+
+    @Override
+    public void acquireMulticastLock() {
+        mMulticastLock.acquire();
+    }
+
+    @Override
+    public void releaseMulticastLock() {
+        mMulticastLock.release();
+    }
+
+    @NonNull
+    @Override
+    public CallbackDispatcher getCallbackDispatcher() {
+        return mDispatcher;
+    }
+
+    @NonNull
+    @Override
+    public ChirpScheduler getScheduler() {
+        return ChirpRuntime.getDefault();
+    }
+
+    private static class HandlerDispatcher implements CallbackDispatcher {
+
+        private final Handler mHandler;
+
+        HandlerDispatcher(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void post(@NonNull Runnable r) {
+            mHandler.post(r);
+        }
+
+        @Override
+        public void postDelayed(@NonNull Runnable r, long delayMs) {
+            mHandler.postDelayed(r, delayMs);
+        }
+
+        @Override
+        public void cancel(@NonNull Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+
+    }
+
+}
@@ -10,6 +10,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.arashpayan.chirp.AndroidPlatform;
 import com.arashpayan.chirp.Chirp;
 import com.arashpayan.chirp.ChirpBrowser;
 import com.arashpayan.chirp.ChirpBrowserListener;
@@ -48,10 +49,10 @@ public class MainActivity extends AppCompatActivity implements ChirpBrowserListe
         mAdapter.clear();
         mChirpBrowser = Chirp.browseFor("*").
                 listener(mAdapter).
-                start(getApplication());
+                start(AndroidPlatform.get(getApplication()));
 
         mChirpPublisher = Chirp.publish("com.arashpayan.chirp.demo").
-                start(getApplication());
+                start(AndroidPlatform.get(getApplication()));
     }
 
     @Override